@@ -0,0 +1,20 @@
+package com.markocki.converter;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Upload files of the benchmarks.
+ */
+public class BenchmarkFiles {
+
+	// correct file of given number of unique records, like the ones of the integration tests
+	public static byte[] createFile(int records) {
+		StringBuilder result = new StringBuilder("PRIMARY_KEY,NAME,DESCRIPTION,UPDATED_TIMESTAMP\n");
+		for (int i = 0; i < records; i++) {
+			result.append("key-").append(i).append(",name of the record ").append(i % 1000)
+					.append(",a bit longer description of the record number ").append(i).append(',')
+					.append(1600000000000L + i).append('\n');
+		}
+		return result.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
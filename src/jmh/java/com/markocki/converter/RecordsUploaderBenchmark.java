@@ -0,0 +1,55 @@
+package com.markocki.converter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The String based parsing (BufferedReader.readLine and String.split) compared
+ * with the byte tokenizer, both for the in-memory file of given number of
+ * records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordsUploaderBenchmark {
+	@Param({ "100000" })
+	int records;
+
+	byte[] file;
+
+	@Setup
+	public void createFile() {
+		file = BenchmarkFiles.createFile(records);
+	}
+
+	@Benchmark
+	public void readerParsing(Blackhole blackhole) throws IOException, RecordsUploaderFileParseException {
+		RecordsUploader.tryRetrieveRecords(new BufferedReader(
+				new InputStreamReader(new ByteArrayInputStream(file), StandardCharsets.UTF_8)), blackhole::consume);
+	}
+
+	@Benchmark
+	public void byteTokenizerParsing(Blackhole blackhole) throws IOException, RecordsUploaderFileParseException {
+		RecordsUploader.tryRetrieveRecords(new ByteArrayInputStream(file), blackhole::consume);
+	}
+}
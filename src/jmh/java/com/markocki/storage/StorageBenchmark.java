@@ -0,0 +1,113 @@
+package com.markocki.storage;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.markocki.model.Record;
+import com.markocki.model.RecordCreateException;
+import com.markocki.model.RecordFactory;
+
+/**
+ * Storage operations called by several threads at once, the storage not
+ * logged, so the numbers are of the in-memory structures only. The ordered
+ * storage pays for its key order with the O(log n) lookups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Threads(4)
+public class StorageBenchmark {
+	@Param({ StorageFactory.SIMPLE_STORAGE_TYPE, StorageFactory.OFFHEAP_STORAGE_TYPE,
+			StorageFactory.ORDERED_STORAGE_TYPE })
+	String storageType;
+
+	@Param({ "1000000" })
+	int records;
+
+	LoggedStorage storage;
+	Record[] stored;
+
+	// keys of the records saved and deleted by the benchmark, unique per thread
+	final AtomicInteger threads = new AtomicInteger();
+
+	@Setup
+	public void fillStorage() throws RecordCreateException {
+		if (StorageFactory.SIMPLE_STORAGE_TYPE.equals(storageType)) {
+			storage = new StorageFactory.SimpleStorage(1);
+		} else if (StorageFactory.OFFHEAP_STORAGE_TYPE.equals(storageType)) {
+			storage = new OffHeapStorage(64 * 1024 * 1024);
+		} else {
+			storage = new OrderedStorage(1);
+		}
+
+		stored = new Record[records];
+		for (int i = 0; i < records; i++) {
+			stored[i] = createRecord("key-" + i, i);
+			storage.replaySave(stored[i]);
+		}
+	}
+
+	static Record createRecord(String key, long timestamp) throws RecordCreateException {
+		return RecordFactory.createRecord(key, "name of the record", "a bit longer description of the record",
+				timestamp);
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadKeys {
+		Record[] records;
+		int next;
+
+		@Setup
+		public void createRecords(StorageBenchmark benchmark) throws RecordCreateException {
+			int thread = benchmark.threads.getAndIncrement();
+			records = new Record[1024];
+			for (int i = 0; i < records.length; i++) {
+				records[i] = createRecord("thread-" + thread + "-" + i, i);
+			}
+		}
+
+		Record nextRecord() {
+			return records[next++ & (records.length - 1)];
+		}
+	}
+
+	@Benchmark
+	public Record findByPrimaryKey() throws NoRecordFoundException {
+		return storage.findByPrimaryKey(stored[ThreadLocalRandom.current().nextInt(records)].getPrimaryKey());
+	}
+
+	// saved and deleted at once, so the storage size does not change
+	@Benchmark
+	public Record saveAndDelete(ThreadKeys keys) throws RecordStoreException, NoRecordFoundException {
+		Record record = keys.nextRecord();
+		storage.save(record);
+		return storage.delete(record);
+	}
+
+	@Benchmark
+	public boolean saveDuplicate() {
+		try {
+			storage.save(stored[ThreadLocalRandom.current().nextInt(records)]);
+			return true;
+		} catch (RecordStoreException exc) {
+			return false;
+		}
+	}
+}
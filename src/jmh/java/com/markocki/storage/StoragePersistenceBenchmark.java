@@ -0,0 +1,137 @@
+package com.markocki.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.markocki.model.Record;
+import com.markocki.model.RecordCreateException;
+
+/**
+ * Startup and shutdown of the storage of given size, i.e. loading the storage
+ * files and writing them again. The storage is closed without its log, so the
+ * snapshot is written like for the storage persisted during shutdown only,
+ * all its segments as if all were modified. The segment files are read and
+ * written on up to app.storage.snapshot.threads threads (the number of the
+ * processors by default), so the larger number of segments scales with the
+ * cores and the disks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-XX:MaxDirectMemorySize=4g" })
+public class StoragePersistenceBenchmark {
+	@Param({ StorageFactory.SIMPLE_STORAGE_TYPE, StorageFactory.OFFHEAP_STORAGE_TYPE })
+	String storageType;
+
+	@Param({ "1000000", "10000000" })
+	int records;
+
+	@Param({ "1", "4", "16" })
+	int segments;
+
+	File directory;
+	Storage loaded;
+
+	@Setup(Level.Trial)
+	public void writeStorageFile() throws IOException {
+		directory = Files.createTempDirectory("storage-benchmark").toFile();
+
+		// generated while written, so the file of any size can be prepared
+		Iterator<Record> generated = new Iterator<Record>() {
+			int next;
+
+			@Override
+			public boolean hasNext() {
+				return next < records;
+			}
+
+			@Override
+			public Record next() {
+				try {
+					return StorageBenchmark.createRecord("key-" + next, next++);
+				} catch (RecordCreateException exc) {
+					throw new IllegalStateException(exc);
+				}
+			}
+		};
+		MappedStorageFile.write(generated, records, new File(directory, "storage.db"),
+				MappedStorageFile.DEFAULT_CHUNK_SHIFT);
+
+		// converted into the segment files
+		LoggedStorage storage = (LoggedStorage) StorageFactory.loadStorage(directory.getPath(),
+				StorageFactory.OFFHEAP_STORAGE_TYPE, segments);
+		storage.closeLog();
+		removeLogFiles();
+		StorageFactory.closeStorage(storage, directory.getPath());
+	}
+
+	@TearDown(Level.Trial)
+	public void removeStorageFiles() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public Storage loadStorage() {
+		loaded = StorageFactory.loadStorage(directory.getPath(), storageType, segments);
+		return loaded;
+	}
+
+	@TearDown(Level.Invocation)
+	public void closeLoadedStorage() throws IOException {
+		if (loaded != null) {
+			((LoggedStorage) loaded).closeLog();
+			loaded = null;
+			removeLogFiles();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class LoadedStorage {
+		LoggedStorage storage;
+
+		@Setup(Level.Invocation)
+		public void load(StoragePersistenceBenchmark benchmark) throws IOException {
+			storage = (LoggedStorage) StorageFactory.loadStorage(benchmark.directory.getPath(),
+					benchmark.storageType, benchmark.segments);
+			// without the log the storage is written to the storage files when closed
+			storage.closeLog();
+			benchmark.removeLogFiles();
+			for (int segment = 0; segment < storage.getSegments(); segment++) {
+				storage.persisted(segment, -1);
+			}
+		}
+	}
+
+	@Benchmark
+	public void closeStorage(LoadedStorage loadedStorage) {
+		StorageFactory.closeStorage(loadedStorage.storage, directory.getPath());
+	}
+
+	void removeLogFiles() {
+		for (File file : directory.listFiles((dir, name) -> name.endsWith(".wal"))) {
+			file.delete();
+		}
+	}
+}
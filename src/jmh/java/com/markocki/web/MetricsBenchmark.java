@@ -0,0 +1,42 @@
+package com.markocki.web;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of recording the latency of a request, by the concurrent requests of
+ * the same route.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class MetricsBenchmark {
+	final LatencyHistogram histogram = new LatencyHistogram();
+
+	@Benchmark
+	public void recordLatency() {
+		long start = System.nanoTime();
+		histogram.record(System.nanoTime() - start + ThreadLocalRandom.current().nextInt(1000000));
+	}
+
+	@Benchmark
+	public long nanoTimeOnly() {
+		long start = System.nanoTime();
+		return System.nanoTime() - start + ThreadLocalRandom.current().nextInt(1000000);
+	}
+}
@@ -0,0 +1,267 @@
+package com.markocki.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.markocki.model.Record;
+
+/**
+ * Parses the uploaded file split into byte ranges on the line boundaries, each
+ * range parsed on the pool. Validation rules and messages are the ones of
+ * {@link RecordsUploader}, records are passed to the sink in the file order.
+ * The file is expected in UTF-8 (or ASCII).
+ */
+public class ParallelRecordsUploader {
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+	private final ForkJoinPool pool;
+	private final int chunkSize;
+
+	/**
+	 * @param chunkSize approximate size (in bytes) of the range parsed by a
+	 *                  single task, the range is extended to the end of the
+	 *                  line it ends within
+	 */
+	public ParallelRecordsUploader(ForkJoinPool pool, int chunkSize) {
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Same as {@link RecordsUploader#tryRetrieveRecords(java.io.BufferedReader, RecordSink)}
+	 * but for the file on the disk.
+	 */
+	public void tryRetrieveRecords(File file, RecordSink sink) throws IOException, RecordsUploaderFileParseException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);) {
+			retrieveRecords(channel, sink);
+			sink.commit();
+		} catch (IOException | RecordsUploaderFileParseException | RuntimeException exc) {
+			sink.rollback();
+			throw exc;
+		}
+	}
+
+	private void retrieveRecords(FileChannel channel, RecordSink sink)
+			throws IOException, RecordsUploaderFileParseException {
+		long size = channel.size();
+
+		// Per specification point 1a first line is a header of given structure
+		long[] bodyStart = new long[1];
+		RecordsUploader.validateHeaderLine(readHeaderLine(channel, size, bodyStart));
+
+		// at most a couple of ranges per thread parsed ahead, so the memory does not depend on the file size
+		int window = Math.max(2, pool.getParallelism() * 2);
+		Deque<ForkJoinTask<ChunkResult>> pending = new ArrayDeque<>(window);
+		long nextChunk = bodyStart[0];
+
+		boolean emptyLineRead = false;
+		long firstLineNumber = 2; // header is the first line, so the body starts with the next one
+
+		try {
+			while (true) {
+				while (pending.size() < window && nextChunk < size) {
+					long start = nextChunk;
+					long end = findChunkEnd(channel, start, size);
+					pending.add(pool.submit(() -> parseChunk(channel, start, end)));
+					nextChunk = end;
+				}
+				if (pending.isEmpty()) {
+					break;
+				}
+
+				ChunkResult chunk = join(pending.poll());
+
+				// merged in the file order, so the first problem reported is the same as the sequential parsing reports
+				if (emptyLineRead) {
+					if (chunk.firstNotEmptyLine >= 0) {
+						throw RecordsUploader.notEmptyLineAfterEmptyOne(firstLineNumber + chunk.firstNotEmptyLine);
+					}
+				} else {
+					for (Record record : chunk.records) {
+						sink.accept(record);
+					}
+					if (chunk.incorrectLine >= 0) {
+						// parsed again to have the message with the line number within the file
+						byte[] line = chunk.incorrectLineContent;
+						RecordsTokenizer.readRecord(line, 0, line.length, firstLineNumber + chunk.incorrectLine);
+						throw new IllegalStateException("Line number " + (firstLineNumber + chunk.incorrectLine)
+								+ " expected incorrect but parsed");
+					}
+					if (chunk.notEmptyLineAfterEmptyOne >= 0) {
+						throw RecordsUploader
+								.notEmptyLineAfterEmptyOne(firstLineNumber + chunk.notEmptyLineAfterEmptyOne);
+					}
+					emptyLineRead = chunk.firstEmptyLine >= 0;
+				}
+
+				firstLineNumber += chunk.lines;
+			}
+		} finally {
+			for (ForkJoinTask<ChunkResult> task : pending) {
+				task.cancel(false);
+			}
+		}
+
+		// Per specification point 1b last (read) line must be empty, so checking that
+		if (!emptyLineRead) {
+			throw RecordsUploader.lastLineNotEmpty();
+		}
+	}
+
+	// the first line decoded like BufferedReader.readLine does, null for the empty file
+	private static String readHeaderLine(FileChannel channel, long size, long[] bodyStart) throws IOException {
+		if (size == 0) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		byte[] line = new byte[READ_BUFFER_SIZE];
+		int length = 0;
+
+		long position = 0;
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			for (int i = 0; i < read; i++) {
+				byte b = buffer.get(i);
+				if (b == '\n' || b == '\r') {
+					long next = position + i + 1;
+					if (b == '\r' && next < size && readByte(channel, next) == '\n') {
+						next++;
+					}
+					bodyStart[0] = next;
+					return new String(line, 0, length, StandardCharsets.UTF_8);
+				}
+				if (length == line.length) {
+					byte[] larger = new byte[line.length * 2];
+					System.arraycopy(line, 0, larger, 0, length);
+					line = larger;
+				}
+				line[length++] = b;
+			}
+			position += read;
+		}
+
+		bodyStart[0] = size;
+		return new String(line, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private static byte readByte(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		channel.read(buffer, position);
+		return buffer.get(0);
+	}
+
+	// end of the range, i.e. just after the first '\n' at or after the nominal end, so no line is split
+	private long findChunkEnd(FileChannel channel, long start, long size) throws IOException {
+		long position = start + chunkSize - 1;
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	private static ChunkResult parseChunk(FileChannel channel, long start, long end) {
+		try {
+			if (end - start > Integer.MAX_VALUE - 8) {
+				throw new IOException("Line starting at byte " + start + " is too long");
+			}
+
+			byte[] data = new byte[(int) (end - start)];
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, start + buffer.position()) < 0) {
+					throw new IOException("File truncated while parsing");
+				}
+			}
+
+			return parseChunk(data);
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		}
+	}
+
+	// line numbers relative to the range, the lines separated as BufferedReader.readLine separates them
+	static ChunkResult parseChunk(byte[] data) {
+		ChunkResult result = new ChunkResult();
+
+		int lineStart = 0;
+		while (lineStart < data.length) {
+			int lineEnd = lineStart;
+			while (lineEnd < data.length && data[lineEnd] != '\n' && data[lineEnd] != '\r') {
+				lineEnd++;
+			}
+
+			int lineNumber = result.lines++;
+
+			if (!RecordsTokenizer.isBlank(data, lineStart, lineEnd)) {
+				if (result.firstNotEmptyLine < 0) {
+					result.firstNotEmptyLine = lineNumber;
+				}
+
+				if (result.firstEmptyLine >= 0) {
+					// only last line can be empty, nothing after it matters
+					result.notEmptyLineAfterEmptyOne = lineNumber;
+					break;
+				}
+
+				try {
+					result.records.add(RecordsTokenizer.readRecord(data, lineStart, lineEnd, lineNumber));
+				} catch (RecordsUploaderFileParseException exc) {
+					result.incorrectLine = lineNumber;
+					result.incorrectLineContent = Arrays.copyOfRange(data, lineStart, lineEnd);
+					break;
+				}
+			} else if (result.firstEmptyLine < 0) {
+				result.firstEmptyLine = lineNumber;
+			}
+
+			lineStart = lineEnd;
+			if (lineStart < data.length) {
+				lineStart += data[lineStart] == '\r' && lineStart + 1 < data.length && data[lineStart + 1] == '\n' ? 2 : 1;
+			}
+		}
+
+		return result;
+	}
+
+	private static ChunkResult join(ForkJoinTask<ChunkResult> task) throws IOException {
+		try {
+			return task.join();
+		} catch (UncheckedIOException exc) {
+			throw exc.getCause();
+		}
+	}
+
+	// the parsing stops at the first problem, so the counted lines matter only when there was none
+	static class ChunkResult {
+		int lines;
+		final List<Record> records = new ArrayList<>();
+		int firstEmptyLine = -1;
+		int firstNotEmptyLine = -1;
+		int notEmptyLineAfterEmptyOne = -1;
+		int incorrectLine = -1;
+		byte[] incorrectLineContent;
+	}
+}
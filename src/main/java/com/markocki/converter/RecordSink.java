@@ -0,0 +1,34 @@
+package com.markocki.converter;
+
+import java.io.IOException;
+
+import com.markocki.model.Record;
+
+/**
+ * Receives the records while the uploaded file is being parsed, so the whole
+ * file never needs to be held in memory.
+ * <p>
+ * As the file is accepted only when completely correct, the sink is either
+ * committed once the whole file is validated or rolled back when it is
+ * rejected. Records accepted before the rollback must not be published.
+ */
+public interface RecordSink {
+	void accept(Record record) throws IOException;
+
+	/**
+	 * Receives many records at once, e.g. the staged ones. The records can be
+	 * iterated only once, and the iteration may throw
+	 * {@link java.io.UncheckedIOException}.
+	 */
+	default void acceptAll(Iterable<Record> records) throws IOException {
+		for (Record record : records) {
+			accept(record);
+		}
+	}
+
+	default void commit() throws IOException {
+	}
+
+	default void rollback() {
+	}
+}
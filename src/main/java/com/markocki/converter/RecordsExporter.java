@@ -0,0 +1,81 @@
+package com.markocki.converter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.google.gson.stream.JsonWriter;
+import com.markocki.gson.JsonOutput;
+import com.markocki.model.Record;
+
+/**
+ * Writes the records in the format {@link RecordsUploader} reads, i.e. the
+ * header, a line per record and the empty last line, so an export can be
+ * uploaded again, or as NDJSON, a JSON object per line.
+ * <p>
+ * The values are written as they are, like they were uploaded, so none of
+ * them contains a comma or a line break. Missing NAME and DESCRIPTION are
+ * written empty.
+ */
+public class RecordsExporter {
+	public static final String CSV_FORMAT = "csv";
+	public static final String NDJSON_FORMAT = "ndjson";
+
+	static final String HEADER = "PRIMARY_KEY,NAME,DESCRIPTION,UPDATED_TIMESTAMP";
+
+	private final Writer out;
+	private final boolean csv;
+
+	/**
+	 * @param format either {@link #CSV_FORMAT} or {@link #NDJSON_FORMAT}
+	 */
+	public RecordsExporter(Writer out, String format) {
+		if (!CSV_FORMAT.equals(format) && !NDJSON_FORMAT.equals(format)) {
+			throw new IllegalArgumentException("Unknown export format: " + format);
+		}
+		this.out = out;
+		this.csv = CSV_FORMAT.equals(format);
+	}
+
+	public static String contentType(String format) {
+		return CSV_FORMAT.equals(format) ? "text/csv; charset=utf-8" : "application/x-ndjson; charset=utf-8";
+	}
+
+	public void writeHeader() throws IOException {
+		if (csv) {
+			out.write(HEADER);
+			out.write('\n');
+		}
+	}
+
+	public void write(Record record) throws IOException {
+		if (csv) {
+			out.write(record.getPrimaryKey());
+			out.write(',');
+			out.write(valueOf(record.getName()));
+			out.write(',');
+			out.write(valueOf(record.getDescription()));
+			out.write(',');
+			out.write(Long.toString(record.getUpdatedTimestamp()));
+		} else {
+			// like JsonOutput.newWriter, but never indented, as a record takes one line
+			JsonWriter writer = new JsonWriter(out);
+			writer.setHtmlSafe(true);
+			writer.setSerializeNulls(false);
+			// not flushed, the JSON writer has no buffer of its own
+			JsonOutput.write(record, writer);
+		}
+		out.write('\n');
+	}
+
+	// the empty last line the uploaded file ends with
+	public void writeEnd() throws IOException {
+		if (csv) {
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+	private static String valueOf(String value) {
+		return value != null ? value : "";
+	}
+}
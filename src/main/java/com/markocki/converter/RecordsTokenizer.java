@@ -0,0 +1,223 @@
+package com.markocki.converter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.markocki.model.Record;
+import com.markocki.model.RecordCreateException;
+import com.markocki.model.RecordFactory;
+
+/**
+ * Splits UTF-8 bytes into lines and fields without the intermediate Strings of
+ * {@link java.io.BufferedReader#readLine()} and {@link String#split(String)}.
+ * Lines and fields are separated, trimmed and validated the same way
+ * {@link RecordsUploader#readInNextRecord(String, long)} does, so the messages
+ * are the same.
+ */
+class RecordsTokenizer {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream in;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	// bytes read but not consumed yet are in [position, limit)
+	private int position;
+	private int limit;
+	// the line ended with '\r', so the '\n' following it (if any) belongs to that line ending
+	private boolean skipLineFeed;
+	private boolean endOfStream;
+
+	// the current line is in buffer[lineStart, lineEnd)
+	private int lineStart;
+	private int lineEnd;
+
+	RecordsTokenizer(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Moves to the next line, lines end like for
+	 * {@link java.io.BufferedReader#readLine()}.
+	 *
+	 * @return false when there are no more lines
+	 */
+	boolean nextLine() throws IOException {
+		// bytes after the position already known to have no line ending
+		int scanned = 0;
+		while (true) {
+			if (skipLineFeed && position < limit) {
+				skipLineFeed = false;
+				if (buffer[position] == '\n') {
+					position++;
+				}
+			}
+
+			for (int i = position + scanned; i < limit; i++) {
+				byte b = buffer[i];
+				if (b == '\n' || b == '\r') {
+					lineStart = position;
+					lineEnd = i;
+					position = i + 1;
+					skipLineFeed = b == '\r';
+					return true;
+				}
+			}
+			scanned = limit - position;
+
+			if (!fill()) {
+				if (position == limit) {
+					return false;
+				}
+				// the last line without the line ending
+				lineStart = position;
+				lineEnd = limit;
+				position = limit;
+				return true;
+			}
+		}
+	}
+
+	// keeps the unconsumed bytes, grows the buffer if the line does not fit
+	private boolean fill() throws IOException {
+		if (endOfStream) {
+			return false;
+		}
+
+		int remaining = limit - position;
+		if (remaining == buffer.length) {
+			byte[] larger = new byte[buffer.length * 2];
+			System.arraycopy(buffer, position, larger, 0, remaining);
+			buffer = larger;
+		} else if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+		}
+		position = 0;
+		limit = remaining;
+
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read < 0) {
+			endOfStream = true;
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	String lineAsString() {
+		return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+	}
+
+	boolean isBlankLine() {
+		return isBlank(buffer, lineStart, lineEnd);
+	}
+
+	Record readRecord(long lineNumber) throws RecordsUploaderFileParseException {
+		return readRecord(buffer, lineStart, lineEnd, lineNumber);
+	}
+
+	// same as String.trim().isEmpty(), UTF-8 bytes of non-ASCII characters are all negative
+	static boolean isBlank(byte[] data, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (data[i] > ' ' || data[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the line of given bytes, validation and messages of
+	 * {@link RecordsUploader#readInNextRecord(String, long)}.
+	 */
+	static Record readRecord(byte[] data, int start, int end, long lineNumber)
+			throws RecordsUploaderFileParseException {
+		// Per specification point 1 line must contains comma-separated values
+		int firstComma = -1;
+		int secondComma = -1;
+		int thirdComma = -1;
+		int fields = 1;
+		for (int i = start; i < end; i++) {
+			if (data[i] == ',') {
+				switch (fields++) {
+				case 1:
+					firstComma = i;
+					break;
+				case 2:
+					secondComma = i;
+					break;
+				case 3:
+					thirdComma = i;
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		// Per specification point 1c line must contains four values
+		if (fields != 4) {
+			throw new RecordsUploaderFileParseException("Line number " + lineNumber
+					+ " does not contains enough fields. Expected 4, received " + fields);
+		}
+
+		// Per specification point 1d primary key must be non-blank
+		if (isBlank(data, start, firstComma)) {
+			throw new RecordsUploaderFileParseException("Line number " + lineNumber + " PRIMARY_KEY is empty but cannot.");
+		}
+
+		String key = trimmedString(data, start, firstComma);
+		String name = trimmedString(data, firstComma + 1, secondComma);
+		String desc = trimmedString(data, secondComma + 1, thirdComma);
+
+		try {
+			// as for the String based parsing, empty timestamp is 0
+			long timestamp = parseTimestamp(data, thirdComma + 1, end);
+			return RecordFactory.createRecord(key, name, desc, timestamp);
+		} catch (NumberFormatException exc) {
+			throw new RecordsUploaderFileParseException("Timestamp at line number " + lineNumber + " is of incorrect format.",
+					exc);
+
+		} catch(RecordCreateException exc) {
+			throw new RecordsUploaderFileParseException("Record at line " + lineNumber + " cannot be parsed correctly.",
+					exc);
+		}
+	}
+
+	private static String trimmedString(byte[] data, int start, int end) {
+		while (start < end && data[start] <= ' ' && data[start] >= 0) {
+			start++;
+		}
+		while (end > start && data[end - 1] <= ' ' && data[end - 1] >= 0) {
+			end--;
+		}
+		return start == end ? "" : new String(data, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	// ASCII digits parsed from the bytes, anything else left to Long.parseLong, so the accepted values are the same
+	private static long parseTimestamp(byte[] data, int start, int end) {
+		while (start < end && data[start] <= ' ' && data[start] >= 0) {
+			start++;
+		}
+		while (end > start && data[end - 1] <= ' ' && data[end - 1] >= 0) {
+			end--;
+		}
+		if (start == end) {
+			return 0;
+		}
+
+		boolean negative = data[start] == '-';
+		int digitsStart = negative || data[start] == '+' ? start + 1 : start;
+		// up to 18 digits cannot overflow
+		if (digitsStart < end && end - digitsStart <= 18) {
+			long result = 0;
+			int i = digitsStart;
+			while (i < end && data[i] >= '0' && data[i] <= '9') {
+				result = result * 10 + (data[i++] - '0');
+			}
+			if (i == end) {
+				return negative ? -result : result;
+			}
+		}
+		return Long.parseLong(new String(data, start, end - start, StandardCharsets.UTF_8));
+	}
+}
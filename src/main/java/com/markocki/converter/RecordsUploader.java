@@ -2,6 +2,7 @@ package com.markocki.converter;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,11 +13,76 @@ import com.markocki.model.RecordFactory;
 public class RecordsUploader {
 	public static List<Record> tryRetrieveRecords(BufferedReader reader)
 			throws IOException, RecordsUploaderFileParseException {
+		List<Record> result = new ArrayList<Record>();
+		tryRetrieveRecords(reader, result::add);
+		return result;
+	}
+
+	/**
+	 * Streams the records of the file to the sink as they are parsed. The sink
+	 * is committed once the whole file is validated, or rolled back when the
+	 * file turns out incorrect.
+	 */
+	public static void tryRetrieveRecords(BufferedReader reader, RecordSink sink)
+			throws IOException, RecordsUploaderFileParseException {
+		try {
+			retrieveRecords(reader, sink);
+			sink.commit();
+		} catch (IOException | RecordsUploaderFileParseException | RuntimeException exc) {
+			sink.rollback();
+			throw exc;
+		}
+	}
+
+	/**
+	 * Same as {@link #tryRetrieveRecords(BufferedReader, RecordSink)}, but
+	 * tokenizes the UTF-8 bytes of the file directly.
+	 */
+	public static void tryRetrieveRecords(InputStream in, RecordSink sink)
+			throws IOException, RecordsUploaderFileParseException {
+		try {
+			retrieveRecords(new RecordsTokenizer(in), sink);
+			sink.commit();
+		} catch (IOException | RecordsUploaderFileParseException | RuntimeException exc) {
+			sink.rollback();
+			throw exc;
+		}
+	}
+
+	private static void retrieveRecords(RecordsTokenizer tokenizer, RecordSink sink)
+			throws IOException, RecordsUploaderFileParseException {
+		// Per specification point 1a first line is a header of given structure
+		validateHeaderLine(tokenizer.nextLine() ? tokenizer.lineAsString() : null);
+
+		boolean emptyLineRead = false;
+
+		long lineNumber = 2; // header is the first line, so we read the next one
+		while (tokenizer.nextLine()) {
+			if (tokenizer.isBlankLine()) {
+				emptyLineRead = true;
+			} else {
+				if (!emptyLineRead) { // empty line expected only at the end of file
+					sink.accept(tokenizer.readRecord(lineNumber));
+				} else {
+					// only last line can be empty but got empty line followed by not empty one
+					throw notEmptyLineAfterEmptyOne(lineNumber);
+				}
+			}
+			lineNumber++;
+		}
+
+		// Per specification point 1b last (read) line must be empty, so checking that
+		if (!emptyLineRead) {
+			throw lastLineNotEmpty();
+		}
+	}
+
+	private static void retrieveRecords(BufferedReader reader, RecordSink sink)
+			throws IOException, RecordsUploaderFileParseException {
 		// Per specification point 1a first line is a header of given structure
 		String line = reader.readLine();
 		validateHeaderLine(line);
 
-		List<Record> result = new ArrayList<Record>();
 		boolean emptyLineRead = false;
 
 		long lineNumber = 2; // header is the first line, so we read the next one
@@ -25,27 +91,32 @@ public class RecordsUploader {
 				emptyLineRead = true;
 			} else {
 				if (!emptyLineRead) { // empty line expected only at the end of file
-					result.add(readInNextRecord(line, lineNumber));
+					sink.accept(readInNextRecord(line, lineNumber));
 					emptyLineRead = false;
 				} else {
 					// only last line can be empty but got empty line followed by not empty one
-					throw new RecordsUploaderFileParseException("Only last line in the file can be empty however line "
-							+ (lineNumber - 1) + "  was also empty, i.e. is following by not empty one.");
+					throw notEmptyLineAfterEmptyOne(lineNumber);
 				}
 			}
 			lineNumber++;
 		}
 
 		// Per specification point 1b last (read) line must be empty, so checking that
-		if (emptyLineRead) { //
-			return result;
-		} else {
-			throw new RecordsUploaderFileParseException("Last line in the file must be empty but was not.");
-
+		if (!emptyLineRead) {
+			throw lastLineNotEmpty();
 		}
 	}
+
+	static RecordsUploaderFileParseException notEmptyLineAfterEmptyOne(long lineNumber) {
+		return new RecordsUploaderFileParseException("Only last line in the file can be empty however line "
+				+ (lineNumber - 1) + "  was also empty, i.e. is following by not empty one.");
+	}
+
+	static RecordsUploaderFileParseException lastLineNotEmpty() {
+		return new RecordsUploaderFileParseException("Last line in the file must be empty but was not.");
+	}
 	
-	private static Record readInNextRecord(String line, long lineNumber) throws RecordsUploaderFileParseException {
+	static Record readInNextRecord(String line, long lineNumber) throws RecordsUploaderFileParseException {
 		// Per specification point 1 line must contains comma-separated values
 		
 		// a trick to make sure empty non required columns will be accepted
@@ -88,7 +159,7 @@ public class RecordsUploader {
 		}
 	}
 
-	private static void validateHeaderLine(String line) throws RecordsUploaderFileParseException {
+	static void validateHeaderLine(String line) throws RecordsUploaderFileParseException {
 		if (line != null && !"".equals(line.trim())) {
 
 			// Per specification point 1a we expect comma-separated data
@@ -0,0 +1,157 @@
+package com.markocki.converter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.markocki.model.Record;
+import com.markocki.model.RecordCreateException;
+import com.markocki.model.RecordFactory;
+
+/**
+ * Keeps the records of the file being parsed in a pending batch spooled to a
+ * temporary file and publishes them to the target sink only when committed,
+ * i.e. when the whole file turned out correct. So the upload stays
+ * all-or-nothing while the heap usage does not depend on the file size.
+ */
+public class StagedRecordSink implements RecordSink {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final RecordSink target;
+	private final File directory;
+
+	private File spoolFile;
+	private DataOutputStream spool;
+	// written by the parsing thread only, read for the progress of the upload
+	private volatile long staged;
+
+	public StagedRecordSink(RecordSink target, File directory) {
+		this.target = target;
+		this.directory = directory;
+	}
+
+	@Override
+	public void accept(Record record) throws IOException {
+		if (spool == null) {
+			spoolFile = File.createTempFile("upload", ".staged", directory);
+			spool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile), BUFFER_SIZE));
+		}
+
+		writeString(record.getPrimaryKey());
+		writeString(record.getName());
+		writeString(record.getDescription());
+		spool.writeLong(record.getUpdatedTimestamp());
+		staged++;
+	}
+
+	/**
+	 * @return number of the records accepted so far
+	 */
+	public long getStaged() {
+		return staged;
+	}
+
+	@Override
+	public void commit() throws IOException {
+		if (spool != null) {
+			spool.close();
+
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(spoolFile), BUFFER_SIZE));) {
+				// all staged records published at once, read while the target consumes them
+				target.acceptAll(() -> new StagedRecords(in));
+			} catch (UncheckedIOException exc) {
+				throw exc.getCause();
+			} finally {
+				deleteSpool();
+			}
+		}
+		target.commit();
+	}
+
+	@Override
+	public void rollback() {
+		deleteSpool();
+		target.rollback();
+	}
+
+	private void deleteSpool() {
+		if (spool != null) {
+			try {
+				spool.close();
+			} catch (IOException exc) {
+				// the file is removed anyway
+			}
+			spoolFile.delete();
+			spool = null;
+		}
+	}
+
+	// length-prefixed UTF-8, so unlike writeUTF there is no 64KB limit of the field
+	private void writeString(String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		spool.writeInt(bytes.length);
+		spool.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static class StagedRecords implements Iterator<Record> {
+		private final DataInputStream in;
+		private Record next;
+
+		StagedRecords(DataInputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				next = readNext();
+			}
+			return next != null;
+		}
+
+		@Override
+		public Record next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Record result = next;
+			next = null;
+			return result;
+		}
+
+		// null if all staged records were read
+		private Record readNext() {
+			try {
+				String primaryKey;
+				try {
+					primaryKey = readString(in);
+				} catch (EOFException exc) {
+					return null;
+				}
+				return RecordFactory.createRecord(primaryKey, readString(in), readString(in), in.readLong());
+			} catch (IOException exc) {
+				throw new UncheckedIOException(exc);
+			} catch (RecordCreateException exc) {
+				// staged records were already created once, so cannot happen
+				throw new UncheckedIOException(new IOException("Cannot publish the staged record", exc));
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.markocki.gson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import com.markocki.model.Record;
+
+/**
+ * JSON of the responses. Compact by default, pretty printed (for debugging)
+ * with -Dapp.json.pretty=true. Records, messages, upload statistics and
+ * exceptions are written by their adapters, so without the reflection.
+ */
+public class JsonOutput {
+	public static final boolean PRETTY = Boolean.getBoolean("app.json.pretty");
+
+	private static final RecordAdapter recordAdapter = new RecordAdapter();
+
+	// as Gson is thread safe we can have one and reuse it for all the responses
+	private static final Gson gson = createGson();
+
+	private static Gson createGson() {
+		GsonBuilder builder = new GsonBuilder().registerTypeHierarchyAdapter(Record.class, recordAdapter)
+				.registerTypeAdapter(SimpleMessage.class, new SimpleMessageAdapter())
+				.registerTypeAdapter(UploadStats.class, new UploadStatsAdapter())
+				.registerTypeHierarchyAdapter(Exception.class, new ExceptionAdapter());
+		if (PRETTY) {
+			builder.setPrettyPrinting();
+		}
+		return builder.create();
+	}
+
+	public static Gson gson() {
+		return gson;
+	}
+
+	public static String toJson(Record record) {
+		StringWriter result = new StringWriter();
+		try {
+			write(record, result);
+		} catch (IOException exc) {
+			// not thrown by StringWriter
+			throw new UncheckedIOException(exc);
+		}
+		return result.toString();
+	}
+
+	// UTF-8 bytes, as written to the response
+	public static byte[] toJsonBytes(Record record) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(128);
+		try {
+			write(record, result);
+		} catch (IOException exc) {
+			// not thrown by ByteArrayOutputStream
+			throw new UncheckedIOException(exc);
+		}
+		return result.toByteArray();
+	}
+
+	public static void write(Record record, OutputStream out) throws IOException {
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		write(record, writer);
+		writer.flush();
+	}
+
+	private static void write(Record record, Writer out) throws IOException {
+		JsonWriter writer = newWriter(out);
+		write(record, writer);
+		writer.flush();
+	}
+
+	public static void write(Record record, JsonWriter writer) throws IOException {
+		recordAdapter.write(writer, record);
+	}
+
+	// writes the same as Gson.toJson writes
+	public static JsonWriter newWriter(Writer out) {
+		JsonWriter writer = new JsonWriter(out);
+		writer.setHtmlSafe(true);
+		writer.setSerializeNulls(false);
+		if (PRETTY) {
+			writer.setIndent("  ");
+		}
+		return writer;
+	}
+}
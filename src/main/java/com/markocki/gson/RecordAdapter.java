@@ -0,0 +1,66 @@
+package com.markocki.gson;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.markocki.model.Record;
+import com.markocki.model.RecordCreateException;
+import com.markocki.model.RecordFactory;
+
+/**
+ * Record written without the reflection, same fields as Gson writes for
+ * RecordImpl.
+ */
+public class RecordAdapter extends TypeAdapter<Record> {
+	@Override
+	public void write(JsonWriter out, Record value) throws IOException {
+		out.beginObject();
+		out.name("primaryKey");
+		out.value(value.getPrimaryKey());
+		out.name("name");
+		out.value(value.getName());
+		out.name("description");
+		out.value(value.getDescription());
+		out.name("updatedTimestamp");
+		out.value(value.getUpdatedTimestamp());
+		out.endObject();
+	}
+
+	@Override
+	public Record read(JsonReader in) throws IOException {
+		String primaryKey = null;
+		String name = null;
+		String description = null;
+		long updatedTimestamp = 0;
+
+		in.beginObject();
+		while (in.hasNext()) {
+			switch (in.nextName()) {
+			case "primaryKey":
+				primaryKey = in.nextString();
+				break;
+			case "name":
+				name = in.nextString();
+				break;
+			case "description":
+				description = in.nextString();
+				break;
+			case "updatedTimestamp":
+				updatedTimestamp = in.nextLong();
+				break;
+			default:
+				in.skipValue();
+				break;
+			}
+		}
+		in.endObject();
+
+		try {
+			return RecordFactory.createRecord(primaryKey, name, description, updatedTimestamp);
+		} catch (RecordCreateException exc) {
+			throw new IOException(exc.getMessage(), exc);
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.markocki.gson;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+public class SimpleMessageAdapter extends TypeAdapter<SimpleMessage> {
+	@Override
+	public void write(JsonWriter out, SimpleMessage value) throws IOException {
+		out.beginObject();
+		out.name("message");
+		out.value(value.message);
+		out.endObject();
+	}
+
+	@Override
+	public SimpleMessage read(JsonReader in) throws IOException {
+		throw new IOException("Not implemented");
+	}
+}
@@ -0,0 +1,29 @@
+package com.markocki.gson;
+
+import java.util.List;
+
+/**
+ * Response of the successful upload.
+ */
+public class UploadStats {
+	String message;
+	long parsed;
+	long stored;
+	long duplicatesInFile;
+	long duplicatesInStorage;
+	long parseTimeMillis;
+	long storeTimeMillis;
+	List<String> duplicateKeys;
+
+	public UploadStats(String message, long parsed, long stored, long duplicatesInFile, long duplicatesInStorage,
+			long parseTimeMillis, long storeTimeMillis, List<String> duplicateKeys) {
+		this.message = message;
+		this.parsed = parsed;
+		this.stored = stored;
+		this.duplicatesInFile = duplicatesInFile;
+		this.duplicatesInStorage = duplicatesInStorage;
+		this.parseTimeMillis = parseTimeMillis;
+		this.storeTimeMillis = storeTimeMillis;
+		this.duplicateKeys = duplicateKeys;
+	}
+}
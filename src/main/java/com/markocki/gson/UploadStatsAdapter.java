@@ -0,0 +1,42 @@
+package com.markocki.gson;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+public class UploadStatsAdapter extends TypeAdapter<UploadStats> {
+	@Override
+	public void write(JsonWriter out, UploadStats value) throws IOException {
+		out.beginObject();
+		out.name("message");
+		out.value(value.message);
+		out.name("parsed");
+		out.value(value.parsed);
+		out.name("stored");
+		out.value(value.stored);
+		out.name("duplicatesInFile");
+		out.value(value.duplicatesInFile);
+		out.name("duplicatesInStorage");
+		out.value(value.duplicatesInStorage);
+		out.name("parseTimeMillis");
+		out.value(value.parseTimeMillis);
+		out.name("storeTimeMillis");
+		out.value(value.storeTimeMillis);
+		if (value.duplicateKeys != null) {
+			out.name("duplicateKeys");
+			out.beginArray();
+			for (String primaryKey : value.duplicateKeys) {
+				out.value(primaryKey);
+			}
+			out.endArray();
+		}
+		out.endObject();
+	}
+
+	@Override
+	public UploadStats read(JsonReader in) throws IOException {
+		throw new IOException("Not implemented");
+	}
+}
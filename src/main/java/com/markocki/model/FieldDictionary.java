@@ -0,0 +1,50 @@
+package com.markocki.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded dictionary of the field values, so the records of the same NAME or
+ * DESCRIPTION share one String instead of keeping a copy each. The values are
+ * added until the dictionary is full and never removed, so the values seen
+ * first are shared, like the few values of a low-cardinality field. The long
+ * values are never added, as they rarely repeat.
+ */
+class FieldDictionary {
+	private final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+	private final int maxSize;
+	private final int maxLength;
+
+	/**
+	 * @param maxSize   number of the values, 0 disables the dictionary
+	 * @param maxLength length of the longest value added
+	 */
+	FieldDictionary(int maxSize, int maxLength) {
+		this.maxSize = maxSize;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @return the value of the dictionary equal to the given one, the given
+	 *         one if there is none and the dictionary is full
+	 */
+	String intern(String value) {
+		if (value == null || maxSize == 0 || value.length() > maxLength) {
+			return value;
+		}
+		String result = values.get(value);
+		if (result != null) {
+			return result;
+		}
+		// may be exceeded by the values added at once, so the bound is approximate
+		if (values.size() >= maxSize) {
+			return value;
+		}
+		result = values.putIfAbsent(value, value);
+		return result != null ? result : value;
+	}
+
+	int size() {
+		return values.size();
+	}
+}
@@ -1,25 +1,82 @@
 package com.markocki.model;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.markocki.gson.JsonOutput;
 
 public class RecordFactory {
-	//as Gson is thread safe we can have one and reuse it for all Records.
-	static Gson gson = (new GsonBuilder()).setPrettyPrinting().create();
-	
-	
+	public static final String STRINGS_LAYOUT = "strings";
+	public static final String COMPACT_LAYOUT = "compact";
+
+	// how the records are kept on the heap, either STRINGS_LAYOUT or COMPACT_LAYOUT
+	private static final boolean compactLayout = isCompactLayout(
+			System.getProperty("app.record.layout", STRINGS_LAYOUT));
+	// number of the distinct NAME and DESCRIPTION values shared by the records, 0 disables the sharing
+	private static final int dictionarySize = Integer.getInteger("app.record.dictionary.size", 65536);
+	// length (in characters) of the longest shared value
+	private static final int dictionaryMaxLength = Integer.getInteger("app.record.dictionary.maxLength", 64);
+	static final FieldDictionary dictionary = new FieldDictionary(dictionarySize, dictionaryMaxLength);
+
+	/*
+	 * The repeating NAME and DESCRIPTION values are shared, as the records keep
+	 * them for good. The compact records keep their own bytes instead, smaller
+	 * unless the values repeat.
+	 */
 	public static Record createRecord(String primaryKey, String name, String description, long updatedTimestamp)
 			throws RecordCreateException {
 		if (Objects.isNull(primaryKey) || "".equals(primaryKey.trim())) {
 			throw new RecordCreateException("Primary key cannot be empty or null");
+		} else if (compactLayout) {
+			return new CompactRecord(primaryKey, name, description, updatedTimestamp);
+		} else {
+			return new RecordImpl(primaryKey, dictionary.intern(name), dictionary.intern(description),
+					updatedTimestamp);
+		}
+	}
+
+	/*
+	 * Of the UTF-8 bytes of NAME and DESCRIPTION (null for null), as read from
+	 * the storage, so the compact records take them as they are instead of
+	 * decoding and encoding them again.
+	 */
+	public static Record createEncodedRecord(String primaryKey, byte[] name, byte[] description,
+			long updatedTimestamp) throws RecordCreateException {
+		if (Objects.isNull(primaryKey) || "".equals(primaryKey.trim())) {
+			throw new RecordCreateException("Primary key cannot be empty or null");
+		} else if (compactLayout) {
+			return new CompactRecord(primaryKey, name, description, updatedTimestamp);
+		} else {
+			return new RecordImpl(primaryKey, dictionary.intern(decode(name)), dictionary.intern(decode(description)),
+					updatedTimestamp);
+		}
+	}
+
+	public static boolean isCompactLayout() {
+		return compactLayout;
+	}
+
+	private static byte[] encode(String value) {
+		return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+	}
+
+	private static String decode(byte[] value) {
+		return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+	}
+
+	static boolean isCompactLayout(String layout) {
+		if (COMPACT_LAYOUT.equals(layout)) {
+			return true;
+		} else if (STRINGS_LAYOUT.equals(layout)) {
+			return false;
 		} else {
-			return new RecordImpl(primaryKey, name, description, updatedTimestamp);
+			throw new IllegalArgumentException("Unknown record layout: " + layout);
 		}
 	}
 
@@ -32,7 +89,7 @@ public class RecordFactory {
 
 		@Override
 		public String toString() {
-			return RecordFactory.gson.toJson(this) ;
+			return JsonOutput.toJson(this);
 		}
 
 		public RecordImpl(String primaryKey, String name, String description, long updatedTimestamp) {
@@ -67,9 +124,181 @@ public class RecordFactory {
 
 		private void readObject(ObjectInputStream ois) throws IOException {
 			this.primaryKey = ois.readUTF();
-			this.name = ois.readUTF();
-			this.description = ois.readUTF();
+			this.name = dictionary.intern(ois.readUTF());
+			this.description = dictionary.intern(ois.readUTF());
 			this.updatedTimestamp = ois.readLong();
 		}
 	}
+
+	/**
+	 * Record of a single byte array instead of the Strings of NAME and
+	 * DESCRIPTION, decoded by each call of the getters, so about half of the
+	 * heap of {@link RecordImpl} for the short, mostly ASCII values. The
+	 * primary key stays a String, as it is the key of the storage maps and
+	 * indexes anyway, so the record shares it with them.
+	 * <p>
+	 * Layout: name length, name, description length, description (UTF-8),
+	 * timestamp (8 bytes, big-endian). The lengths are varints of the length
+	 * plus one, 0 for null.
+	 */
+	static class CompactRecord implements Record, Serializable {
+		private String primaryKey;
+		private byte[] data;
+		private static final long serialVersionUID = 1L;
+		// the lengths of the null name and description and the timestamp
+		private static final int MIN_DATA_LENGTH = 1 + 1 + 8;
+		private static final int READ_CHUNK_LENGTH = 8192;
+
+		CompactRecord(String primaryKey, String name, String description, long updatedTimestamp) {
+			this(primaryKey, encode(name), encode(description), updatedTimestamp);
+		}
+
+		CompactRecord(String primaryKey, byte[] nameBytes, byte[] descriptionBytes, long updatedTimestamp) {
+			byte[] data = new byte[lengthOf(nameBytes) + lengthOf(descriptionBytes) + 8];
+
+			int position = putValue(data, 0, nameBytes);
+			position = putValue(data, position, descriptionBytes);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				data[position++] = (byte) (updatedTimestamp >>> shift);
+			}
+
+			this.primaryKey = primaryKey;
+			this.data = data;
+		}
+
+		@Override
+		public String toString() {
+			return JsonOutput.toJson(this);
+		}
+
+		public String getPrimaryKey() {
+			return primaryKey;
+		}
+
+		public String getName() {
+			return readValue(0);
+		}
+
+		public String getDescription() {
+			return readValue(skipValue(data, 0));
+		}
+
+		public long getUpdatedTimestamp() {
+			long result = 0;
+			for (int index = data.length - 8; index < data.length; index++) {
+				result = (result << 8) | (data[index] & 0xFF);
+			}
+			return result;
+		}
+
+		private String readValue(int position) {
+			int length = readLength(data, position);
+			return length != 0
+					? new String(data, position + sizeOfLength(length), length - 1, StandardCharsets.UTF_8)
+					: null;
+		}
+
+		// the position after the value starting at the given one
+		private static int skipValue(byte[] data, int position) {
+			int length = readLength(data, position);
+			return position + sizeOfLength(length) + Math.max(0, length - 1);
+		}
+
+		private static int readLength(byte[] data, int position) {
+			int result = 0;
+			int shift = 0;
+			byte current;
+			do {
+				current = data[position++];
+				result |= (current & 0x7F) << shift;
+				shift += 7;
+			} while (current < 0);
+			return result;
+		}
+
+		private static int sizeOfLength(int length) {
+			int result = 1;
+			while ((length >>>= 7) != 0) {
+				result++;
+			}
+			return result;
+		}
+
+		// of the value with its length
+		private static int lengthOf(byte[] value) {
+			return value != null ? sizeOfLength(value.length + 1) + value.length : 1;
+		}
+
+		private static int putValue(byte[] data, int position, byte[] value) {
+			int length = value != null ? value.length + 1 : 0;
+			while ((length & ~0x7F) != 0) {
+				data[position++] = (byte) ((length & 0x7F) | 0x80);
+				length >>>= 7;
+			}
+			data[position++] = (byte) length;
+
+			if (value != null) {
+				System.arraycopy(value, 0, data, position, value.length);
+				position += value.length;
+			}
+			return position;
+		}
+
+		// the encoded fields copied as they are
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			out.writeUTF(primaryKey);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+
+		private void readObject(ObjectInputStream ois) throws IOException {
+			this.primaryKey = ois.readUTF();
+			int length = ois.readInt();
+			if (length < MIN_DATA_LENGTH) {
+				throw new InvalidObjectException("Invalid length of record data " + length);
+			}
+			byte[] data = readData(ois, length);
+			if (!isValid(data)) {
+				throw new InvalidObjectException("Invalid record data of PRIMARY_KEY=" + primaryKey);
+			}
+			this.data = data;
+		}
+
+		// read in chunks, so a corrupted length ends the stream before it is allocated
+		private static byte[] readData(ObjectInputStream ois, int length) throws IOException {
+			byte[] result = new byte[Math.min(length, READ_CHUNK_LENGTH)];
+			ois.readFully(result);
+			while (result.length < length) {
+				int read = result.length;
+				result = Arrays.copyOf(result, (int) Math.min(length, 2L * read));
+				ois.readFully(result, read, result.length - read);
+			}
+			return result;
+		}
+
+		// the name and the description within the data, followed by the timestamp only
+		private static boolean isValid(byte[] data) {
+			int position = 0;
+			for (int value = 0; value < 2; value++) {
+				int start = position;
+				int length = 0;
+				int shift = 0;
+				byte current;
+				do {
+					if (position >= data.length - 8 || shift > 28) {
+						return false;
+					}
+					current = data[position++];
+					length |= (current & 0x7F) << shift;
+					shift += 7;
+				} while (current < 0);
+				if (length < 0 || position - start != sizeOfLength(length)
+						|| Math.max(0, length - 1) > data.length - 8 - position) {
+					return false;
+				}
+				position += Math.max(0, length - 1);
+			}
+			return position == data.length - 8;
+		}
+	}
 }
@@ -0,0 +1,12 @@
+package com.markocki.storage;
+
+/**
+ * Outcome of the delete done as one atomic operation.
+ */
+public enum DeleteResult {
+	REMOVED,
+	// no record of the primary key
+	NOT_PRESENT,
+	// the record of the primary key is there, but not the expected one
+	CONDITION_NOT_MET
+}
@@ -0,0 +1,48 @@
+package com.markocki.storage;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of writing the snapshot in the background, so it does not
+ * take the disk bandwidth from the write-ahead log and the request handling.
+ * The rate is kept on average since the start of the first write, so a
+ * throttle is created per snapshot, the idle time between the snapshots would
+ * be a burst of writes otherwise.
+ */
+class IoThrottle {
+	private final long bytesPerSecond;
+
+	// guarded by this
+	private long start = -1;
+	private long bytes;
+
+	IoThrottle(long bytesPerSecond) {
+		if (bytesPerSecond <= 0) {
+			throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+		}
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Waits until the given number of bytes can be written without exceeding
+	 * the rate.
+	 */
+	synchronized void acquire(long length) throws InterruptedIOException {
+		long now = System.nanoTime();
+		if (start < 0) {
+			start = now;
+		}
+		long due = start + (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+		bytes += length;
+
+		if (due > now) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(due - now);
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+		}
+	}
+}
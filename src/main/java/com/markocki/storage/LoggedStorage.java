@@ -0,0 +1,346 @@
+package com.markocki.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+import com.markocki.model.Record;
+
+/**
+ * Base of the storages persisted through the snapshot files and the
+ * write-ahead log.
+ * <p>
+ * The snapshot is split into segments by the hash code of the primary key.
+ * Modifications are counted per segment, so a snapshot writes again only the
+ * segments modified since they were last written.
+ * <p>
+ * A modification is logged, applied and counted between
+ * {@link #beginModification()} and {@link #endModification()}, so the log is
+ * never rotated in the middle of it.
+ * <p>
+ * The records are optionally indexed by {@link SecondaryIndexes}, maintained
+ * together with the log.
+ */
+abstract class LoggedStorage implements Storage, WriteAheadLog.Target {
+	// null when the storage is not logged, i.e. persisted during shutdown only
+	private volatile WriteAheadLog log;
+	// null when the records are not indexed
+	private volatile SecondaryIndexes indexes;
+	// shared by the modifications in progress, exclusive for the rotation of the log
+	private final ReentrantReadWriteLock rotationLock = new ReentrantReadWriteLock();
+
+	private final int segments;
+	private final AtomicLongArray modifications;
+	// modifications of the segment its snapshot file contains, -1 if there is no such file
+	private final long[] persisted;
+
+	LoggedStorage(int segments) {
+		if (segments < 1) {
+			throw new IllegalArgumentException("Number of segments must be positive: " + segments);
+		}
+		this.segments = segments;
+		this.modifications = new AtomicLongArray(segments);
+		this.persisted = new long[segments];
+		Arrays.fill(persisted, -1);
+	}
+
+	/**
+	 * Records of the segments written by a snapshot, split into the segments
+	 * when the snapshot starts, so the records are read once per snapshot, not
+	 * once per segment. Only the segments being written are taken, the others
+	 * are not to be read. Closed once the snapshot is written or failed, as the
+	 * storage may hold resources for it until then.
+	 */
+	interface SnapshotRecords extends Closeable {
+		/**
+		 * Records of the segment, taken no later than its {@link #size(int)},
+		 * so the ones stored meanwhile are left for the next snapshot.
+		 */
+		Iterable<Record> getRecords(int segment);
+
+		/**
+		 * Upper bound of the number of records of the segment, so the index of
+		 * its snapshot file is sized by it.
+		 */
+		long size(int segment);
+
+		@Override
+		void close();
+	}
+
+	/**
+	 * @param written the segments being written, by segment
+	 */
+	abstract SnapshotRecords snapshotRecords(boolean[] written);
+
+	/**
+	 * All the records, weakly consistent.
+	 */
+	abstract Iterable<Record> getAllRecords();
+
+	int getSegments() {
+		return segments;
+	}
+
+	int segmentOf(String primaryKey) {
+		return segmentOf(primaryKey.hashCode(), segments);
+	}
+
+	// the hash code mixed first, as the close keys differ in the low bits only
+	static int segmentOf(int hashCode, int segments) {
+		int hash = hashCode;
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return (int) (((hash & 0xFFFFFFFFL) * segments) >>> 32);
+	}
+
+	/**
+	 * Counts the modification of the key. To be called once the modification
+	 * is visible to the readers, within {@link #beginModification()}, so the
+	 * counts taken by the rotation of the log are of the modifications the
+	 * rotated log contains, all of them visible to the snapshot.
+	 */
+	void modified(String primaryKey) {
+		modifications.incrementAndGet(segmentOf(primaryKey));
+	}
+
+	/**
+	 * @return number of the modifications of each segment so far
+	 */
+	long[] getModifications() {
+		long[] result = new long[segments];
+		for (int segment = 0; segment < segments; segment++) {
+			result[segment] = modifications.get(segment);
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if the snapshot file of the segment contains the given
+	 *         number of its modifications
+	 */
+	synchronized boolean isPersisted(int segment, long modificationsToWrite) {
+		return persisted[segment] == modificationsToWrite;
+	}
+
+	/**
+	 * Marks the snapshot file of the segment written, containing the given
+	 * number of modifications (taken before the segment was written).
+	 */
+	synchronized void persisted(int segment, long modificationsWritten) {
+		persisted[segment] = modificationsWritten;
+	}
+
+	/**
+	 * @return true if every segment has its snapshot file
+	 */
+	synchronized boolean isFullyPersisted() {
+		for (long modificationsWritten : persisted) {
+			if (modificationsWritten < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Indexes all the records, to be called once the storage is loaded and its
+	 * log replayed, before it is modified by the others.
+	 */
+	void buildIndexes() {
+		indexes = SecondaryIndexes.build(getAllRecords());
+	}
+
+	@Override
+	public boolean isIndexed() {
+		return indexes != null;
+	}
+
+	// to be called while the key of the record is locked, like log
+	void indexed(Record record) {
+		SecondaryIndexes current = indexes;
+		if (current != null) {
+			current.add(record);
+		}
+	}
+
+	// to be called while the key of the record is locked, like log
+	void unindexed(Record record) {
+		SecondaryIndexes current = indexes;
+		if (current != null) {
+			current.remove(record);
+		}
+	}
+
+	@Override
+	public Iterable<Record> findAll() {
+		return getAllRecords();
+	}
+
+	@Override
+	public Iterable<Record> findUpdatedSince(long updatedSince, String afterPrimaryKey) {
+		SecondaryIndexes current = getIndexes();
+		// the entry of a record modified meanwhile is skipped, the record is at its new one
+		return () -> resolved(current.updatedSince(updatedSince, afterPrimaryKey), entry -> entry.primaryKey,
+				(entry, record) -> record.getUpdatedTimestamp() == entry.updatedTimestamp);
+	}
+
+	@Override
+	public Iterable<Record> findByName(String name, String afterPrimaryKey) {
+		SecondaryIndexes current = getIndexes();
+		return () -> resolved(current.byName(name, afterPrimaryKey), primaryKey -> primaryKey,
+				(primaryKey, record) -> name.equals(record.getName()));
+	}
+
+	private SecondaryIndexes getIndexes() {
+		SecondaryIndexes current = indexes;
+		if (current == null) {
+			throw new UnsupportedOperationException("Records are not indexed");
+		}
+		return current;
+	}
+
+	// the records of the index entries, looked up one by one while iterated
+	private <T> Iterator<Record> resolved(Iterator<T> entries, Function<T, String> primaryKey,
+			BiPredicate<T, Record> current) {
+		return new Iterator<Record>() {
+			private Record next = advance();
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Record next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Record result = next;
+				next = advance();
+				return result;
+			}
+
+			private Record advance() {
+				while (entries.hasNext()) {
+					T entry = entries.next();
+					Record record = find(primaryKey.apply(entry)).orElse(null);
+					if (record != null && current.test(entry, record)) {
+						return record;
+					}
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Starts a modification, must be followed by {@link #endModification()}.
+	 * Taken before the lock of the key, as the rotation waiting for the
+	 * modifications in progress holds off the new ones.
+	 */
+	void beginModification() {
+		rotationLock.readLock().lock();
+	}
+
+	void endModification() {
+		rotationLock.readLock().unlock();
+	}
+
+	/**
+	 * Rotates the log while no modification is in progress.
+	 *
+	 * @return number of the modifications of each segment the rotated log
+	 *         contains, i.e. the ones the snapshot must write
+	 */
+	long[] rotateLog(WriteAheadLog.Rotation rotation) throws IOException {
+		rotationLock.writeLock().lock();
+		try {
+			rotation.rotate();
+			return getModifications();
+		} finally {
+			rotationLock.writeLock().unlock();
+		}
+	}
+
+	void attachLog(WriteAheadLog log) {
+		this.log = log;
+	}
+
+	boolean hasLog() {
+		return log != null;
+	}
+
+	WriteAheadLog getLog() {
+		return log;
+	}
+
+	void closeLog() throws IOException {
+		WriteAheadLog toClose = log;
+		log = null;
+		toClose.close();
+	}
+
+	/**
+	 * Logs the modification if the storage is logged. Must be called while the
+	 * modified key is locked, so the log keeps the order of its modifications,
+	 * and within {@link #beginModification()}.
+	 */
+	void log(LogAction action) {
+		WriteAheadLog current = log;
+		if (current != null) {
+			try {
+				action.run(current);
+			} catch (IOException exc) {
+				throw new UncheckedIOException(exc);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the modifications logged so far are durable, if the
+	 * storage is logged, so they survive a crash once acknowledged. To be
+	 * called after the modification, with no lock held, as it takes up to the
+	 * sync interval of the log.
+	 */
+	void awaitLogged() {
+		WriteAheadLog current = log;
+		if (current != null) {
+			try {
+				current.awaitSync();
+			} catch (IOException exc) {
+				throw new UncheckedIOException(exc);
+			}
+		}
+	}
+
+	DeleteResult awaitLogged(DeleteResult result) {
+		if (result == DeleteResult.REMOVED) {
+			awaitLogged();
+		}
+		return result;
+	}
+
+	// awaitLogged() for the records stored, which are rejected if not durable
+	void awaitStored() throws RecordStoreException {
+		try {
+			awaitLogged();
+		} catch (UncheckedIOException exc) {
+			throw new RecordStoreException("Records cannot be logged: " + exc.getCause().getMessage());
+		}
+	}
+
+	interface LogAction {
+		void run(WriteAheadLog log) throws IOException;
+	}
+}
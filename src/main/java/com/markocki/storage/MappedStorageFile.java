@@ -0,0 +1,515 @@
+package com.markocki.storage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.markocki.model.Record;
+import com.markocki.model.RecordCreateException;
+import com.markocki.model.RecordFactory;
+
+/**
+ * Read-only storage file accessed through memory mapping, so opening it does
+ * not depend on its size and the records stay outside of the heap until they
+ * are looked up.
+ * <p>
+ * File layout (all numbers big-endian):
+ * <pre>
+ * header (64 bytes): magic, version, chunk shift, slot bits, record count, data offset, data end,
+ *                    dictionary offset, dictionary size
+ * index:             2^slotBits slots of 16 bytes: record offset (0 = empty slot), key hash code, unused
+ * data:              records: key length, key, name length (-1 = null), name, description length, description, timestamp
+ * dictionary:        offsets of the name and description values of the dictionary (version 2)
+ * </pre>
+ * The name and description values repeated across the records are written
+ * once: the first record of a value keeps it, the later ones only refer to it
+ * by its dictionary id as the length -(id + 2). The dictionary of a file is
+ * bounded and takes only the short values, so the others stay in the records.
+ * Version 1 files have no dictionary.
+ * The index is an open-addressing hash table with linear probing. As a single
+ * mapping cannot exceed 2GB the file is mapped in chunks of 2^chunkShift
+ * bytes and no slot nor record crosses the chunk boundary (records are padded
+ * with zeros to the next chunk if needed).
+ */
+class MappedStorageFile implements Iterable<Record> {
+	static final int MAGIC = 0x53524442; // "SRDB"
+	static final int VERSION = 2;
+	private static final int VERSION_WITHOUT_DICTIONARY = 1;
+	static final int DEFAULT_CHUNK_SHIFT = 30;
+
+	private static final int HEADER_LENGTH = 64;
+	private static final int SLOT_LENGTH = 16;
+	private static final int MIN_SLOT_BITS = 3;
+	private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+	private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+	private static final int MAX_DICTIONARY_SIZE = 65536;
+	// in bytes, a reference saves the value less its 4 bytes of the length
+	private static final int MAX_DICTIONARY_VALUE_LENGTH = 64;
+	private static final int NULL_LENGTH = -1;
+
+	private final ByteBuffer[] chunks;
+	private final int chunkShift;
+	private final long chunkMask;
+	private final int slotBits;
+	private final long recordCount;
+	private final long dataOffset;
+	private final long dataEnd;
+	// of the values of the dictionary, read as they are by the compact records
+	private final long[] dictionaryOffsets;
+	// decoded values of the dictionary, null for the compact records
+	private final String[] dictionary;
+
+	private MappedStorageFile(ByteBuffer[] chunks, int chunkShift, int slotBits, long recordCount, long dataOffset,
+			long dataEnd, long[] dictionaryOffsets) {
+		this.chunks = chunks;
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1L << chunkShift) - 1;
+		this.slotBits = slotBits;
+		this.recordCount = recordCount;
+		this.dataOffset = dataOffset;
+		this.dataEnd = dataEnd;
+		this.dictionaryOffsets = dictionaryOffsets;
+		this.dictionary = !RecordFactory.isCompactLayout() ? decodeDictionary() : null;
+	}
+
+	/**
+	 * Checks whether the file is in this format, as opposed to the former
+	 * object stream dump.
+	 */
+	static boolean isMappedStorageFile(File file) throws IOException {
+		if (file.length() < HEADER_LENGTH) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file));) {
+			return in.readInt() == MAGIC;
+		}
+	}
+
+	static MappedStorageFile open(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel();) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+				// keep reading the header
+			}
+			header.flip();
+
+			if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC) {
+				throw new IOException("File " + file + " is not a storage file");
+			}
+			int version = header.getInt();
+			if (version != VERSION && version != VERSION_WITHOUT_DICTIONARY) {
+				throw new IOException("Unsupported storage file version " + version + " of " + file);
+			}
+			int chunkShift = header.getInt();
+			int slotBits = header.getInt();
+			long recordCount = header.getLong();
+			long dataOffset = header.getLong();
+			long dataEnd = header.getLong();
+			long dictionaryOffset = version != VERSION_WITHOUT_DICTIONARY ? header.getLong() : dataEnd;
+			int dictionarySize = version != VERSION_WITHOUT_DICTIONARY ? header.getInt() : 0;
+
+			long length = channel.size();
+			if (dataEnd > length || dictionaryOffset + dictionarySize * 8L > length) {
+				throw new IOException("Storage file " + file + " is truncated");
+			}
+
+			// the mapping stays valid after the channel is closed
+			ByteBuffer[] chunks = map(channel, MapMode.READ_ONLY, length, chunkShift);
+			return new MappedStorageFile(chunks, chunkShift, slotBits, recordCount, dataOffset, dataEnd,
+					readDictionaryOffsets(channel, dictionaryOffset, dictionarySize));
+		}
+	}
+
+	private static long[] readDictionaryOffsets(FileChannel channel, long offset, int size) throws IOException {
+		ByteBuffer offsets = ByteBuffer.allocate(size * 8);
+		while (offsets.hasRemaining() && channel.read(offsets, offset + offsets.position()) >= 0) {
+			// keep reading the offsets
+		}
+		offsets.flip();
+
+		long[] result = new long[size];
+		offsets.asLongBuffer().get(result);
+		return result;
+	}
+
+	// the values are decoded once, so the records read share them
+	private String[] decodeDictionary() {
+		String[] result = new String[dictionaryOffsets.length];
+		for (int id = 0; id < result.length; id++) {
+			result[id] = readString(dictionaryValue(id));
+		}
+		return result;
+	}
+
+	private ByteBuffer dictionaryValue(int id) {
+		ByteBuffer value = chunks[(int) (dictionaryOffsets[id] >>> chunkShift)].duplicate();
+		value.position((int) (dictionaryOffsets[id] & chunkMask));
+		return value;
+	}
+
+	/**
+	 * Writes the records into a new file.
+	 *
+	 * @param expectedCount the expected number of records, used to size the
+	 *                      index, the actual number can exceed it by half
+	 */
+	static void write(Iterator<Record> records, long expectedCount, File file, int chunkShift) throws IOException {
+		write(records, expectedCount, file, chunkShift, null);
+	}
+
+	/**
+	 * Writes the records into a new file at the rate limited by the given
+	 * throttle, null if not limited.
+	 */
+	static void write(Iterator<Record> records, long expectedCount, File file, int chunkShift, IoThrottle throttle)
+			throws IOException {
+		int slotBits = MIN_SLOT_BITS;
+		while ((1L << slotBits) < expectedCount * 2) {
+			slotBits++;
+		}
+		long slotCount = 1L << slotBits;
+		long maxRecordCount = slotCount * 3 / 4;
+		long chunkSize = 1L << chunkShift;
+		long dataOffset = HEADER_LENGTH + slotCount * SLOT_LENGTH;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel();) {
+			raf.setLength(0);
+			ByteBuffer[] index = map(channel, MapMode.READ_WRITE, dataOffset, chunkShift);
+			MappedStorageFile table = new MappedStorageFile(index, chunkShift, slotBits, 0, dataOffset, dataOffset,
+					new long[0]);
+			// ids of the values written so far, and the offsets of their first occurrences
+			Map<String, Integer> dictionaryIds = new HashMap<String, Integer>();
+			long[] dictionaryOffsets = new long[16];
+
+			ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+			long bufferPosition = dataOffset;
+			long position = dataOffset;
+			long recordCount = 0;
+
+			while (records.hasNext()) {
+				Record record = records.next();
+				byte[] key = record.getPrimaryKey().getBytes(StandardCharsets.UTF_8);
+				Integer nameId = dictionaryIds.get(record.getName());
+				Integer descriptionId = dictionaryIds.get(record.getDescription());
+				byte[] name = nameId == null ? encode(record.getName()) : null;
+				byte[] description = descriptionId == null ? encode(record.getDescription()) : null;
+				int length = 4 + key.length + 4 + (name == null ? 0 : name.length) + 4
+						+ (description == null ? 0 : description.length) + 8;
+
+				if (length > chunkSize || length > WRITE_BUFFER_SIZE) {
+					throw new IOException("Record for PRIMARY_KEY=" + record.getPrimaryKey() + " is too long to be stored");
+				}
+				if (++recordCount > maxRecordCount) {
+					throw new IOException("Too many records to be stored, expected " + expectedCount);
+				}
+
+				// records never cross the chunk boundary, the skipped bytes are left zeroed by the file system
+				long remainingInChunk = chunkSize - (position & (chunkSize - 1));
+				if (length > remainingInChunk) {
+					flush(channel, buffer, bufferPosition, throttle);
+					position += remainingInChunk;
+					bufferPosition = position;
+				} else if (length > buffer.remaining()) {
+					flush(channel, buffer, bufferPosition, throttle);
+					bufferPosition = position;
+				}
+
+				buffer.putInt(key.length).put(key);
+				long namePosition = position + 4 + key.length;
+				putBytes(buffer, name, nameId);
+				long descriptionPosition = namePosition + 4 + (name == null ? 0 : name.length);
+				putBytes(buffer, description, descriptionId);
+				buffer.putLong(record.getUpdatedTimestamp());
+
+				// added only once written, as the same value can be both the name and the description
+				if (isDictionaryValue(name, dictionaryIds.size())) {
+					dictionaryOffsets = addToDictionary(dictionaryIds, dictionaryOffsets, record.getName(), namePosition);
+				}
+				if (isDictionaryValue(description, dictionaryIds.size())
+						&& !dictionaryIds.containsKey(record.getDescription())) {
+					dictionaryOffsets = addToDictionary(dictionaryIds, dictionaryOffsets, record.getDescription(),
+							descriptionPosition);
+				}
+
+				table.insert(record.getPrimaryKey().hashCode(), position);
+				position += length;
+			}
+			flush(channel, buffer, bufferPosition, throttle);
+
+			// the dictionary after the data, never mapped, so it may cross the chunk boundary
+			long dictionaryOffset = position;
+			for (int id = 0; id < dictionaryIds.size(); id++) {
+				if (buffer.remaining() < 8) {
+					flush(channel, buffer, dictionaryOffset + id * 8L - buffer.position(), throttle);
+				}
+				buffer.putLong(dictionaryOffsets[id]);
+			}
+			flush(channel, buffer, dictionaryOffset + dictionaryIds.size() * 8L - buffer.position(), throttle);
+
+			ByteBuffer header = index[0];
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(8, chunkShift);
+			header.putInt(12, slotBits);
+			header.putLong(16, recordCount);
+			header.putLong(24, dataOffset);
+			header.putLong(32, position);
+			header.putLong(40, dictionaryOffset);
+			header.putInt(48, dictionaryIds.size());
+
+			for (ByteBuffer chunk : index) {
+				((MappedByteBuffer) chunk).force();
+			}
+			channel.force(true);
+		}
+	}
+
+	long size() {
+		return recordCount;
+	}
+
+	boolean contains(String primaryKey) {
+		return findOffset(primaryKey) != 0;
+	}
+
+	Record find(String primaryKey) {
+		long offset = findOffset(primaryKey);
+		return offset != 0 ? readRecord(offset) : null;
+	}
+
+	private long findOffset(String primaryKey) {
+		int hashCode = primaryKey.hashCode();
+		byte[] key = null;
+
+		long mask = (1L << slotBits) - 1;
+		for (long slot = slotOf(hashCode); ; slot = (slot + 1) & mask) {
+			long slotPosition = HEADER_LENGTH + slot * SLOT_LENGTH;
+			ByteBuffer chunk = chunks[(int) (slotPosition >>> chunkShift)];
+			int index = (int) (slotPosition & chunkMask);
+
+			long offset = chunk.getLong(index);
+			if (offset == 0) {
+				return 0;
+			}
+			if (chunk.getInt(index + 8) == hashCode) {
+				if (key == null) {
+					key = primaryKey.getBytes(StandardCharsets.UTF_8);
+				}
+				if (keyEquals(offset, key)) {
+					return offset;
+				}
+			}
+		}
+	}
+
+	private void insert(int hashCode, long offset) {
+		long mask = (1L << slotBits) - 1;
+		for (long slot = slotOf(hashCode); ; slot = (slot + 1) & mask) {
+			long slotPosition = HEADER_LENGTH + slot * SLOT_LENGTH;
+			ByteBuffer chunk = chunks[(int) (slotPosition >>> chunkShift)];
+			int index = (int) (slotPosition & chunkMask);
+
+			if (chunk.getLong(index) == 0) {
+				chunk.putLong(index, offset);
+				chunk.putInt(index + 8, hashCode);
+				return;
+			}
+		}
+	}
+
+	private long slotOf(int hashCode) {
+		return ((hashCode & 0xFFFFFFFFL) * GOLDEN_RATIO) >>> (64 - slotBits);
+	}
+
+	private boolean keyEquals(long offset, byte[] key) {
+		ByteBuffer chunk = chunks[(int) (offset >>> chunkShift)];
+		int index = (int) (offset & chunkMask);
+
+		if (chunk.getInt(index) != key.length) {
+			return false;
+		}
+		index += 4;
+		for (int i = 0; i < key.length; i++) {
+			if (chunk.get(index + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Record readRecord(long offset) {
+		ByteBuffer record = chunks[(int) (offset >>> chunkShift)].duplicate();
+		record.position((int) (offset & chunkMask));
+
+		String primaryKey = readString(record);
+
+		try {
+			if (dictionary == null) {
+				// the compact records take the bytes as they are
+				byte[] name = readFieldBytes(record);
+				byte[] description = readFieldBytes(record);
+				return RecordFactory.createEncodedRecord(primaryKey, name, description, record.getLong());
+			}
+			String name = readField(record);
+			String description = readField(record);
+			return RecordFactory.createRecord(primaryKey, name, description, record.getLong());
+		} catch (RecordCreateException exc) {
+			// only valid records are written
+			throw new IllegalStateException("Invalid record found in the storage file", exc);
+		}
+	}
+
+	// the length of the record starting at the position of given buffer
+	private static int recordLength(ByteBuffer buffer) {
+		int position = buffer.position();
+		int length = 0;
+		for (int field = 0; field < 3; field++) {
+			int fieldLength = Math.max(0, buffer.getInt(position + length));
+			length += 4 + fieldLength;
+		}
+		return length + 8;
+	}
+
+	@Override
+	public Iterator<Record> iterator() {
+		return new Iterator<Record>() {
+			private long position = nextRecord(dataOffset);
+
+			@Override
+			public boolean hasNext() {
+				return position < dataEnd;
+			}
+
+			@Override
+			public Record next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Record result = readRecord(position);
+
+				ByteBuffer chunk = chunks[(int) (position >>> chunkShift)].duplicate();
+				chunk.position((int) (position & chunkMask));
+				position = nextRecord(position + recordLength(chunk));
+
+				return result;
+			}
+		};
+	}
+
+	// skips the padding at the end of a chunk, a record always has a non-empty primary key
+	private long nextRecord(long position) {
+		if (position < dataEnd) {
+			long chunkRemaining = (1L << chunkShift) - (position & chunkMask);
+			if (chunkRemaining < 4
+					|| chunks[(int) (position >>> chunkShift)].getInt((int) (position & chunkMask)) == 0) {
+				return position + chunkRemaining;
+			}
+		}
+		return position;
+	}
+
+	private static ByteBuffer[] map(FileChannel channel, MapMode mode, long length, int chunkShift)
+			throws IOException {
+		long chunkSize = 1L << chunkShift;
+		int chunkCount = (int) Math.max(1, (length + chunkSize - 1) >>> chunkShift);
+
+		ByteBuffer[] result = new ByteBuffer[chunkCount];
+		for (int i = 0; i < chunkCount; i++) {
+			long start = i * chunkSize;
+			result[i] = channel.map(mode, start, Math.min(chunkSize, length - start));
+		}
+		return result;
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer, long position, IoThrottle throttle)
+			throws IOException {
+		buffer.flip();
+		if (throttle != null) {
+			throttle.acquire(buffer.remaining());
+		}
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		buffer.clear();
+	}
+
+	private static byte[] encode(String value) {
+		return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+	}
+
+	private static boolean isDictionaryValue(byte[] value, int dictionarySize) {
+		return value != null && value.length <= MAX_DICTIONARY_VALUE_LENGTH && dictionarySize < MAX_DICTIONARY_SIZE;
+	}
+
+	private static long[] addToDictionary(Map<String, Integer> dictionaryIds, long[] dictionaryOffsets, String value,
+			long offset) {
+		int id = dictionaryIds.size();
+		if (id == dictionaryOffsets.length) {
+			dictionaryOffsets = Arrays.copyOf(dictionaryOffsets, id * 2);
+		}
+		dictionaryOffsets[id] = offset;
+		dictionaryIds.put(value, id);
+		return dictionaryOffsets;
+	}
+
+	// the value, or the reference to the dictionary if written before
+	private static void putBytes(ByteBuffer buffer, byte[] value, Integer dictionaryId) {
+		if (dictionaryId != null) {
+			buffer.putInt(-(dictionaryId + 2));
+		} else if (value != null) {
+			buffer.putInt(value.length).put(value);
+		} else {
+			buffer.putInt(NULL_LENGTH);
+		}
+	}
+
+	private String readField(ByteBuffer buffer) {
+		int length = buffer.getInt(buffer.position());
+		if (length < NULL_LENGTH) {
+			buffer.position(buffer.position() + 4);
+			return dictionary[-length - 2];
+		}
+		return readString(buffer);
+	}
+
+	private byte[] readFieldBytes(ByteBuffer buffer) {
+		int length = buffer.getInt(buffer.position());
+		if (length < NULL_LENGTH) {
+			buffer.position(buffer.position() + 4);
+			return readBytes(dictionaryValue(-length - 2));
+		}
+		return readBytes(buffer);
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] value = new byte[length];
+		buffer.get(value);
+		return value;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] value = new byte[length];
+		buffer.get(value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,660 @@
+package com.markocki.storage;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
+
+import com.markocki.model.Record;
+import com.markocki.model.RecordCreateException;
+import com.markocki.model.RecordFactory;
+
+/**
+ * Storage keeping the records outside of the heap, for the data sets where
+ * the per-record objects of {@link StorageFactory.SimpleStorage} (the strings
+ * and the record itself) cause long GC pauses.
+ * <p>
+ * The records are appended to direct memory slabs, encoded the same way as in
+ * the storage file. They are found through an open-addressing (linear
+ * probing) index held in two primitive arrays: record addresses and key hash
+ * codes. A {@link Record} is created only when looked up. Space of the deleted
+ * records is reclaimed by copying the live records to new slabs once the
+ * garbage exceeds the live data.
+ * <p>
+ * Lookups are optimistic reads validated against the modifications, which
+ * are exclusive.
+ */
+class OffHeapStorage extends LoggedStorage {
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+	// records saved under one write lock, so the lookups are not held off for the whole upload
+	private static final int SAVE_ALL_BATCH_SIZE = 1024;
+
+	private final int slabSize;
+	private final StampedLock lock = new StampedLock();
+	// snapshots in progress, the slabs cannot be compacted meanwhile
+	private final AtomicInteger activeSnapshots = new AtomicInteger();
+
+	// all below guarded by lock
+	private ByteBuffer[] slabs = new ByteBuffer[0];
+	// (slab index + 1) << 32 | offset in the slab, 0 means empty slot
+	private long[] addresses = new long[INITIAL_CAPACITY];
+	private int[] hashCodes = new int[INITIAL_CAPACITY];
+	private int size;
+	private long liveBytes;
+	private long garbageBytes;
+
+	OffHeapStorage(int slabSize) {
+		this(slabSize, 1);
+	}
+
+	OffHeapStorage(int slabSize, int segments) {
+		super(segments);
+		this.slabSize = slabSize;
+	}
+
+	@Override
+	public Record findByPrimaryKey(String primaryKey) throws NoRecordFoundException {
+		return result(findRecord(primaryKey), primaryKey);
+	}
+
+	@Override
+	public Optional<Record> find(String primaryKey) {
+		return Optional.ofNullable(findRecord(primaryKey));
+	}
+
+	// null if there is no record
+	private Record findRecord(String primaryKey) {
+		byte[] key = primaryKey.getBytes(StandardCharsets.UTF_8);
+		int hashCode = primaryKey.hashCode();
+
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				Record result = find(key, hashCode);
+				if (lock.validate(stamp)) {
+					return result;
+				}
+			} catch (RuntimeException exc) {
+				// inconsistent state read while being modified, read again under the lock
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			return find(key, hashCode);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	// all the keys looked up under the lock taken once
+	@Override
+	public List<Record> findByPrimaryKeys(List<String> primaryKeys) {
+		byte[][] keys = new byte[primaryKeys.size()][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = primaryKeys.get(i).getBytes(StandardCharsets.UTF_8);
+		}
+
+		List<Record> result = new ArrayList<Record>(keys.length);
+		long stamp = lock.readLock();
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				result.add(find(keys[i], primaryKeys.get(i).hashCode()));
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		return result;
+	}
+
+	private static Record result(Record record, String primaryKey) throws NoRecordFoundException {
+		if (record != null) {
+			return record;
+		} else {
+			throw new NoRecordFoundException("No record for PRIMARY_KEY=" + primaryKey);
+		}
+	}
+
+	@Override
+	public Record delete(Record recordToDelete) throws NoRecordFoundException {
+		String primaryKey = recordToDelete.getPrimaryKey();
+
+		Record[] removed = new Record[1];
+		// the removed record is always read, so it can be returned
+		awaitLogged(remove(primaryKey, record -> {
+			removed[0] = record;
+			return true;
+		}));
+
+		if (removed[0] != null) {
+			return removed[0];
+		} else {
+			throw new NoRecordFoundException("No record for PRIMARY_KEY=" + primaryKey);
+		}
+	}
+
+	@Override
+	public DeleteResult deleteByPrimaryKey(String primaryKey) {
+		return awaitLogged(remove(primaryKey, null));
+	}
+
+	@Override
+	public DeleteResult deleteIf(String primaryKey, Predicate<Record> condition) {
+		return awaitLogged(remove(primaryKey, condition));
+	}
+
+	// no condition means the record is removed unconditionally
+	private DeleteResult remove(String primaryKey, Predicate<Record> condition) {
+		byte[] key = primaryKey.getBytes(StandardCharsets.UTF_8);
+
+		beginModification();
+		long stamp = lock.writeLock();
+		try {
+			int slot = findSlot(slabs, addresses, hashCodes, key, primaryKey.hashCode());
+			if (slot < 0) {
+				return DeleteResult.NOT_PRESENT;
+			}
+			// read only if needed, i.e. for the condition or the indexes
+			Record existing = condition != null || isIndexed() ? readRecord(slabs, addresses[slot]) : null;
+			if (condition != null && !condition.test(existing)) {
+				return DeleteResult.CONDITION_NOT_MET;
+			}
+
+			log(wal -> wal.logDelete(primaryKey));
+			if (existing != null) {
+				unindexed(existing);
+			}
+			remove(slot);
+			modified(primaryKey);
+
+			return DeleteResult.REMOVED;
+		} finally {
+			lock.unlockWrite(stamp);
+			endModification();
+		}
+	}
+
+	@Override
+	public void save(Record recordToStore) throws RecordStoreException {
+		beginModification();
+		long stamp = lock.writeLock();
+		try {
+			if (!saveIfAbsent(recordToStore)) {
+				throw new RecordStoreException(
+						"Record for PRIMARY_KEY=" + recordToStore.getPrimaryKey() + " already exists");
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+			endModification();
+		}
+		awaitStored();
+	}
+
+	@Override
+	public SaveAllResult saveAll(Iterable<Record> records, SaveAllResult result) throws RecordStoreException {
+		int accepted = result.getAccepted();
+		Record[] batch = new Record[SAVE_ALL_BATCH_SIZE];
+		Iterator<Record> iterator = records.iterator();
+		while (iterator.hasNext()) {
+			// the records are read before the lock is taken, so the lock is held only while they are stored
+			int batchSize = 0;
+			while (batchSize < SAVE_ALL_BATCH_SIZE && iterator.hasNext()) {
+				batch[batchSize++] = iterator.next();
+			}
+
+			beginModification();
+			long stamp = lock.writeLock();
+			try {
+				for (int i = 0; i < batchSize; i++) {
+					if (saveIfAbsent(batch[i])) {
+						result.accepted();
+					} else {
+						result.duplicate(batch[i].getPrimaryKey());
+					}
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+				endModification();
+			}
+		}
+		// once for all the records
+		if (result.getAccepted() > accepted) {
+			awaitStored();
+		}
+		return result;
+	}
+
+	// to be called under the write lock, within beginModification
+	private boolean saveIfAbsent(Record recordToStore) throws RecordStoreException {
+		String primaryKey = recordToStore.getPrimaryKey();
+		byte[] key = primaryKey.getBytes(StandardCharsets.UTF_8);
+
+		// we do not accept duplicates, nor updates to the currently existing records
+		if (findSlot(slabs, addresses, hashCodes, key, primaryKey.hashCode()) >= 0) {
+			return false;
+		}
+
+		// inserted first, so a record rejected by the insert (e.g. too long) is never logged, then replayed
+		insert(key, recordToStore);
+		try {
+			log(wal -> wal.logSave(recordToStore));
+		} catch (UncheckedIOException exc) {
+			remove(findSlot(slabs, addresses, hashCodes, key, primaryKey.hashCode()));
+			throw new RecordStoreException("Record for PRIMARY_KEY=" + primaryKey + " cannot be logged: "
+					+ exc.getCause().getMessage());
+		}
+		indexed(recordToStore);
+		modified(primaryKey);
+		return true;
+	}
+
+	@Override
+	public void replaySave(Record record) {
+		String primaryKey = record.getPrimaryKey();
+		byte[] key = primaryKey.getBytes(StandardCharsets.UTF_8);
+
+		long stamp = lock.writeLock();
+		try {
+			int slot = findSlot(slabs, addresses, hashCodes, key, primaryKey.hashCode());
+			if (slot >= 0) {
+				remove(slot);
+			}
+			insert(key, record);
+			modified(primaryKey);
+		} catch (RecordStoreException exc) {
+			throw new IllegalStateException(exc.getMessage(), exc);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public void replayDelete(String primaryKey) {
+		byte[] key = primaryKey.getBytes(StandardCharsets.UTF_8);
+
+		long stamp = lock.writeLock();
+		try {
+			int slot = findSlot(slabs, addresses, hashCodes, key, primaryKey.hashCode());
+			if (slot >= 0) {
+				remove(slot);
+			}
+			modified(primaryKey);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Point-in-time view: the addresses of the live records are copied. The
+	 * slabs may be compacted meanwhile, as the iteration may be abandoned (e.g.
+	 * by the client of the export), the slabs being iterated are kept by the
+	 * iterator until it is collected.
+	 */
+	@Override
+	Iterable<Record> getAllRecords() {
+		return () -> {
+			long[] liveAddresses;
+			ByteBuffer[] liveSlabs;
+
+			long stamp = lock.readLock();
+			try {
+				liveSlabs = slabs;
+				liveAddresses = new long[size];
+				int count = 0;
+				for (long address : addresses) {
+					if (address != 0) {
+						liveAddresses[count++] = address;
+					}
+				}
+			} finally {
+				lock.unlockRead(stamp);
+			}
+			return records(liveSlabs, liveAddresses);
+		};
+	}
+
+	/**
+	 * Point-in-time view of the written segments, like {@link #getAllRecords()}:
+	 * the addresses are split into the segments by the hash codes of the index,
+	 * without reading the records. The slabs are not compacted until the
+	 * snapshot is closed, so the direct memory of the slabs being written is
+	 * not taken twice.
+	 */
+	@Override
+	SnapshotRecords snapshotRecords(boolean[] written) {
+		int segments = getSegments();
+		long[][] segmentAddresses = new long[segments][];
+		ByteBuffer[] liveSlabs;
+
+		long stamp = lock.readLock();
+		try {
+			liveSlabs = slabs;
+			int[] counts = new int[segments];
+			for (int slot = 0; slot < addresses.length; slot++) {
+				if (addresses[slot] != 0) {
+					int segment = segmentOf(hashCodes[slot], segments);
+					if (written[segment]) {
+						counts[segment]++;
+					}
+				}
+			}
+			for (int segment = 0; segment < segments; segment++) {
+				segmentAddresses[segment] = new long[counts[segment]];
+				counts[segment] = 0;
+			}
+			for (int slot = 0; slot < addresses.length; slot++) {
+				if (addresses[slot] != 0) {
+					int segment = segmentOf(hashCodes[slot], segments);
+					if (written[segment]) {
+						segmentAddresses[segment][counts[segment]++] = addresses[slot];
+					}
+				}
+			}
+			activeSnapshots.incrementAndGet();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+
+		return new SnapshotRecords() {
+			private boolean closed;
+
+			@Override
+			public Iterable<Record> getRecords(int segment) {
+				return () -> records(liveSlabs, segmentAddresses[segment]);
+			}
+
+			@Override
+			public long size(int segment) {
+				return segmentAddresses[segment].length;
+			}
+
+			@Override
+			public synchronized void close() {
+				if (!closed) {
+					closed = true;
+					activeSnapshots.decrementAndGet();
+				}
+			}
+		};
+	}
+
+	private Iterator<Record> records(ByteBuffer[] liveSlabs, long[] liveAddresses) {
+		return new Iterator<Record>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < liveAddresses.length;
+			}
+
+			@Override
+			public Record next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return readRecord(liveSlabs, liveAddresses[next++]);
+			}
+		};
+	}
+
+	@Override
+	public long size() {
+		return estimatedSize();
+	}
+
+	long estimatedSize() {
+		long stamp = lock.readLock();
+		try {
+			return size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Direct memory taken by the slabs, in bytes.
+	 */
+	long offHeapSize() {
+		long stamp = lock.readLock();
+		try {
+			return (long) slabs.length * slabSize;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private Record find(byte[] key, int hashCode) {
+		// read once, as the optimistic read may run concurrently with a modification
+		ByteBuffer[] currentSlabs = slabs;
+		long[] currentAddresses = addresses;
+		int slot = findSlot(currentSlabs, currentAddresses, hashCodes, key, hashCode);
+		return slot >= 0 ? readRecord(currentSlabs, currentAddresses[slot]) : null;
+	}
+
+	private static int findSlot(ByteBuffer[] slabs, long[] addresses, int[] hashCodes, byte[] key, int hashCode) {
+		int mask = addresses.length - 1;
+		int slot = slotOf(hashCode, addresses.length);
+
+		// bounded, in case of an optimistic read of the index being modified
+		for (int probe = 0; probe < addresses.length; probe++, slot = (slot + 1) & mask) {
+			long address = addresses[slot];
+			if (address == 0) {
+				return -1;
+			}
+			if (hashCodes[slot] == hashCode && keyEquals(slabs, address, key)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	// must be called while holding the write lock
+	private void insert(byte[] key, Record record) throws RecordStoreException {
+		byte[] name = encode(record.getName());
+		byte[] description = encode(record.getDescription());
+		int length = 4 + key.length + 4 + (name == null ? 0 : name.length) + 4
+				+ (description == null ? 0 : description.length) + 8;
+
+		if (length > slabSize) {
+			throw new RecordStoreException(
+					"Record for PRIMARY_KEY=" + record.getPrimaryKey() + " is too long to be stored");
+		}
+
+		ByteBuffer slab = slabs.length > 0 ? slabs[slabs.length - 1] : null;
+		if (slab == null || slab.remaining() < length) {
+			slab = ByteBuffer.allocateDirect(slabSize);
+			ByteBuffer[] newSlabs = Arrays.copyOf(slabs, slabs.length + 1);
+			newSlabs[slabs.length] = slab;
+			slabs = newSlabs;
+		}
+
+		long address = ((long) slabs.length << 32) | slab.position();
+		slab.putInt(key.length).put(key);
+		putBytes(slab, name);
+		putBytes(slab, description);
+		slab.putLong(record.getUpdatedTimestamp());
+		liveBytes += length;
+
+		if ((size + 1) * 4L > addresses.length * 3L) {
+			resize(addresses.length * 2);
+		}
+		int mask = addresses.length - 1;
+		int hashCode = record.getPrimaryKey().hashCode();
+		int slot = slotOf(hashCode, addresses.length);
+		while (addresses[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		addresses[slot] = address;
+		hashCodes[slot] = hashCode;
+		size++;
+	}
+
+	// must be called while holding the write lock, backward shift deletion so no tombstones are needed
+	private void remove(int slot) {
+		int length = recordLength(slabs, addresses[slot]);
+		liveBytes -= length;
+		garbageBytes += length;
+
+		int mask = addresses.length - 1;
+		int hole = slot;
+		for (int next = (hole + 1) & mask; addresses[next] != 0; next = (next + 1) & mask) {
+			int home = slotOf(hashCodes[next], addresses.length);
+			// the entry can be moved to the hole if its home slot is not between the hole and itself
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				addresses[hole] = addresses[next];
+				hashCodes[hole] = hashCodes[next];
+				hole = next;
+			}
+		}
+		addresses[hole] = 0;
+		hashCodes[hole] = 0;
+		size--;
+
+		if (garbageBytes > liveBytes && garbageBytes > slabSize && activeSnapshots.get() == 0) {
+			compactSlabs();
+		}
+	}
+
+	// must be called while holding the write lock
+	private void resize(int capacity) {
+		long[] oldAddresses = addresses;
+		int[] oldHashCodes = hashCodes;
+		long[] newAddresses = new long[capacity];
+		int[] newHashCodes = new int[capacity];
+
+		int mask = capacity - 1;
+		for (int i = 0; i < oldAddresses.length; i++) {
+			if (oldAddresses[i] != 0) {
+				int slot = slotOf(oldHashCodes[i], capacity);
+				while (newAddresses[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				newAddresses[slot] = oldAddresses[i];
+				newHashCodes[slot] = oldHashCodes[i];
+			}
+		}
+
+		addresses = newAddresses;
+		hashCodes = newHashCodes;
+	}
+
+	// must be called while holding the write lock, copies the live records to new slabs
+	private void compactSlabs() {
+		ByteBuffer[] oldSlabs = slabs;
+		ByteBuffer[] newSlabs = new ByteBuffer[0];
+		ByteBuffer slab = null;
+
+		for (int i = 0; i < addresses.length; i++) {
+			if (addresses[i] != 0) {
+				int length = recordLength(oldSlabs, addresses[i]);
+				if (slab == null || slab.remaining() < length) {
+					slab = ByteBuffer.allocateDirect(slabSize);
+					newSlabs = Arrays.copyOf(newSlabs, newSlabs.length + 1);
+					newSlabs[newSlabs.length - 1] = slab;
+				}
+
+				ByteBuffer record = slice(oldSlabs, addresses[i]);
+				record.limit(record.position() + length);
+				addresses[i] = ((long) newSlabs.length << 32) | slab.position();
+				slab.put(record);
+			}
+		}
+
+		slabs = newSlabs;
+		garbageBytes = 0;
+	}
+
+	private static int slotOf(int hashCode, int capacity) {
+		return (int) (((hashCode & 0xFFFFFFFFL) * GOLDEN_RATIO) >>> (64 - Integer.numberOfTrailingZeros(capacity)));
+	}
+
+	private static ByteBuffer slice(ByteBuffer[] slabs, long address) {
+		ByteBuffer result = slabs[(int) (address >>> 32) - 1].duplicate();
+		result.limit(result.capacity());
+		result.position((int) address);
+		return result;
+	}
+
+	private static boolean keyEquals(ByteBuffer[] slabs, long address, byte[] key) {
+		ByteBuffer slab = slabs[(int) (address >>> 32) - 1];
+		int index = (int) address;
+
+		if (slab.getInt(index) != key.length) {
+			return false;
+		}
+		index += 4;
+		for (int i = 0; i < key.length; i++) {
+			if (slab.get(index + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int recordLength(ByteBuffer[] slabs, long address) {
+		ByteBuffer slab = slabs[(int) (address >>> 32) - 1];
+		int index = (int) address;
+		int length = 0;
+		for (int field = 0; field < 3; field++) {
+			length += 4 + Math.max(0, slab.getInt(index + length));
+		}
+		return length + 8;
+	}
+
+	private static Record readRecord(ByteBuffer[] slabs, long address) {
+		ByteBuffer record = slice(slabs, address);
+
+		String primaryKey = readString(record);
+		// the compact records take the bytes as they are
+		byte[] name = readBytes(record);
+		byte[] description = readBytes(record);
+		long updatedTimestamp = record.getLong();
+
+		try {
+			return RecordFactory.createEncodedRecord(primaryKey, name, description, updatedTimestamp);
+		} catch (RecordCreateException exc) {
+			// only valid records are stored, so read while being modified
+			throw new IllegalStateException("Invalid record read", exc);
+		}
+	}
+
+	private static byte[] encode(String value) {
+		return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] value) {
+		if (value != null) {
+			buffer.putInt(value.length).put(value);
+		} else {
+			buffer.putInt(-1);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] value = readBytes(buffer);
+		return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > buffer.remaining()) {
+			// only possible when read while being modified
+			throw new IllegalStateException("Invalid field length " + length);
+		}
+		byte[] value = new byte[length];
+		buffer.get(value);
+		return value;
+	}
+}
@@ -0,0 +1,263 @@
+package com.markocki.storage;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import com.markocki.model.Record;
+
+/**
+ * Storage keeping the records in the order of the primary keys, so the keys
+ * can be scanned by ranges, e.g. all the keys of a prefix of the hierarchical
+ * keys. The point lookups take O(log n) instead of the O(1) of
+ * {@link StorageFactory.SimpleStorage}.
+ * <p>
+ * The records are read without the locks. The modifications of a key are
+ * exclusive by a lock of the stripe of the key, as the map operations of the
+ * skip list may apply their functions more than once, so they cannot log the
+ * modification themselves.
+ */
+class OrderedStorage extends LoggedStorage {
+	private static final int LOCK_STRIPES = 1024;
+
+	private final ConcurrentSkipListMap<String, Record> theStorage = new ConcurrentSkipListMap<String, Record>();
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	// by segment, changed while the key is locked, so exact once the modifications are finished
+	private final LongAdder[] sizes;
+
+	OrderedStorage(int segments) {
+		super(segments);
+		for (int stripe = 0; stripe < LOCK_STRIPES; stripe++) {
+			locks[stripe] = new Object();
+		}
+		sizes = new LongAdder[segments];
+		for (int segment = 0; segment < segments; segment++) {
+			sizes[segment] = new LongAdder();
+		}
+	}
+
+	private Object lockOf(String primaryKey) {
+		return locks[primaryKey.hashCode() & (LOCK_STRIPES - 1)];
+	}
+
+	@Override
+	public long size() {
+		long result = 0;
+		for (LongAdder size : sizes) {
+			result += size.sum();
+		}
+		return result;
+	}
+
+	@Override
+	public Record findByPrimaryKey(String primaryKey) throws NoRecordFoundException {
+		Record result = theStorage.get(primaryKey);
+		if (result != null) {
+			return result;
+		} else {
+			throw new NoRecordFoundException("No record for PRIMARY_KEY=" + primaryKey);
+		}
+	}
+
+	@Override
+	public Optional<Record> find(String primaryKey) {
+		return Optional.ofNullable(theStorage.get(primaryKey));
+	}
+
+	@Override
+	public Record delete(Record recordToDelete) throws NoRecordFoundException {
+		String primaryKey = recordToDelete.getPrimaryKey();
+
+		Record[] removed = new Record[1];
+		awaitLogged(remove(primaryKey, null, removed));
+
+		if (removed[0] != null) {
+			return removed[0];
+		} else {
+			throw new NoRecordFoundException("No record for PRIMARY_KEY=" + primaryKey);
+		}
+	}
+
+	@Override
+	public DeleteResult deleteByPrimaryKey(String primaryKey) {
+		return awaitLogged(remove(primaryKey, null, new Record[1]));
+	}
+
+	@Override
+	public DeleteResult deleteIf(String primaryKey, Predicate<Record> condition) {
+		return awaitLogged(remove(primaryKey, condition, new Record[1]));
+	}
+
+	// no condition means the record is removed unconditionally
+	private DeleteResult remove(String primaryKey, Predicate<Record> condition, Record[] removed) {
+		beginModification();
+		try {
+			synchronized (lockOf(primaryKey)) {
+				Record existing = theStorage.get(primaryKey);
+				if (existing == null) {
+					return DeleteResult.NOT_PRESENT;
+				}
+				if (condition != null && !condition.test(existing)) {
+					return DeleteResult.CONDITION_NOT_MET;
+				}
+
+				log(wal -> wal.logDelete(primaryKey));
+				unindexed(existing);
+				theStorage.remove(primaryKey);
+				sizes[segmentOf(primaryKey)].decrement();
+				modified(primaryKey);
+				removed[0] = existing;
+				return DeleteResult.REMOVED;
+			}
+		} finally {
+			endModification();
+		}
+	}
+
+	@Override
+	public void save(Record recordToStore) throws RecordStoreException {
+		if (!saveIfAbsent(recordToStore)) {
+			throw new RecordStoreException(
+					"Record for PRIMARY_KEY=" + recordToStore.getPrimaryKey() + " already exists");
+		}
+		awaitStored();
+	}
+
+	@Override
+	public SaveAllResult saveAll(Iterable<Record> records, SaveAllResult result) throws RecordStoreException {
+		int accepted = result.getAccepted();
+		for (Record record : records) {
+			if (saveIfAbsent(record)) {
+				result.accepted();
+			} else {
+				result.duplicate(record.getPrimaryKey());
+			}
+		}
+		// once for all the records
+		if (result.getAccepted() > accepted) {
+			awaitStored();
+		}
+		return result;
+	}
+
+	private boolean saveIfAbsent(Record recordToStore) throws RecordStoreException {
+		String primaryKey = recordToStore.getPrimaryKey();
+
+		beginModification();
+		try {
+			synchronized (lockOf(primaryKey)) {
+				// we do not accept duplicates, nor updates to the currently existing records
+				if (theStorage.containsKey(primaryKey)) {
+					return false;
+				}
+
+				try {
+					log(wal -> wal.logSave(recordToStore));
+				} catch (UncheckedIOException exc) {
+					throw new RecordStoreException("Record for PRIMARY_KEY=" + primaryKey + " cannot be logged: "
+							+ exc.getCause().getMessage());
+				}
+				indexed(recordToStore);
+				theStorage.put(primaryKey, recordToStore);
+				sizes[segmentOf(primaryKey)].increment();
+				modified(primaryKey);
+				return true;
+			}
+		} finally {
+			endModification();
+		}
+	}
+
+	@Override
+	public void replaySave(Record record) {
+		String primaryKey = record.getPrimaryKey();
+		synchronized (lockOf(primaryKey)) {
+			if (theStorage.put(primaryKey, record) == null) {
+				sizes[segmentOf(primaryKey)].increment();
+			}
+			modified(primaryKey);
+		}
+	}
+
+	@Override
+	public void replayDelete(String primaryKey) {
+		synchronized (lockOf(primaryKey)) {
+			if (theStorage.remove(primaryKey) != null) {
+				sizes[segmentOf(primaryKey)].decrement();
+			}
+			modified(primaryKey);
+		}
+	}
+
+	@Override
+	public boolean isOrdered() {
+		return true;
+	}
+
+	@Override
+	public Iterable<Record> findByPrimaryKeyRange(String fromPrimaryKey, boolean fromInclusive, String toPrimaryKey) {
+		// e.g. the last page read already, which the sub maps take for an inconsistent range
+		if (fromPrimaryKey != null && toPrimaryKey != null && fromPrimaryKey.compareTo(toPrimaryKey) >= 0) {
+			return Collections.emptyList();
+		}
+		NavigableMap<String, Record> range = theStorage;
+		if (fromPrimaryKey != null) {
+			range = range.tailMap(fromPrimaryKey, fromInclusive);
+		}
+		if (toPrimaryKey != null) {
+			range = range.headMap(toPrimaryKey, false);
+		}
+		return range.values();
+	}
+
+	/**
+	 * The records of the written segments are split into them by one pass over
+	 * all the keys, as the segments are mixed in the order of the keys. No pass
+	 * is made if no segment is written.
+	 */
+	@Override
+	SnapshotRecords snapshotRecords(boolean[] written) {
+		List<List<Record>> segments = new ArrayList<List<Record>>(getSegments());
+		boolean anyWritten = false;
+		for (int segment = 0; segment < getSegments(); segment++) {
+			segments.add(written[segment] ? new ArrayList<Record>((int) sizes[segment].sum())
+					: Collections.<Record>emptyList());
+			anyWritten |= written[segment];
+		}
+		if (anyWritten) {
+			for (Record record : theStorage.values()) {
+				int segment = segmentOf(record.getPrimaryKey());
+				if (written[segment]) {
+					segments.get(segment).add(record);
+				}
+			}
+		}
+
+		return new SnapshotRecords() {
+			@Override
+			public Iterable<Record> getRecords(int segment) {
+				return segments.get(segment);
+			}
+
+			@Override
+			public long size(int segment) {
+				return segments.get(segment).size();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	Iterable<Record> getAllRecords() {
+		return theStorage.values();
+	}
+}
@@ -0,0 +1,71 @@
+package com.markocki.storage;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-record results of {@link Storage#saveAll(Iterable)}, the records
+ * identified by their position in the saved ones. Only the duplicates are
+ * remembered, their keys up to the given number, so the result of a big
+ * upload stays small.
+ * <p>
+ * Can be given to many saveAll calls, the positions then continue.
+ */
+public class SaveAllResult {
+	private final BitSet duplicates = new BitSet();
+	private final int maxDuplicateKeys;
+	private final List<String> duplicateKeys = new ArrayList<String>();
+	private int records;
+
+	public SaveAllResult() {
+		this(0);
+	}
+
+	public SaveAllResult(int maxDuplicateKeys) {
+		this.maxDuplicateKeys = maxDuplicateKeys;
+	}
+
+	public void accepted() {
+		records++;
+	}
+
+	public void duplicate(String primaryKey) {
+		duplicates.set(records++);
+		if (duplicateKeys.size() < maxDuplicateKeys) {
+			duplicateKeys.add(primaryKey);
+		}
+	}
+
+	public int getRecords() {
+		return records;
+	}
+
+	public int getAccepted() {
+		return records - duplicates.cardinality();
+	}
+
+	public int getDuplicates() {
+		return duplicates.cardinality();
+	}
+
+	/**
+	 * @return true if the record of the position was not stored, because the
+	 *         record of its primary key already existed
+	 */
+	public boolean isDuplicate(int index) {
+		if (index < 0 || index >= records) {
+			throw new IndexOutOfBoundsException("No record of index " + index + ", saved " + records);
+		}
+		return duplicates.get(index);
+	}
+
+	/**
+	 * @return keys of the first duplicates, at most the number given to the
+	 *         constructor
+	 */
+	public List<String> getDuplicateKeys() {
+		return Collections.unmodifiableList(duplicateKeys);
+	}
+}
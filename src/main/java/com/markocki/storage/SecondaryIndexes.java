@@ -0,0 +1,127 @@
+package com.markocki.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.markocki.model.Record;
+
+/**
+ * Indexes of the records by the update time (sorted, so it can be scanned by
+ * ranges) and by the name (hashed, the primary keys of a name sorted). Only
+ * the primary keys are indexed, the records are looked up in the storage.
+ * <p>
+ * Maintained by the storage while the modified key is locked, so the entries
+ * of a key follow the order of its modifications. Read without the locks,
+ * weakly consistent, like the iterators of the concurrent collections.
+ */
+class SecondaryIndexes {
+	private final NavigableSet<Entry> byUpdatedTimestamp = new ConcurrentSkipListSet<Entry>();
+	private final ConcurrentMap<String, NavigableSet<String>> byName = new ConcurrentHashMap<String, NavigableSet<String>>();
+
+	/**
+	 * @return the indexes of the records, sorted first, as the skip lists are
+	 *         built several times faster in their order than in the random
+	 *         order of the storage
+	 */
+	static SecondaryIndexes build(Iterable<Record> records) {
+		List<Entry> timestamps = new ArrayList<Entry>();
+		Map<String, List<String>> names = new HashMap<String, List<String>>();
+		for (Record record : records) {
+			timestamps.add(new Entry(record.getUpdatedTimestamp(), record.getPrimaryKey()));
+			if (record.getName() != null) {
+				names.computeIfAbsent(record.getName(), name -> new ArrayList<String>()).add(record.getPrimaryKey());
+			}
+		}
+
+		SecondaryIndexes result = new SecondaryIndexes();
+		Collections.sort(timestamps);
+		result.byUpdatedTimestamp.addAll(timestamps);
+		for (Map.Entry<String, List<String>> name : names.entrySet()) {
+			Collections.sort(name.getValue());
+			result.byName.put(name.getKey(), new ConcurrentSkipListSet<String>(name.getValue()));
+		}
+		return result;
+	}
+
+	void add(Record record) {
+		String primaryKey = record.getPrimaryKey();
+		byUpdatedTimestamp.add(new Entry(record.getUpdatedTimestamp(), primaryKey));
+		if (record.getName() != null) {
+			// within the map operation, so the set is not removed as empty meanwhile
+			byName.compute(record.getName(), (name, keys) -> {
+				NavigableSet<String> result = keys != null ? keys : new ConcurrentSkipListSet<String>();
+				result.add(primaryKey);
+				return result;
+			});
+		}
+	}
+
+	void remove(Record record) {
+		String primaryKey = record.getPrimaryKey();
+		byUpdatedTimestamp.remove(new Entry(record.getUpdatedTimestamp(), primaryKey));
+		if (record.getName() != null) {
+			byName.computeIfPresent(record.getName(), (name, keys) -> {
+				keys.remove(primaryKey);
+				return keys.isEmpty() ? null : keys;
+			});
+		}
+	}
+
+	/**
+	 * @param afterPrimaryKey the keys updated exactly at updatedSince only
+	 *                        after this one, all of them if null
+	 * @return the entries updated at or after the given time, in the order of
+	 *         the update time and the primary key
+	 */
+	Iterator<Entry> updatedSince(long updatedSince, String afterPrimaryKey) {
+		// no primary key is empty, so it is before all the keys of the time
+		Entry from = new Entry(updatedSince, afterPrimaryKey != null ? afterPrimaryKey : "");
+		return byUpdatedTimestamp.tailSet(from, afterPrimaryKey == null).iterator();
+	}
+
+	/**
+	 * @param afterPrimaryKey the keys only after this one, all of them if null
+	 * @return the primary keys of the records of the name, in their order
+	 */
+	Iterator<String> byName(String name, String afterPrimaryKey) {
+		NavigableSet<String> keys = byName.get(name);
+		if (keys == null) {
+			return Collections.<String>emptyIterator();
+		}
+		return (afterPrimaryKey != null ? keys.tailSet(afterPrimaryKey, false) : keys).iterator();
+	}
+
+	static class Entry implements Comparable<Entry> {
+		final long updatedTimestamp;
+		final String primaryKey;
+
+		Entry(long updatedTimestamp, String primaryKey) {
+			this.updatedTimestamp = updatedTimestamp;
+			this.primaryKey = primaryKey;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			int result = Long.compare(updatedTimestamp, other.updatedTimestamp);
+			return result != 0 ? result : primaryKey.compareTo(other.primaryKey);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Entry && compareTo((Entry) other) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(updatedTimestamp) * 31 + primaryKey.hashCode();
+		}
+	}
+}
@@ -1,10 +1,172 @@
 package com.markocki.storage;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+
 import com.markocki.model.Record;
 
 public interface Storage {
 	public Record findByPrimaryKey(String primaryKey) throws NoRecordFoundException;
 	public Record delete(Record recordToDelete) throws NoRecordFoundException;
 	public void save(Record recordToStore) throws RecordStoreException;
-}
 
+	/**
+	 * @return number of the records, may be outdated by the concurrent
+	 *         modifications
+	 */
+	public long size();
+
+	/**
+	 * Saves all the records, like {@link #save(Record)} each of them atomically,
+	 * but a duplicate is a regular result rather than an exception. The
+	 * records are iterated only once, so they can be streamed.
+	 *
+	 * @throws RecordStoreException if a record cannot be stored for other
+	 *                              reason, the records before it stay stored
+	 */
+	public default SaveAllResult saveAll(Iterable<Record> records) throws RecordStoreException {
+		return saveAll(records, new SaveAllResult());
+	}
+
+	/**
+	 * Same as {@link #saveAll(Iterable)}, the results added to the given ones.
+	 */
+	public default SaveAllResult saveAll(Iterable<Record> records, SaveAllResult result) throws RecordStoreException {
+		for (Record record : records) {
+			// unlike the implementations of this package, cannot tell the duplicate from other failure
+			try {
+				save(record);
+				result.accepted();
+			} catch (RecordStoreException exc) {
+				result.duplicate(record.getPrimaryKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Same as {@link #findByPrimaryKey(String)}, but the missing record is not
+	 * an exception, so the lookups of no record are as cheap as the others.
+	 */
+	public default Optional<Record> find(String primaryKey) {
+		try {
+			return Optional.of(findByPrimaryKey(primaryKey));
+		} catch (NoRecordFoundException exc) {
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Removes the record of the primary key. Unlike
+	 * {@link #delete(Record)} looked up and removed in one atomic operation, a
+	 * missing record is not an exception.
+	 */
+	public default DeleteResult deleteByPrimaryKey(String primaryKey) {
+		return deleteIf(primaryKey, record -> true);
+	}
+
+	/**
+	 * Removes the record of the primary key only if it meets the condition,
+	 * checked and removed in one atomic operation by the implementations of
+	 * this package. The condition must not block, it is called under the lock.
+	 */
+	public default DeleteResult deleteIf(String primaryKey, Predicate<Record> condition) {
+		Optional<Record> found = find(primaryKey);
+		if (!found.isPresent()) {
+			return DeleteResult.NOT_PRESENT;
+		}
+		if (!condition.test(found.get())) {
+			return DeleteResult.CONDITION_NOT_MET;
+		}
+		try {
+			delete(found.get());
+			return DeleteResult.REMOVED;
+		} catch (NoRecordFoundException exc) {
+			// removed concurrently
+			return DeleteResult.NOT_PRESENT;
+		}
+	}
+
+	/**
+	 * Looks up all the given primary keys at once.
+	 *
+	 * @return the records in the order of the keys, null for the keys of no
+	 *         record
+	 */
+	public default List<Record> findByPrimaryKeys(List<String> primaryKeys) {
+		List<Record> result = new ArrayList<Record>(primaryKeys.size());
+		for (String primaryKey : primaryKeys) {
+			result.add(find(primaryKey).orElse(null));
+		}
+		return result;
+	}
+
+	/**
+	 * All the records, in no particular order. Iterated without blocking the
+	 * modifications, weakly consistent.
+	 */
+	public Iterable<Record> findAll();
+
+	/**
+	 * @return true if the records are ordered by the primary key, so they can
+	 *         be found by {@link #findByPrimaryKeyRange(String, boolean, String)}
+	 */
+	public default boolean isOrdered() {
+		return false;
+	}
+
+	/**
+	 * @return true if the records are indexed by the update time and the name,
+	 *         so they can be found by {@link #findUpdatedSince(long, String)}
+	 *         and {@link #findByName(String, String)}
+	 */
+	public default boolean isIndexed() {
+		return false;
+	}
+
+	/**
+	 * Records of the primary keys of the range, in the order of the keys, so
+	 * they can be read page by page, e.g. all the keys of a prefix. Iterated
+	 * without blocking the modifications, weakly consistent.
+	 *
+	 * @param fromPrimaryKey the first key of the range, null for no lower bound
+	 * @param toPrimaryKey   the key after the range (exclusive), null for no
+	 *                       upper bound, no records if not after the first
+	 *                       key
+	 * @throws UnsupportedOperationException if the storage is not
+	 *                                       {@link #isOrdered()}
+	 */
+	public default Iterable<Record> findByPrimaryKeyRange(String fromPrimaryKey, boolean fromInclusive,
+			String toPrimaryKey) {
+		throw new UnsupportedOperationException("Records are not ordered by the primary key");
+	}
+
+	/**
+	 * Records updated at or after the given time, in the order of the update
+	 * time and the primary key, so they can be read page by page. Looked up
+	 * while iterated, weakly consistent.
+	 *
+	 * @param afterPrimaryKey the records updated exactly at updatedSince only
+	 *                        after this key, all of them if null
+	 * @throws UnsupportedOperationException if the storage is not
+	 *                                       {@link #isIndexed()}
+	 */
+	public default Iterable<Record> findUpdatedSince(long updatedSince, String afterPrimaryKey) {
+		throw new UnsupportedOperationException("Records are not indexed");
+	}
+
+	/**
+	 * Records of the name, in the order of the primary key, like
+	 * {@link #findUpdatedSince(long, String)}.
+	 *
+	 * @param afterPrimaryKey the records only after this key, all of them if
+	 *                        null
+	 * @throws UnsupportedOperationException if the storage is not
+	 *                                       {@link #isIndexed()}
+	 */
+	public default Iterable<Record> findByName(String name, String afterPrimaryKey) {
+		throw new UnsupportedOperationException("Records are not indexed");
+	}
+}
@@ -1,15 +1,36 @@
 package com.markocki.storage;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.Collection;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,57 +39,473 @@ import com.markocki.model.Record;
 
 public class StorageFactory {
 	private static final Logger logger = LoggerFactory.getLogger(StorageFactory.class);
+	// the single storage file of the former versions, converted into the segment files
 	private static final String DB_FILENAME = "storage.db";
+	private static final String SEGMENT_FILENAME_PREFIX = "storage-";
+	private static final String SEGMENT_FILENAME_SUFFIX = ".db";
+	private static final Pattern SEGMENT_FILENAME = Pattern.compile("storage-\\d+-of-(\\d+)\\.db");
+	private static final String TMP_FILENAME_SUFFIX = ".tmp";
+
+	public static final String SIMPLE_STORAGE_TYPE = "simple";
+	public static final String OFFHEAP_STORAGE_TYPE = "offheap";
+	public static final String ORDERED_STORAGE_TYPE = "ordered";
+
+	// how often (in ms) the logged modifications are fsynced, 0 means on every modification
+	private static final long walSyncInterval = Long.getLong("app.storage.wal.syncInterval", 20);
+	// size (in bytes) of the log after which it is compacted into a new snapshot
+	private static final long walCompactionThreshold = Long.getLong("app.storage.wal.compactionThreshold",
+			64 * 1024 * 1024);
+	// size (in bytes) of the direct memory blocks the off-heap storage keeps the records in
+	private static final int offHeapSlabSize = Integer.getInteger("app.storage.offheap.slabSize", 64 * 1024 * 1024);
+	// number of the files the snapshot is split into by the key hash, only the modified ones are written again
+	private static final int snapshotSegments = Integer.getInteger("app.storage.snapshot.segments", 16);
+	// how often (in seconds) the snapshot is written if the storage was modified, 0 means by the log size only
+	private static final long snapshotInterval = Long.getLong("app.storage.snapshot.interval", 300);
+	// rate (in bytes per second) the snapshot is written at in the background, 0 means not limited
+	private static final long snapshotMaxBytesPerSecond = Long.getLong("app.storage.snapshot.maxBytesPerSecond", 0);
+	// number of the segment files read or written at once
+	private static final int snapshotThreads = Integer.getInteger("app.storage.snapshot.threads",
+			Runtime.getRuntime().availableProcessors());
+
+	// the records indexed by the update time and the name, built at startup
+	private static final boolean indexes = Boolean.parseBoolean(System.getProperty("app.storage.indexes", "false"));
+
+	private static volatile long lastSnapshotMillis = -1;
+	private static volatile int lastSnapshotSegments = -1;
 
 	public static Storage loadStorage(String storagedir) {
-		Storage result = new SimpleStorage();
+		return loadStorage(storagedir, SIMPLE_STORAGE_TYPE);
+	}
 
-		try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(storagedir + File.separatorChar+DB_FILENAME));) {
-			while (true) {
-				result.save((Record) ois.readObject());
+	/**
+	 * @param storageType either {@link #SIMPLE_STORAGE_TYPE} (records on the
+	 *                    heap on top of the mapped storage files),
+	 *                    {@link #OFFHEAP_STORAGE_TYPE} (records in direct
+	 *                    memory) or {@link #ORDERED_STORAGE_TYPE} (records on
+	 *                    the heap in the order of the primary keys, which can
+	 *                    be scanned by ranges)
+	 */
+	public static Storage loadStorage(String storagedir, String storageType) {
+		return loadStorage(storagedir, storageType, snapshotSegments);
+	}
+
+	static Storage loadStorage(String storagedir, String storageType, int segments) {
+		File directory = new File(storagedir);
+		File[] segmentFiles = segmentFiles(directory, segments);
+		// written by the former versions, or of another number of segments, if not all present
+		boolean segmented = allExist(segmentFiles);
+		LoggedStorage result;
+
+		if (SIMPLE_STORAGE_TYPE.equals(storageType)) {
+			result = segmented ? openSegmentFiles(segmentFiles) : new SimpleStorage(segments);
+		} else if (OFFHEAP_STORAGE_TYPE.equals(storageType)) {
+			result = new OffHeapStorage(offHeapSlabSize, segments);
+			if (segmented) {
+				loadSegmentFiles(result, segmentFiles);
+			}
+		} else if (ORDERED_STORAGE_TYPE.equals(storageType)) {
+			result = new OrderedStorage(segments);
+			if (segmented) {
+				loadSegmentFiles(result, segmentFiles);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown storage type: " + storageType);
+		}
+
+		boolean converted = false;
+		if (segmented) {
+			// the segments are as in their files, so none is written again until modified
+			long[] loaded = result.getModifications();
+			for (int segment = 0; segment < segments; segment++) {
+				result.persisted(segment, loaded[segment]);
+			}
+		} else {
+			converted = loadFormerStorageFiles(result, directory, segments);
+		}
+
+		// modifications made after the snapshot was written
+		long replayed = WriteAheadLog.replay(directory, result);
+		logger.info("Number of replayed storage modifications=" + replayed);
+
+		if (indexes) {
+			// all the records read, the mapped ones included
+			long start = System.nanoTime();
+			result.buildIndexes();
+			logger.info("Storage indexes built in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+
+		try {
+			WriteAheadLog log = WriteAheadLog.open(directory, walSyncInterval, walCompactionThreshold,
+					TimeUnit.SECONDS.toMillis(snapshotInterval), rotation -> {
+						long[] modifications = result.rotateLog(rotation);
+						writeSnapshot(result, storagedir, modifications, snapshotMaxBytesPerSecond);
+					});
+			result.attachLog(log);
+			if (converted) {
+				log.compactInBackground();
 			}
-		} catch (RecordStoreException exc) {
-			// should not happen as we previously stored unique primary keys
-			// if even though happens = ignore
-		} catch (ClassNotFoundException exc) {
-			logger.error("Error while loading the simple storage content", exc);
 		} catch (IOException exc) {
-			// end of file
-			// intentionally caught and ignore
+			logger.error("Cannot open the storage log, the storage will be persisted during shutdown only", exc);
 		}
 
 		return result;
 	}
 
 	public static void closeStorage(Storage storage, String storagedir) {
-		if (storage instanceof SimpleStorage) {
-			Collection<Record> records = ((SimpleStorage) storage).getAllRecords();
+		if (storage instanceof LoggedStorage) {
+			LoggedStorage loggedStorage = (LoggedStorage) storage;
 
-			try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(storagedir + File.separatorChar+DB_FILENAME));) {
-				for (Iterator<Record> iterator = records.iterator(); iterator.hasNext();) {
-					Record record = iterator.next();
-					oos.writeObject(record);
+			try {
+				if (loggedStorage.hasLog()) {
+					// everything is in the snapshot and the log already, so just make the log tail durable
+					loggedStorage.closeLog();
+				} else {
+					// just the segments modified since the last snapshot, at the full speed
+					writeSnapshot(loggedStorage, storagedir, loggedStorage.getModifications(), 0);
 				}
 			} catch (IOException exc) {
 				logger.error("Error while saving storage to the file.", exc);
 			}
 
 		} else {
-			logger.error("Error while closing the simple storage content. Should be of SimpleStorage type but was "
-					+ storagedir.getClass().getName());
+			logger.error("Error while closing the storage content. Should be of LoggedStorage type but was "
+					+ storage.getClass().getName());
+		}
+	}
+
+	// the segment files mapped, so the startup time does not depend on the storage size
+	private static SimpleStorage openSegmentFiles(File[] segmentFiles) {
+		MappedStorageFile[] base = new MappedStorageFile[segmentFiles.length];
+		List<Callable<Void>> opens = new ArrayList<Callable<Void>>();
+		for (int segment = 0; segment < segmentFiles.length; segment++) {
+			int opened = segment;
+			opens.add(() -> {
+				try {
+					base[opened] = MappedStorageFile.open(segmentFiles[opened]);
+				} catch (IOException exc) {
+					logger.error("Error while loading the simple storage content of " + segmentFiles[opened], exc);
+				}
+				return null;
+			});
+		}
+		try {
+			runInParallel(opens, snapshotThreads);
+		} catch (IOException exc) {
+			// already logged by segment
+		}
+
+		long size = 0;
+		for (MappedStorageFile segmentFile : base) {
+			size += segmentFile != null ? segmentFile.size() : 0;
+		}
+		logger.info("Storage files mapped, number of records=" + size);
+		return new SimpleStorage(base);
+	}
+
+	// the records decoded in parallel, stored one by one
+	private static void loadSegmentFiles(LoggedStorage storage, File[] segmentFiles) {
+		List<Callable<Void>> loads = new ArrayList<Callable<Void>>();
+		for (File segmentFile : segmentFiles) {
+			loads.add(() -> {
+				loadStorageFile(storage, segmentFile);
+				return null;
+			});
+		}
+		try {
+			runInParallel(loads, snapshotThreads);
+		} catch (IOException exc) {
+			logger.error("Error while loading the storage content", exc);
+		}
+	}
+
+	/**
+	 * Reads the storage file of the former versions and the segment files of
+	 * another number of segments, if any.
+	 *
+	 * @return true if any was read, so the storage is to be converted
+	 */
+	private static boolean loadFormerStorageFiles(WriteAheadLog.Target storage, File directory, int segments) {
+		List<File> formerFiles = new ArrayList<File>();
+		File dbFile = new File(directory, DB_FILENAME);
+		if (dbFile.exists()) {
+			formerFiles.add(dbFile);
+		}
+		formerFiles.addAll(formerSegmentFiles(directory, segments));
+
+		for (File formerFile : formerFiles) {
+			loadStorageFile(storage, formerFile);
+		}
+		if (!formerFiles.isEmpty()) {
+			logger.info("Storage files of the former layout loaded, they are converted with the next snapshot");
+		}
+		return !formerFiles.isEmpty();
+	}
+
+	// reads all the records of the storage file into the storage
+	private static void loadStorageFile(WriteAheadLog.Target storage, File dbFile) {
+		if (!dbFile.exists()) {
+			return;
+		}
+
+		try {
+			if (MappedStorageFile.isMappedStorageFile(dbFile)) {
+				for (Record record : MappedStorageFile.open(dbFile)) {
+					storage.replaySave(record);
+				}
+			} else {
+				loadLegacyStorageFile(storage, dbFile);
+			}
+		} catch (IOException exc) {
+			logger.error("Error while loading the storage content", exc);
+		}
+	}
+
+	// the storage file in the former format, i.e. the dump of the serialized records
+	private static void loadLegacyStorageFile(WriteAheadLog.Target storage, File dbFile) {
+		try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(dbFile)));) {
+			while (true) {
+				storage.replaySave((Record) ois.readObject());
+			}
+		} catch (EOFException exc) {
+			// end of file, all records read
+			logger.info("Storage file in the former format loaded, it is converted with the next snapshot");
+		} catch (ClassNotFoundException | IOException exc) {
+			logger.error("Error while loading the simple storage content", exc);
+		}
+	}
+
+	/**
+	 * @return time (in milliseconds) of writing the last snapshot of the
+	 *         storage, -1 if none was written yet
+	 */
+	public static long getLastSnapshotMillis() {
+		return lastSnapshotMillis;
+	}
+
+	/**
+	 * @return number of the segments written by the last snapshot, i.e. the
+	 *         ones modified since the snapshot before, -1 if none was written
+	 *         yet
+	 */
+	public static int getLastSnapshotSegments() {
+		return lastSnapshotSegments;
+	}
+
+	/**
+	 * Writes the segments modified since they were last written, in parallel,
+	 * each to a temporary file first, so a crash while writing never leaves a
+	 * broken segment. The segments written and not written by the crashed
+	 * snapshot are both consistent with the log, which is removed only
+	 * afterwards.
+	 *
+	 * @param modifications     number of the modifications of each segment to
+	 *                          be written, taken while none was in progress
+	 * @param maxBytesPerSecond limits the rate of writing of all the segments,
+	 *                          0 if not limited
+	 */
+	static void writeSnapshot(LoggedStorage storage, String storagedir, long[] modifications,
+			long maxBytesPerSecond) throws IOException {
+		long start = System.nanoTime();
+		IoThrottle throttle = maxBytesPerSecond > 0 ? new IoThrottle(maxBytesPerSecond) : null;
+		File directory = new File(storagedir);
+		int segments = storage.getSegments();
+
+		// found first, so the records of the segments persisted already are not taken
+		boolean[] written = new boolean[segments];
+		List<Callable<Void>> writes = new ArrayList<Callable<Void>>();
+		for (int segment = 0; segment < segments; segment++) {
+			written[segment] = !storage.isPersisted(segment, modifications[segment]);
+		}
+		try (LoggedStorage.SnapshotRecords records = storage.snapshotRecords(written)) {
+			for (int segment = 0; segment < segments; segment++) {
+				if (written[segment]) {
+					int writtenSegment = segment;
+					writes.add(() -> {
+						writeSegment(storage, records, directory, writtenSegment, modifications[writtenSegment],
+								throttle);
+						return null;
+					});
+				}
+			}
+			runInParallel(writes, snapshotThreads);
+		}
+
+		if (storage.isFullyPersisted()) {
+			removeFormerStorageFiles(directory, segments);
+		}
+
+		lastSnapshotMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		lastSnapshotSegments = writes.size();
+		logger.info("Snapshot written, number of written segments=" + writes.size() + " of " + segments + " in "
+				+ lastSnapshotMillis + " ms");
+	}
+
+	// the records contain the given modifications, the ones made meanwhile are written by the next snapshot
+	private static void writeSegment(LoggedStorage storage, LoggedStorage.SnapshotRecords records, File directory,
+			int segment, long modifications, IoThrottle throttle) throws IOException {
+		File segmentFile = segmentFile(directory, segment, storage.getSegments());
+		File tmpFile = new File(directory, segmentFile.getName() + TMP_FILENAME_SUFFIX);
+
+		MappedStorageFile.write(records.getRecords(segment).iterator(), records.size(segment), tmpFile,
+				MappedStorageFile.DEFAULT_CHUNK_SHIFT, throttle);
+
+		Files.move(tmpFile.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		storage.persisted(segment, modifications);
+	}
+
+	/**
+	 * Runs the tasks on up to the given number of threads and waits for all of
+	 * them, so no file is left being written when one fails.
+	 *
+	 * @throws IOException the first failure of the tasks
+	 */
+	static void runInParallel(List<Callable<Void>> tasks, int maxThreads) throws IOException {
+		int threads = Math.min(Math.max(1, maxThreads), tasks.size());
+		if (threads <= 1) {
+			for (Callable<Void> task : tasks) {
+				call(task);
+			}
+			return;
+		}
+
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "storage-io-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			IOException failure = null;
+			for (Future<Void> result : executor.invokeAll(tasks)) {
+				try {
+					result.get();
+				} catch (ExecutionException exc) {
+					if (failure == null) {
+						failure = exc.getCause() instanceof IOException ? (IOException) exc.getCause()
+								: new IOException(exc.getCause());
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading or writing the storage files");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void call(Callable<Void> task) throws IOException {
+		try {
+			task.call();
+		} catch (IOException | RuntimeException exc) {
+			throw exc;
+		} catch (Exception exc) {
+			throw new IOException(exc);
+		}
+	}
+
+	private static void removeFormerStorageFiles(File directory, int segments) throws IOException {
+		Files.deleteIfExists(new File(directory, DB_FILENAME).toPath());
+		for (File formerFile : formerSegmentFiles(directory, segments)) {
+			Files.deleteIfExists(formerFile.toPath());
+		}
+	}
+
+	static File segmentFile(File directory, int segment, int segments) {
+		return new File(directory, SEGMENT_FILENAME_PREFIX + segment + "-of-" + segments + SEGMENT_FILENAME_SUFFIX);
+	}
+
+	private static File[] segmentFiles(File directory, int segments) {
+		File[] result = new File[segments];
+		for (int segment = 0; segment < segments; segment++) {
+			result[segment] = segmentFile(directory, segment, segments);
+		}
+		return result;
+	}
+
+	private static boolean allExist(File[] files) {
+		for (File file : files) {
+			if (!file.exists()) {
+				return false;
+			}
 		}
+		return true;
+	}
+
+	// the segment files of any other number of segments
+	private static List<File> formerSegmentFiles(File directory, int segments) {
+		List<File> result = new ArrayList<File>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				Matcher matcher = SEGMENT_FILENAME.matcher(name);
+				if (matcher.matches() && !matcher.group(1).equals(Integer.toString(segments))) {
+					result.add(new File(directory, name));
+				}
+			}
+		}
+		return result;
 	}
 
-	static class SimpleStorage implements Storage {
+	static class SimpleStorage extends LoggedStorage {
+		// marks a record of the storage file removed since the file was loaded
+		private static final Record REMOVED = new Record() {
+			public String getPrimaryKey() {
+				return null;
+			}
+
+			public String getName() {
+				return null;
+			}
+
+			public String getDescription() {
+				return null;
+			}
+
+			public long getUpdatedTimestamp() {
+				return 0;
+			}
+		};
+
 		// let's have concurrency support, so both reads and writes (uploads) are concurrently possible
 		// and reads return the current value of the record
-		
-		private Map<String, Record> theStorage = new ConcurrentHashMap<String, Record>();
+		// holds the modifications made on top of the mapped storage files (if any), by segment
+		private final List<ConcurrentMap<String, Record>> theStorage;
+
+		// records loaded at startup by segment, null if there was no storage file of the segment
+		private final MappedStorageFile[] base;
+		// changed within the map operations, so exact once they are finished
+		private final LongAdder size = new LongAdder();
+
+		SimpleStorage(int segments) {
+			this(new MappedStorageFile[segments]);
+		}
+
+		SimpleStorage(MappedStorageFile[] base) {
+			super(base.length);
+			this.base = base;
+			this.theStorage = new ArrayList<ConcurrentMap<String, Record>>(base.length);
+			for (int segment = 0; segment < base.length; segment++) {
+				theStorage.add(new ConcurrentHashMap<String, Record>());
+				if (base[segment] != null) {
+					size.add(base[segment].size());
+				}
+			}
+		}
+
+		@Override
+		public long size() {
+			return size.sum();
+		}
 
 		@Override
 		public Record findByPrimaryKey(String primaryKey) throws NoRecordFoundException {
-			Record result = theStorage.get(primaryKey);
-			
+			Record result = findRecord(primaryKey);
+
 			if ( result != null ) {
 				return  result;
 			} else {
@@ -76,36 +513,285 @@ public class StorageFactory {
 			}
 		}
 
+		@Override
+		public Optional<Record> find(String primaryKey) {
+			return Optional.ofNullable(findRecord(primaryKey));
+		}
+
+		// null if there is no record
+		private Record findRecord(String primaryKey) {
+			int segment = segmentOf(primaryKey);
+			Record result = theStorage.get(segment).get(primaryKey);
+			if (result == null) {
+				result = findInBase(segment, primaryKey);
+			}
+			return result != REMOVED ? result : null;
+		}
+
+		// no exception per missing record
+		@Override
+		public List<Record> findByPrimaryKeys(List<String> primaryKeys) {
+			List<Record> result = new ArrayList<Record>(primaryKeys.size());
+			for (String primaryKey : primaryKeys) {
+				result.add(findRecord(primaryKey));
+			}
+			return result;
+		}
+
 		@Override
 		public Record delete(Record recordToDelete) throws NoRecordFoundException {
 			String primaryKey = recordToDelete.getPrimaryKey();
 
-			Record result = theStorage.remove(primaryKey);
-			
+			Record[] removed = new Record[1];
+			remove(primaryKey, null, removed);
+			Record result = removed[0];
+
 			if ( result != null ) {
 				return  result;
 			} else {
 				throw new NoRecordFoundException("No record for PRIMARY_KEY=" + primaryKey);
-			}			
+			}
+		}
+
+		@Override
+		public DeleteResult deleteByPrimaryKey(String primaryKey) {
+			return remove(primaryKey, null, new Record[1]);
+		}
+
+		@Override
+		public DeleteResult deleteIf(String primaryKey, Predicate<Record> condition) {
+			return remove(primaryKey, condition, new Record[1]);
+		}
+
+		// no condition means the record is removed unconditionally
+		private DeleteResult remove(String primaryKey, Predicate<Record> condition, Record[] removed) {
+			int segment = segmentOf(primaryKey);
+			DeleteResult[] result = { DeleteResult.NOT_PRESENT };
+			beginModification();
+			try {
+				// logged inside the map operation, so the log keeps the order of the modifications of the key
+				theStorage.get(segment).compute(primaryKey, (key, current) -> {
+					Record existing = current != null ? current : findInBase(segment, key);
+					if (existing == null || existing == REMOVED) {
+						return current;
+					}
+					if (condition != null && !condition.test(existing)) {
+						result[0] = DeleteResult.CONDITION_NOT_MET;
+						return current;
+					}
+
+					log(wal -> wal.logDelete(key));
+					unindexed(existing);
+					size.decrement();
+					removed[0] = existing;
+					result[0] = DeleteResult.REMOVED;
+					return inBase(segment, key) ? REMOVED : null;
+				});
+				if (result[0] == DeleteResult.REMOVED) {
+					modified(primaryKey);
+				}
+			} finally {
+				endModification();
+			}
+			return awaitLogged(result[0]);
 		}
 
 		@Override
 		public void save(Record recordToStore) throws RecordStoreException {
+			if (!saveIfAbsent(recordToStore)) {
+				throw new RecordStoreException(
+						"Record for PRIMARY_KEY=" + recordToStore.getPrimaryKey() + " already exists");
+			}
+			awaitStored();
+		}
+
+		@Override
+		public SaveAllResult saveAll(Iterable<Record> records, SaveAllResult result) throws RecordStoreException {
+			int accepted = result.getAccepted();
+			for (Record record : records) {
+				if (saveIfAbsent(record)) {
+					result.accepted();
+				} else {
+					result.duplicate(record.getPrimaryKey());
+				}
+			}
+			// once for all the records
+			if (result.getAccepted() > accepted) {
+				awaitStored();
+			}
+			return result;
+		}
+
+		// one map operation, so of the concurrent saves of the key only the first one is stored
+		private boolean saveIfAbsent(Record recordToStore) throws RecordStoreException {
 			String primaryKey = recordToStore.getPrimaryKey();
+			int segment = segmentOf(primaryKey);
 
+			boolean[] stored = new boolean[1];
 			// we do not accept duplicates, nor updates to the currently existing records
-			if (!theStorage.containsKey(primaryKey)) {
-				theStorage.put(primaryKey, recordToStore);
+			beginModification();
+			try {
+				theStorage.get(segment).compute(primaryKey, (key, current) -> {
+					if (current == null ? inBase(segment, key) : current != REMOVED) {
+						return current;
+					}
+
+					log(wal -> wal.logSave(recordToStore));
+					indexed(recordToStore);
+					size.increment();
+					stored[0] = true;
+					return recordToStore;
+				});
+				if (stored[0]) {
+					modified(primaryKey);
+				}
+			} catch (UncheckedIOException exc) {
+				throw new RecordStoreException("Record for PRIMARY_KEY=" + primaryKey + " cannot be logged: "
+						+ exc.getCause().getMessage());
+			} finally {
+				endModification();
+			}
+			return stored[0];
+		}
+
+		@Override
+		public void replaySave(Record record) {
+			String primaryKey = record.getPrimaryKey();
+			int segment = segmentOf(primaryKey);
+			Record previous = theStorage.get(segment).put(primaryKey, record);
+			if (previous == null ? !inBase(segment, primaryKey) : previous == REMOVED) {
+				size.increment();
+			}
+			modified(primaryKey);
+		}
+
+		@Override
+		public void replayDelete(String primaryKey) {
+			int segment = segmentOf(primaryKey);
+			Record previous;
+			if (inBase(segment, primaryKey)) {
+				previous = theStorage.get(segment).put(primaryKey, REMOVED);
+				if (previous != REMOVED) {
+					size.decrement();
+				}
 			} else {
-				throw new RecordStoreException("Record for PRIMARY_KEY=" + primaryKey + " already exists");
+				previous = theStorage.get(segment).remove(primaryKey);
+				if (previous != null) {
+					size.decrement();
+				}
 			}
+			modified(primaryKey);
+		}
 
+		/**
+		 * The segments are kept apart, so the snapshot reads just the ones it
+		 * writes. The modified records of the segment are copied when it is
+		 * first read, so its size holds while it is written.
+		 */
+		@Override
+		SnapshotRecords snapshotRecords(boolean[] written) {
+			List<Map<String, Record>> taken = new ArrayList<Map<String, Record>>(
+					Collections.<Map<String, Record>>nCopies(getSegments(), null));
+
+			return new SnapshotRecords() {
+				@Override
+				public Iterable<Record> getRecords(int segment) {
+					return records(taken(segment), base[segment]);
+				}
+
+				@Override
+				public long size(int segment) {
+					return taken(segment).size() + (base[segment] != null ? base[segment].size() : 0);
+				}
+
+				private synchronized Map<String, Record> taken(int segment) {
+					if (taken.get(segment) == null) {
+						taken.set(segment, new HashMap<String, Record>(theStorage.get(segment)));
+					}
+					return taken.get(segment);
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+
+		// segment by segment
+		@Override
+		Iterable<Record> getAllRecords() {
+			return () -> new Iterator<Record>() {
+				private int segment = -1;
+				private Iterator<Record> current = Collections.<Record>emptyIterator();
+
+				@Override
+				public boolean hasNext() {
+					while (!current.hasNext() && segment + 1 < getSegments()) {
+						segment++;
+						current = records(theStorage.get(segment), base[segment]).iterator();
+					}
+					return current.hasNext();
+				}
+
+				@Override
+				public Record next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return current.next();
+				}
+			};
+		}
+
+		// the modified records followed by the untouched records of the storage file
+		private Iterable<Record> records(Map<String, Record> modifiedRecords, MappedStorageFile loadedRecords) {
+			return () -> new Iterator<Record>() {
+				private final Iterator<Record> modified = modifiedRecords.values().iterator();
+				private final Iterator<Record> loaded = loadedRecords != null ? loadedRecords.iterator()
+						: Collections.<Record>emptyIterator();
+				private Record next = advance();
+
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public Record next() {
+					if (next == null) {
+						throw new NoSuchElementException();
+					}
+					Record result = next;
+					next = advance();
+					return result;
+				}
+
+				private Record advance() {
+					while (modified.hasNext()) {
+						Record record = modified.next();
+						if (record != REMOVED) {
+							return record;
+						}
+					}
+					while (loaded.hasNext()) {
+						Record record = loaded.next();
+						// removed or removed and stored again
+						if (!modifiedRecords.containsKey(record.getPrimaryKey())) {
+							return record;
+						}
+					}
+					return null;
+				}
+			};
 		}
 
-		Collection<Record> getAllRecords() {
-			return theStorage.values();
+		private Record findInBase(int segment, String primaryKey) {
+			return base[segment] != null ? base[segment].find(primaryKey) : null;
+		}
+
+		private boolean inBase(int segment, String primaryKey) {
+			return base[segment] != null && base[segment].contains(primaryKey);
 		}
 	}
 
 }
-
@@ -0,0 +1,550 @@
+package com.markocki.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.markocki.model.Record;
+import com.markocki.model.RecordCreateException;
+import com.markocki.model.RecordFactory;
+
+/**
+ * Append-only log of the storage modifications (saves and deletes), so the
+ * storage content survives a crash and does not depend on a clean shutdown.
+ * <p>
+ * The log is kept as a sequence of generation files (storage.1.wal,
+ * storage.2.wal, ...). Entries are buffered and made durable by a background
+ * thread that flushes and fsyncs all pending entries at once (group commit)
+ * every sync interval. The modification is acknowledged only once its entry
+ * is durable, see {@link #awaitSync()}. When the logged data exceeds the
+ * compaction threshold, or every snapshot interval if anything was logged,
+ * the log is rotated, a fresh snapshot is written in the background and the
+ * generations covered by the snapshot are removed.
+ */
+class WriteAheadLog implements Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+	private static final String LOG_FILENAME_PREFIX = "storage.";
+	private static final String LOG_FILENAME_SUFFIX = ".wal";
+
+	// of the strings in modified UTF-8, up to 65535 bytes each, still replayed
+	private static final byte FORMER_SAVE_ENTRY = 1;
+	private static final byte FORMER_DELETE_ENTRY = 2;
+	// of the strings in UTF-8 prefixed by their length, so of any length
+	private static final byte SAVE_ENTRY = 3;
+	private static final byte DELETE_ENTRY = 4;
+	// the largest byte array, as the entry is buffered in one
+	private static final int MAX_ENTRY_LENGTH = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Receives the replayed entries during the storage startup.
+	 */
+	interface Target {
+		void replaySave(Record record);
+
+		void replayDelete(String primaryKey);
+	}
+
+	/**
+	 * Writes the snapshot of the storage content, used by compaction.
+	 */
+	interface SnapshotWriter {
+		/**
+		 * Runs the given rotation of the log while no modification is in
+		 * progress, then writes the snapshot. Every modification is then
+		 * either in the rotated generations and in the snapshot, or in the new
+		 * generation.
+		 */
+		void writeSnapshot(Rotation rotation) throws IOException;
+	}
+
+	interface Rotation {
+		void rotate() throws IOException;
+	}
+
+	private final File directory;
+	private final long syncIntervalMillis;
+	private final long compactionThreshold;
+	private final SnapshotWriter snapshotWriter;
+
+	private final ScheduledExecutorService syncer;
+	private final ExecutorService compactor;
+	private final AtomicBoolean compactionPending = new AtomicBoolean();
+	private final Object compactionLock = new Object();
+
+	// all below guarded by this
+	private final EntryBuffer entryBuffer = new EntryBuffer();
+	private final DataOutputStream entry = new DataOutputStream(entryBuffer);
+	private final CRC32 crc = new CRC32();
+	private long generation;
+	private FileOutputStream file;
+	private DataOutputStream out;
+	private long uncompactedBytes;
+	private boolean dirty;
+	private boolean closed;
+	// numbers of the entries appended, made durable and failed to be made durable, in the order of appending
+	private long appended;
+	private long synced;
+	private long failed;
+
+	private WriteAheadLog(File directory, long syncIntervalMillis, long compactionThreshold,
+			SnapshotWriter snapshotWriter) {
+		this.directory = directory;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.compactionThreshold = compactionThreshold;
+		this.snapshotWriter = snapshotWriter;
+
+		this.syncer = Executors.newSingleThreadScheduledExecutor(r -> newDaemonThread(r, "wal-sync"));
+		this.compactor = Executors.newSingleThreadExecutor(r -> newDaemonThread(r, "wal-compaction"));
+	}
+
+	/**
+	 * Opens a new log generation in the given directory. The already present
+	 * generations are expected to be replayed before.
+	 *
+	 * @param syncIntervalMillis     how often the pending entries are fsynced, 0
+	 *                               or less means fsync after every entry
+	 * @param snapshotIntervalMillis how often the log is compacted if anything
+	 *                               was logged, 0 or less means only once it
+	 *                               exceeds the compaction threshold
+	 */
+	static WriteAheadLog open(File directory, long syncIntervalMillis, long compactionThreshold,
+			long snapshotIntervalMillis, SnapshotWriter snapshotWriter) throws IOException {
+		WriteAheadLog log = new WriteAheadLog(directory, syncIntervalMillis, compactionThreshold, snapshotWriter);
+
+		List<Long> generations = listGenerations(directory);
+		long lastGeneration = generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+
+		synchronized (log) {
+			for (Long generation : generations) {
+				log.uncompactedBytes += logFile(directory, generation).length();
+			}
+			log.openGeneration(lastGeneration + 1);
+		}
+
+		if (syncIntervalMillis > 0) {
+			log.syncer.scheduleWithFixedDelay(log::syncQuietly, syncIntervalMillis, syncIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		if (snapshotIntervalMillis > 0) {
+			log.syncer.scheduleWithFixedDelay(log::compactIfLogged, snapshotIntervalMillis, snapshotIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		log.compactIfNeeded();
+
+		return log;
+	}
+
+	/**
+	 * Replays all log generations found in the directory, oldest first.
+	 *
+	 * @return number of replayed entries
+	 */
+	static long replay(File directory, Target target) {
+		long replayed = 0;
+
+		for (Long generation : listGenerations(directory)) {
+			File logFile = logFile(directory, generation);
+
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));) {
+				replayed += replay(in, logFile.length(), target, logFile);
+			} catch (IOException exc) {
+				logger.error("Error while replaying the log file " + logFile, exc);
+			}
+		}
+
+		return replayed;
+	}
+
+	private static long replay(DataInputStream in, long fileLength, Target target, File logFile) throws IOException {
+		long replayed = 0;
+		long position = 0;
+		CRC32 crc = new CRC32();
+
+		while (true) {
+			byte[] payload;
+			try {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				position += 8;
+				// a corrupted length is not allocated, nor can it exceed the rest of the file
+				if (length <= 0 || length > MAX_ENTRY_LENGTH || length > fileLength - position) {
+					logger.warn("Corrupted entry found in the log file " + logFile + " after " + replayed
+							+ " entries, ignoring the rest of the file");
+					return replayed;
+				}
+				payload = new byte[length];
+				in.readFully(payload);
+				position += length;
+
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					logger.warn("Corrupted entry found in the log file " + logFile + " after " + replayed
+							+ " entries, ignoring the rest of the file");
+					return replayed;
+				}
+			} catch (EOFException exc) {
+				// end of file, or an entry torn by a crash which was never acknowledged as durable
+				return replayed;
+			}
+
+			DataInputStream entryIn = new DataInputStream(new ByteArrayInputStream(payload));
+			byte type = entryIn.readByte();
+			boolean former = type == FORMER_SAVE_ENTRY || type == FORMER_DELETE_ENTRY;
+			String primaryKey = former ? entryIn.readUTF() : readString(entryIn);
+
+			if (type == SAVE_ENTRY || type == FORMER_SAVE_ENTRY) {
+				String name = former ? readNullableUTF(entryIn) : readString(entryIn);
+				String description = former ? readNullableUTF(entryIn) : readString(entryIn);
+				long updatedTimestamp = entryIn.readLong();
+				try {
+					target.replaySave(RecordFactory.createRecord(primaryKey, name, description, updatedTimestamp));
+				} catch (RecordCreateException exc) {
+					// should not happen as only valid records are logged
+					logger.warn("Ignoring invalid record found in the log file " + logFile, exc);
+				}
+			} else if (type == DELETE_ENTRY || type == FORMER_DELETE_ENTRY) {
+				target.replayDelete(primaryKey);
+			} else {
+				logger.warn("Unknown entry type " + type + " found in the log file " + logFile
+						+ ", ignoring the rest of the file");
+				return replayed;
+			}
+			replayed++;
+		}
+	}
+
+	void logSave(Record record) throws IOException {
+		synchronized (this) {
+			try {
+				entry.writeByte(SAVE_ENTRY);
+				writeString(entry, record.getPrimaryKey());
+				writeString(entry, record.getName());
+				writeString(entry, record.getDescription());
+				entry.writeLong(record.getUpdatedTimestamp());
+				append();
+			} finally {
+				entryBuffer.reset();
+			}
+		}
+	}
+
+	void logDelete(String primaryKey) throws IOException {
+		synchronized (this) {
+			try {
+				entry.writeByte(DELETE_ENTRY);
+				writeString(entry, primaryKey);
+				append();
+			} finally {
+				entryBuffer.reset();
+			}
+		}
+	}
+
+	// must be called while holding the lock
+	private void append() throws IOException {
+		if (closed) {
+			throw new IOException("The log is already closed");
+		}
+
+		crc.reset();
+		crc.update(entryBuffer.buffer(), 0, entryBuffer.size());
+
+		out.writeInt(entryBuffer.size());
+		out.writeInt((int) crc.getValue());
+		entryBuffer.writeTo(out);
+
+		uncompactedBytes += 8 + entryBuffer.size();
+		appended++;
+		dirty = true;
+
+		if (syncIntervalMillis <= 0) {
+			out.flush();
+			file.getChannel().force(false);
+			dirty = false;
+			synced = appended;
+		}
+	}
+
+	/**
+	 * Waits until the entries logged so far are durable, i.e. for the next
+	 * group commit, up to the sync interval. To be called before the logged
+	 * modification is acknowledged, without holding any lock of the storage.
+	 *
+	 * @throws IOException if the entries could not be fsynced
+	 */
+	synchronized void awaitSync() throws IOException {
+		long entries = appended;
+		while (synced < entries) {
+			if (failed >= entries) {
+				throw new IOException("The log entries could not be made durable");
+			}
+			try {
+				wait();
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the log to be synced");
+			}
+		}
+	}
+
+	/**
+	 * Makes all the entries logged so far durable.
+	 */
+	void sync() throws IOException {
+		FileChannel channel;
+		long entries;
+
+		synchronized (this) {
+			if (!dirty || closed) {
+				return;
+			}
+			out.flush();
+			dirty = false;
+			channel = file.getChannel();
+			entries = appended;
+		}
+
+		// fsync outside of the lock, so the appenders are not blocked for the time of the disk flush
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException exc) {
+			// generation rotated meanwhile, it was forced while being closed
+			return;
+		} catch (IOException exc) {
+			synchronized (this) {
+				failed = Math.max(failed, entries);
+				notifyAll();
+			}
+			throw exc;
+		}
+
+		synchronized (this) {
+			synced = Math.max(synced, entries);
+			notifyAll();
+		}
+	}
+
+	private void syncQuietly() {
+		try {
+			sync();
+		} catch (IOException exc) {
+			logger.error("Error while syncing the log", exc);
+		}
+
+		compactIfNeeded();
+	}
+
+	private void compactIfNeeded() {
+		boolean thresholdExceeded;
+		synchronized (this) {
+			thresholdExceeded = !closed && uncompactedBytes >= compactionThreshold;
+		}
+
+		if (thresholdExceeded) {
+			compactInBackground();
+		}
+	}
+
+	// the periodic snapshot, so the log replayed at startup stays short even below the threshold
+	private void compactIfLogged() {
+		boolean logged;
+		synchronized (this) {
+			logged = !closed && uncompactedBytes > 0;
+		}
+
+		if (logged) {
+			compactInBackground();
+		}
+	}
+
+	/**
+	 * Compacts the log in the background, unless the compaction is already in
+	 * progress.
+	 */
+	void compactInBackground() {
+		if (compactionPending.compareAndSet(false, true)) {
+			compactor.execute(() -> {
+				try {
+					compact();
+				} catch (IOException exc) {
+					logger.error("Error while compacting the log", exc);
+				} finally {
+					compactionPending.set(false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Rotates the log, writes the snapshot and removes the generations the
+	 * snapshot already contains. The rotation waits for the modifications in
+	 * progress, so none is logged to the rotated generation but applied only
+	 * after the snapshot is taken. The entries logged meanwhile go to the new
+	 * generation, so nothing is lost when the snapshot misses them. One
+	 * compaction at a time, so the snapshots are written in the order of the
+	 * rotations.
+	 */
+	void compact() throws IOException {
+		synchronized (compactionLock) {
+			long start = System.currentTimeMillis();
+			long[] compactedGeneration = { -1 };
+
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+			}
+
+			snapshotWriter.writeSnapshot(() -> {
+				synchronized (this) {
+					if (closed) {
+						throw new IOException("The log is already closed");
+					}
+					compactedGeneration[0] = generation;
+					closeGeneration();
+					openGeneration(generation + 1);
+					uncompactedBytes = 0;
+				}
+			});
+
+			for (Long generation : listGenerations(directory)) {
+				if (generation <= compactedGeneration[0]) {
+					Files.deleteIfExists(logFile(directory, generation).toPath());
+				}
+			}
+
+			logger.info("Log compacted up to generation " + compactedGeneration[0] + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		compactor.shutdown();
+		try {
+			// let the running compaction finish, it is crash safe anyway if it does not make it
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+		syncer.shutdown();
+
+		synchronized (this) {
+			if (!closed) {
+				closeGeneration();
+				closed = true;
+			}
+		}
+	}
+
+	// must be called while holding the lock
+	private void openGeneration(long newGeneration) throws IOException {
+		generation = newGeneration;
+		file = new FileOutputStream(logFile(directory, newGeneration));
+		out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+		dirty = false;
+	}
+
+	// must be called while holding the lock
+	private void closeGeneration() throws IOException {
+		out.flush();
+		file.getChannel().force(false);
+		out.close();
+		synced = appended;
+		notifyAll();
+	}
+
+	private static File logFile(File directory, long generation) {
+		return new File(directory, LOG_FILENAME_PREFIX + generation + LOG_FILENAME_SUFFIX);
+	}
+
+	private static List<Long> listGenerations(File directory) {
+		List<Long> result = new ArrayList<Long>();
+
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(LOG_FILENAME_PREFIX) && name.endsWith(LOG_FILENAME_SUFFIX)) {
+					try {
+						result.add(Long.parseLong(name.substring(LOG_FILENAME_PREFIX.length(),
+								name.length() - LOG_FILENAME_SUFFIX.length())));
+					} catch (NumberFormatException exc) {
+						// not a log file, ignore
+					}
+				}
+			}
+		}
+
+		Collections.sort(result);
+		return result;
+	}
+
+	// length -1 for null
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String readNullableUTF(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	// gives access to the internal buffer, so no copy is made per entry
+	private static class EntryBuffer extends ByteArrayOutputStream {
+		EntryBuffer() {
+			super(256);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	private static Thread newDaemonThread(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,43 @@
+package com.markocki.web;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Sampled access log of the routes. Only a fraction of the requests is logged,
+ * so the log does not cost the throughput, but the slow requests are logged
+ * always. The sampling decided before anything is formatted.
+ */
+class AccessLog {
+	private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+	// fraction of the requests logged, 0 turns the access log off
+	static final double sampleRate = Double
+			.parseDouble(System.getProperty("app.log.access.sampleRate", "0.01"));
+	// the requests of at least that time logged regardless of the sampling, 0 turns it off
+	static final long slowNanos = TimeUnit.MILLISECONDS
+			.toNanos(Long.getLong("app.log.access.slowMillis", 1000));
+
+	private AccessLog() {
+	}
+
+	static void log(String name, Request request, Response response, long nanos) {
+		if (isLogged(nanos, sampleRate, slowNanos) && logger.isInfoEnabled()) {
+			logger.info("[ACCESS] {} {} {} {} {}us", name, request.requestMethod(), request.pathInfo(),
+					response.status(), TimeUnit.NANOSECONDS.toMicros(nanos));
+		}
+	}
+
+	static boolean isLogged(long nanos, double sampleRate, long slowNanos) {
+		if (slowNanos > 0 && nanos >= slowNanos) {
+			return true;
+		}
+		return sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+	}
+}
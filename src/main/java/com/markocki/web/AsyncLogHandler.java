@@ -0,0 +1,146 @@
+package com.markocki.web;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Handler of java.util.logging passing the log records to the given handlers
+ * on a background thread, so the formatting and writing of the log is off the
+ * request thread. When the queue is full the log records are dropped and
+ * counted, rather than the request waiting for the log.
+ */
+class AsyncLogHandler extends Handler {
+	private final Handler[] delegates;
+	private final BlockingQueue<LogRecord> queue;
+	private final LongAdder dropped = new LongAdder();
+	// queued and not yet published
+	private final AtomicLong pending = new AtomicLong();
+	private final Thread worker;
+	private volatile boolean closed;
+
+	AsyncLogHandler(int capacity, Handler... delegates) {
+		this.delegates = delegates;
+		this.queue = new ArrayBlockingQueue<LogRecord>(capacity);
+		this.worker = new Thread(this::publishQueued, "async-log");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Replaces the handlers of the root logger by a single asynchronous one
+	 * passing the log records to them.
+	 *
+	 * @return the installed handler, null if the root logger has no handlers
+	 */
+	static AsyncLogHandler install(int capacity) {
+		Logger root = Logger.getLogger("");
+		Handler[] handlers = root.getHandlers();
+		if (handlers.length == 0) {
+			return null;
+		}
+
+		AsyncLogHandler result = new AsyncLogHandler(capacity, handlers);
+		for (Handler handler : handlers) {
+			root.removeHandler(handler);
+		}
+		root.addHandler(result);
+		return result;
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record)) {
+			return;
+		}
+		// the caller is found from the stack trace, so only on the logging thread
+		record.getSourceClassName();
+		pending.incrementAndGet();
+		if (!queue.offer(record)) {
+			pending.decrementAndGet();
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * @return number of the log records dropped as the queue was full
+	 */
+	long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Waits until the queued log records are published.
+	 */
+	@Override
+	public void flush() {
+		while (pending.get() > 0 && worker.isAlive()) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(1);
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for (Handler delegate : delegates) {
+			delegate.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		worker.interrupt();
+		try {
+			worker.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+		publishAll();
+		long lost = dropped.sum();
+		if (lost > 0) {
+			publishToDelegates(new LogRecord(Level.WARNING, "Number of dropped log records=" + lost));
+		}
+		for (Handler delegate : delegates) {
+			delegate.close();
+		}
+	}
+
+	private void publishQueued() {
+		try {
+			while (!closed) {
+				LogRecord record = queue.take();
+				try {
+					publishToDelegates(record);
+				} finally {
+					pending.decrementAndGet();
+				}
+			}
+		} catch (InterruptedException exc) {
+			// closed, the rest published by close
+		}
+	}
+
+	private void publishAll() {
+		List<LogRecord> records = new ArrayList<LogRecord>(queue.size());
+		queue.drainTo(records);
+		for (LogRecord record : records) {
+			publishToDelegates(record);
+			pending.decrementAndGet();
+		}
+	}
+
+	private void publishToDelegates(LogRecord record) {
+		for (Handler delegate : delegates) {
+			delegate.publish(record);
+		}
+	}
+}
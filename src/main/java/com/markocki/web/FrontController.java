@@ -1,12 +1,21 @@
 package com.markocki.web;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletException;
@@ -16,33 +25,96 @@ import org.eclipse.jetty.server.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+import com.markocki.converter.ParallelRecordsUploader;
+import com.markocki.converter.RecordSink;
+import com.markocki.converter.RecordsExporter;
 import com.markocki.converter.RecordsUploader;
 import com.markocki.converter.RecordsUploaderFileParseException;
 import com.markocki.converter.RecordsUploaderInternalException;
+import com.markocki.converter.StagedRecordSink;
+import com.markocki.gson.JsonOutput;
+import com.markocki.gson.UploadStats;
 import com.markocki.model.Record;
-import com.markocki.storage.NoRecordFoundException;
-import com.markocki.storage.RecordStoreException;
+import com.markocki.storage.DeleteResult;
 import com.markocki.storage.Storage;
 
+import spark.Response;
 import spark.Route;
 
 public class FrontController {
 	private static final Logger logger = LoggerFactory.getLogger(FrontController.class);
 	public final static String PRIMARY_KEY_REQUEST_PARAMETER_NAME = ":key";
+	// optional, the record is deleted only if it was updated at the given time
+	public final static String UPDATED_TIMESTAMP_REQUEST_PARAMETER_NAME = "updatedTimestamp";
 	public final static String FILE_PART_NAME = "file";
+	// optional, the upload is ingested in the background if true
+	public final static String ASYNC_REQUEST_PARAMETER_NAME = "async";
+	public final static String JOB_ID_REQUEST_PARAMETER_NAME = ":id";
+	// the query of GET /records by the update time or by the name
+	public final static String UPDATED_SINCE_REQUEST_PARAMETER_NAME = "updatedSince";
+	public final static String NAME_REQUEST_PARAMETER_NAME = "name";
+	// the keys of the prefix, or from (inclusive) to (exclusive) the given ones, if the storage is ordered
+	public final static String PREFIX_REQUEST_PARAMETER_NAME = "prefix";
+	public final static String FROM_REQUEST_PARAMETER_NAME = "from";
+	public final static String TO_REQUEST_PARAMETER_NAME = "to";
+	// optional, the primary key of the last record of the previous page
+	public final static String AFTER_REQUEST_PARAMETER_NAME = "after";
+	public final static String LIMIT_REQUEST_PARAMETER_NAME = "limit";
+	// optional, csv (default) or ndjson
+	public final static String FORMAT_REQUEST_PARAMETER_NAME = "format";
+
+	// size (in bytes) of the uploaded file from which it is parsed in parallel
+	static final long parallelUploadThreshold = Long.getLong("app.upload.parallelThreshold", 16 * 1024 * 1024);
+	// approximate size (in bytes) of the part of the file parsed by a single task
+	private static final int parallelUploadChunkSize = Integer.getInteger("app.upload.parallelChunkSize",
+			4 * 1024 * 1024);
+	private static final ParallelRecordsUploader parallelUploader = new ParallelRecordsUploader(
+			ForkJoinPool.commonPool(), parallelUploadChunkSize);
+
+	// number of the keys of the duplicates listed in the upload response, 0 lists none
+	static final int uploadMaxDuplicateKeys = Integer.getInteger("app.upload.maxDuplicateKeys", 100);
+
+	// number of the asynchronous uploads ingested at the same time, the others queued
+	private static final int uploadJobsThreads = Integer.getInteger("app.upload.async.threads", 1);
+	private static final int uploadJobsQueueSize = Integer.getInteger("app.upload.async.queueSize", 16);
+	// number of the finished asynchronous uploads kept for polling
+	private static final int uploadJobsMaxFinished = Integer.getInteger("app.upload.async.maxFinishedJobs", 1000);
+	// time (in seconds) the shutdown waits for the asynchronous uploads
+	private static final long uploadJobsShutdownTimeout = Long.getLong("app.upload.async.shutdownTimeout", 60);
+
+	// number of primary keys that can be looked up by a single request
+	static final int lookupMaxKeys = Integer.getInteger("app.lookup.maxKeys", 1000);
+	// number of records returned by a single page of GET /records, also its default limit
+	static final int recordsMaxLimit = Integer.getInteger("app.records.maxLimit", 1000);
+	// size (in bytes) of the JSON of the records cached for GET, 0 disables the cache
+	private static final long jsonCacheMaxBytes = Long.getLong("app.cache.json.maxBytes", 64 * 1024 * 1024);
 
 	MultipartConfigElement multipartConfigElement;
 	Storage theStorage;
+	RecordJsonCache jsonCache;
+	UploadJobs uploadJobs;
 
 	public FrontController(Storage storage, String tmpDir) {
 		this.theStorage = storage;
 		this.multipartConfigElement = new MultipartConfigElement(tmpDir);
+		this.jsonCache = new RecordJsonCache(jsonCacheMaxBytes);
+		this.uploadJobs = new UploadJobs(uploadJobsThreads, uploadJobsQueueSize, uploadJobsMaxFinished);
 	}
 
 	Storage getStorage() {
 		return theStorage;
 	}
 
+	RecordJsonCache getJsonCache() {
+		return jsonCache;
+	}
+
+	UploadJobs getUploadJobs() {
+		return uploadJobs;
+	}
+
 	public Route echoRoute() {
 		return (request, response) -> {
 			logger.trace("Method called ...");
@@ -55,33 +127,49 @@ public class FrontController {
 		return (request, response) -> {
 			logger.trace("[DELETE] Method called ...");
 
-			Record record;
 			String key = request.params(PRIMARY_KEY_REQUEST_PARAMETER_NAME);
-
-			logger.debug("[DELETE] Looking for record of primary key:" + key);
-
-			try {
-				record = getStorage().findByPrimaryKey(key);
-			} catch (NoRecordFoundException exc) {
-				logger.warn("[DELETE] Failure while looking for the record of primiary key=" + key, exc);
-				throw exc;
+			Metrics.deleteLookups.increment();
+			String expectedTimestamp = request.queryParams(UPDATED_TIMESTAMP_REQUEST_PARAMETER_NAME);
+
+			logger.debug("[DELETE] Removing record of primary key:{}", key);
+
+			// looked up and removed in one storage operation, so the concurrent deletes of the key do not fail
+			DeleteResult result;
+			if (expectedTimestamp == null) {
+				result = getStorage().deleteByPrimaryKey(key);
+			} else {
+				long timestamp = parseTimestamp(expectedTimestamp);
+				result = getStorage().deleteIf(key, record -> record.getUpdatedTimestamp() == timestamp);
 			}
 
-			try {
-				getStorage().delete(record);
-			} catch (NoRecordFoundException exc) {
-				logger.warn("[DELETE] Failure while removing the found record of primiary key=" + key, exc);
-				throw exc;
+			switch (result) {
+			case REMOVED:
+				getJsonCache().invalidate(key);
+
+				String responseStr = "Record deleted for PRIMARY_KEY=" + key;
+				logger.debug("[DELETE] {}", responseStr);
+				ResponseBuilder.createtResponseOK(response, responseStr);
+				break;
+			case CONDITION_NOT_MET:
+				logger.debug("[DELETE] Record of primary key={} not updated at {}", key, expectedTimestamp);
+				ResponseBuilder.createtResponseBadRequest(response,
+						"Record of PRIMARY_KEY=" + key + " has other UPDATED_TIMESTAMP than " + expectedTimestamp);
+				break;
+			default:
+				// a miss is the regular response, so without the exception
+				Metrics.deleteMisses.increment();
+				logger.debug("[DELETE] No record of primary key={}", key);
+				ResponseBuilder.createtResponseNoRecord(response, key);
 			}
 
-			String responseStr = "Record deleted for PRIMARY_KEY=" + key;
-			logger.debug("[DELETE] " + responseStr);
-			ResponseBuilder.createtResponseOK(response, responseStr);
-
 			return response.body();
 		};
 	}
 
+	private static long parseTimestamp(String timestamp) throws InvalidRequestException {
+		return parseNumber(UPDATED_TIMESTAMP_REQUEST_PARAMETER_NAME, timestamp);
+	}
+
 	public Route get() {
 		return (request, response) -> {
 			logger.trace("[GET] Method called ...");
@@ -89,27 +177,360 @@ public class FrontController {
 			Record record;
 
 			String key = request.params(PRIMARY_KEY_REQUEST_PARAMETER_NAME);
+			Metrics.getLookups.increment();
+
+			logger.debug("[GET] Looking for record of primary key:{}", key);
 
-			logger.debug("[GET] Looking for record of primary key:" + key);
+			RecordJsonCache jsonCache = getJsonCache();
+			byte[] json = jsonCache.get(key);
+			if (json != null) {
+				logger.debug("[GET] Found cached record for primary key:{}", key);
+				return ResponseBuilder.createtResponseOK(response, json);
+			}
 
+			long stamp = jsonCache.stamp(key);
+			// a miss is the regular response, so without the exception
+			Optional<Record> found = getStorage().find(key);
+			if (!found.isPresent()) {
+				Metrics.getMisses.increment();
+				logger.debug("[GET] No record of primary key={}", key);
+				ResponseBuilder.createtResponseNoRecord(response, key);
+				return response.body();
+			}
+			record = found.get();
+
+			// the record is written to the response as the cached bytes, i.e. converted to JSON once
+			json = ResponseBuilder.toJson(record);
+			jsonCache.put(key, json, stamp);
+
+			// the record converted to JSON again only if logged
+			logger.debug("[GET] Found record for primary key:{}. Record content: {}", key, record);
+			return ResponseBuilder.createtResponseOK(response, json);
+		};
+	}
+
+	public Route metrics() {
+		return (request, response) -> {
+			response.type(Metrics.CONTENT_TYPE);
+			return Metrics.render(getStorage());
+		};
+	}
+
+	/**
+	 * Looks up the records of the JSON array of primary keys, responds with
+	 * the found records and the keys of no record, i.e.
+	 * {"records":[...],"missing":[...]}
+	 */
+	public Route lookup() {
+		return (request, response) -> {
+			logger.trace("[LOOKUP] Method called ...");
+
+			String[] keys;
 			try {
-				record = getStorage().findByPrimaryKey(key);
-			} catch (NoRecordFoundException exc) {
-				logger.warn("[GET] Failure while looking for the record of primiary key=" + key, exc);
-				throw exc;
+				keys = JsonOutput.gson().fromJson(request.body(), String[].class);
+			} catch (JsonParseException exc) {
+				logger.debug("[LOOKUP] Incorrect request: {}", exc.getMessage());
+				keys = null;
+			}
+			if (keys == null || Arrays.asList(keys).contains(null)) {
+				throw new InvalidRequestException("Request must be a JSON array of primary keys");
+			}
+			if (keys.length > lookupMaxKeys) {
+				throw new InvalidRequestException("At most " + lookupMaxKeys
+						+ " primary keys can be looked up at once, received " + keys.length);
 			}
 
-			logger.debug("[GET] Found record for primary key:" + key + ". Record content: " + record);
-			ResponseBuilder.createtResponseOK(response, record);
+			Metrics.lookupLookups.add(keys.length);
+			List<String> primaryKeys = Arrays.asList(keys);
+			List<Record> records = getStorage().findByPrimaryKeys(primaryKeys);
+
+			response.status(200);
+			response.type("application/json");
+
+			// streamed, so the response is not built in memory
+			JsonWriter writer = JsonOutput.newWriter(
+					new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8));
+			writer.beginObject();
+			writer.name("records");
+			writer.beginArray();
+			int found = 0;
+			for (Record record : records) {
+				if (record != null) {
+					JsonOutput.write(record, writer);
+					found++;
+				}
+			}
+			writer.endArray();
+			writer.name("missing");
+			writer.beginArray();
+			for (int i = 0; i < keys.length; i++) {
+				if (records.get(i) == null) {
+					writer.value(keys[i]);
+				}
+			}
+			writer.endArray();
+			writer.endObject();
+			writer.flush();
 
-			return response.body();
+			Metrics.lookupMisses.add(keys.length - found);
+			logger.debug("[LOOKUP] Number of looked up keys={}, found records={}", keys.length, found);
+			return "";
 		};
 	}
 
-	List<Record> getAllRecords(BufferedReader reader) throws IOException, RecordsUploaderFileParseException{
-		return RecordsUploader.tryRetrieveRecords(reader);
+	/**
+	 * Queries the records by the update time (updatedSince, the records
+	 * updated at or after it in the order of the time), by the name, or by the
+	 * primary keys (of the prefix, or from and optionally to the given ones, in
+	 * the order of the keys, if the storage is ordered), page by page, i.e.
+	 * {"records":[...],"next":{...}}. The next page is requested with the
+	 * parameters of "next", which is missing on the last page.
+	 */
+	public Route records() {
+		return (request, response) -> {
+			logger.trace("[RECORDS] Method called ...");
+
+			String updatedSince = request.queryParams(UPDATED_SINCE_REQUEST_PARAMETER_NAME);
+			String name = request.queryParams(NAME_REQUEST_PARAMETER_NAME);
+			String prefix = request.queryParams(PREFIX_REQUEST_PARAMETER_NAME);
+			String from = request.queryParams(FROM_REQUEST_PARAMETER_NAME);
+			String to = request.queryParams(TO_REQUEST_PARAMETER_NAME);
+			String after = request.queryParams(AFTER_REQUEST_PARAMETER_NAME);
+			if (countGiven(updatedSince, name, prefix, from) != 1 || (to != null && from == null)) {
+				throw new InvalidRequestException("Exactly one of " + UPDATED_SINCE_REQUEST_PARAMETER_NAME + ", "
+						+ NAME_REQUEST_PARAMETER_NAME + ", " + PREFIX_REQUEST_PARAMETER_NAME + " or "
+						+ FROM_REQUEST_PARAMETER_NAME + " (optionally with " + TO_REQUEST_PARAMETER_NAME
+						+ ") must be given");
+			}
+			if (to != null && from.compareTo(to) > 0) {
+				throw new InvalidRequestException(FROM_REQUEST_PARAMETER_NAME + " must not be after "
+						+ TO_REQUEST_PARAMETER_NAME + ", received " + from + " and " + to);
+			}
+			long since = updatedSince != null ? parseNumber(UPDATED_SINCE_REQUEST_PARAMETER_NAME, updatedSince) : 0;
+			int limit = parseLimit(request.queryParams(LIMIT_REQUEST_PARAMETER_NAME));
+
+			if ((updatedSince != null || name != null) && !getStorage().isIndexed()) {
+				throw new UnsupportedRequestException("Records are not indexed, see app.storage.indexes");
+			}
+			if ((prefix != null || from != null) && !getStorage().isOrdered()) {
+				throw new UnsupportedRequestException("Records are not ordered by the primary key, see app.storage.type");
+			}
+
+			Iterator<Record> records;
+			if (updatedSince != null) {
+				records = getStorage().findUpdatedSince(since, after).iterator();
+			} else if (name != null) {
+				records = getStorage().findByName(name, after).iterator();
+			} else if (prefix != null) {
+				records = findByPrimaryKeyRange(prefix, after, prefixEnd(prefix));
+			} else {
+				records = findByPrimaryKeyRange(from, after, to);
+			}
+
+			response.status(200);
+			response.type("application/json");
+
+			// streamed while looked up, so neither the page nor the result is built in memory
+			JsonWriter writer = JsonOutput.newWriter(
+					new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8));
+			writer.beginObject();
+			writer.name("records");
+			writer.beginArray();
+			Record last = null;
+			int found = 0;
+			while (found < limit && records.hasNext()) {
+				last = records.next();
+				JsonOutput.write(last, writer);
+				found++;
+			}
+			writer.endArray();
+			if (last != null && records.hasNext()) {
+				writer.name("next");
+				writer.beginObject();
+				if (updatedSince != null) {
+					writer.name(UPDATED_SINCE_REQUEST_PARAMETER_NAME).value(last.getUpdatedTimestamp());
+				} else if (name != null) {
+					writer.name(NAME_REQUEST_PARAMETER_NAME).value(name);
+				} else if (prefix != null) {
+					writer.name(PREFIX_REQUEST_PARAMETER_NAME).value(prefix);
+				} else {
+					writer.name(FROM_REQUEST_PARAMETER_NAME).value(from);
+					if (to != null) {
+						writer.name(TO_REQUEST_PARAMETER_NAME).value(to);
+					}
+				}
+				writer.name(AFTER_REQUEST_PARAMETER_NAME).value(last.getPrimaryKey());
+				writer.endObject();
+			}
+			writer.endObject();
+			writer.flush();
+
+			logger.debug("[RECORDS] Number of returned records={}", found);
+			return "";
+		};
+	}
+
+	private static int countGiven(String... parameters) {
+		int result = 0;
+		for (String parameter : parameters) {
+			if (parameter != null) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	// the keys from the given one, or only after the last one of the previous page
+	private Iterator<Record> findByPrimaryKeyRange(String from, String after, String to) {
+		boolean next = after != null && after.compareTo(from) >= 0;
+		return getStorage().findByPrimaryKeyRange(next ? after : from, !next, to).iterator();
 	}
-	
+
+	// the first key after all the keys of the prefix, null if there is no such key
+	static String prefixEnd(String prefix) {
+		for (int i = prefix.length() - 1; i >= 0; i--) {
+			char last = prefix.charAt(i);
+			if (last != Character.MAX_VALUE) {
+				return prefix.substring(0, i) + (char) (last + 1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Streams all the records, as the CSV of the uploaded files or NDJSON, in
+	 * the order of the update time and the primary key (if the records are
+	 * indexed). An interrupted export is resumed with updatedSince and after
+	 * of the last received record, like GET /records.
+	 */
+	public Route export() {
+		return (request, response) -> {
+			logger.trace("[EXPORT] Method called ...");
+
+			String format = Optional.ofNullable(request.queryParams(FORMAT_REQUEST_PARAMETER_NAME))
+					.orElse(RecordsExporter.CSV_FORMAT);
+			if (!RecordsExporter.CSV_FORMAT.equals(format) && !RecordsExporter.NDJSON_FORMAT.equals(format)) {
+				throw new InvalidRequestException(FORMAT_REQUEST_PARAMETER_NAME + " must be "
+						+ RecordsExporter.CSV_FORMAT + " or " + RecordsExporter.NDJSON_FORMAT + ", received " + format);
+			}
+			String updatedSince = request.queryParams(UPDATED_SINCE_REQUEST_PARAMETER_NAME);
+			String after = request.queryParams(AFTER_REQUEST_PARAMETER_NAME);
+			long since = updatedSince != null ? parseNumber(UPDATED_SINCE_REQUEST_PARAMETER_NAME, updatedSince)
+					: Long.MIN_VALUE;
+
+			Iterable<Record> records;
+			if (getStorage().isIndexed()) {
+				records = getStorage().findUpdatedSince(since, after);
+			} else if (updatedSince != null || after != null) {
+				throw new UnsupportedRequestException("Records are not indexed, export cannot be resumed");
+			} else {
+				// in no particular order, so it cannot be resumed
+				records = getStorage().findAll();
+			}
+
+			response.status(200);
+			response.type(RecordsExporter.contentType(format));
+
+			// the response is sent in chunks as the buffer fills, so the export takes constant memory
+			RecordsExporter exporter = new RecordsExporter(new BufferedWriter(
+					new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8)), format);
+			long exported = 0;
+			try {
+				exporter.writeHeader();
+				for (Record record : records) {
+					exporter.write(record);
+					exported++;
+				}
+				exporter.writeEnd();
+			} catch (IOException exc) {
+				// the client is gone, nothing to respond
+				logger.debug("[EXPORT] Export interrupted after {} records: {}", exported, exc.getMessage());
+				return "";
+			}
+
+			logger.debug("[EXPORT] Number of exported records={}", exported);
+			return "";
+		};
+	}
+
+	private static int parseLimit(String limit) throws InvalidRequestException {
+		if (limit == null) {
+			return recordsMaxLimit;
+		}
+		long result = parseNumber(LIMIT_REQUEST_PARAMETER_NAME, limit);
+		if (result < 1 || result > recordsMaxLimit) {
+			throw new InvalidRequestException(
+					LIMIT_REQUEST_PARAMETER_NAME + " must be from 1 to " + recordsMaxLimit + ", received " + limit);
+		}
+		return (int) result;
+	}
+
+	private static long parseNumber(String parameterName, String value) throws InvalidRequestException {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException exc) {
+			throw new InvalidRequestException(parameterName + " must be a number, received " + value);
+		}
+	}
+
+	// the records are staged until the whole file is validated, so only completely correct files get stored
+	void storeAllRecords(InputStream fileInputStream, RecordSink sink)
+			throws IOException, RecordsUploaderFileParseException {
+		RecordsUploader.tryRetrieveRecords(fileInputStream,
+				new StagedRecordSink(sink, new File(multipartConfigElement.getLocation())));
+	}
+
+	// big files are parsed in parallel, which needs the file on the disk
+	void storeAllRecords(Part filePart, RecordSink sink) throws IOException, RecordsUploaderFileParseException {
+		File file = spool(filePart);
+		try {
+			parallelUploader.tryRetrieveRecords(file, new StagedRecordSink(sink, file.getParentFile()));
+		} finally {
+			file.delete();
+		}
+	}
+
+	File spool(Part filePart) throws IOException {
+		String fileName = "upload-" + UUID.randomUUID() + ".csv";
+
+		// jetty keeps the part in the location already, so it is just renamed
+		filePart.write(fileName);
+		return new File(multipartConfigElement.getLocation(), fileName);
+	}
+
+	// the file of the asynchronous upload, already spooled
+	UploadStats ingest(UploadJob job) throws IOException, RecordsUploaderFileParseException {
+		File file = job.getFile();
+		StagedRecordSink staged = job.stage(new StagedRecordSink(job.getSink(), file.getParentFile()));
+
+		long start = System.nanoTime();
+		long size = file.length();
+		if (size >= parallelUploadThreshold) {
+			parallelUploader.tryRetrieveRecords(file, staged);
+		} else {
+			try (InputStream fileInputStream = new FileInputStream(file);) {
+				RecordsUploader.tryRetrieveRecords(fileInputStream, staged);
+			}
+		}
+		return uploadStats(job.getSink(), size, start);
+	}
+
+	private static UploadStats uploadStats(StorageRecordSink sink, long size, long start) {
+		long nanos = System.nanoTime() - start;
+		long storeMillis = TimeUnit.NANOSECONDS.toMillis(sink.getStoreNanos());
+		long parseMillis = TimeUnit.NANOSECONDS.toMillis(nanos) - storeMillis;
+		Metrics.uploaded(size, sink.getReceived(), nanos);
+
+		// aggregated, so an upload of many duplicates does not flood the log
+		logger.info(
+				"[UPLOAD] Uploaded successfully. Number of records read={}, stored={}, duplicates in file={}, duplicates in storage={}, parse time={}ms, store time={}ms",
+				sink.getReceived(), sink.getStored(), sink.getDuplicatesInFile(), sink.getDuplicatesInStorage(),
+				parseMillis, storeMillis);
+		return new UploadStats("Uploaded successfully", sink.getReceived(), sink.getStored(),
+				sink.getDuplicatesInFile(), sink.getDuplicatesInStorage(), parseMillis, storeMillis,
+				uploadMaxDuplicateKeys > 0 ? sink.getDuplicateKeys() : null);
+	}
+
 	public Route upload() {
 		return (request, response) -> {
 			logger.trace("[UPLOAD] Method called ...");
@@ -127,34 +548,27 @@ public class FrontController {
 				if (filePart != null) {
 					logger.trace("[UPLOAD] request part 'file' found");
 
-					try (InputStream fileInputStream = filePart.getInputStream();
-							BufferedReader reader = new BufferedReader(new InputStreamReader(fileInputStream));) {
-						logger.trace("[UPLOAD] reading file content");
+					try {
+						// stream all records within the file (even duplicates) to the storage
+						StorageRecordSink sink = new StorageRecordSink(getStorage(), uploadMaxDuplicateKeys);
 
-						// get all records within the file (even duplicates)
-						List<Record> result = getAllRecords(reader);
-
-						logger.info("[UPLOAD] Number of records read=" + result.size());
-
-						logger.trace("[UPLOAD] saving the records to the storage");
-						
-						long successfullyStored = 0;
-						for (Iterator<Record> iterator = result.iterator(); iterator.hasNext();) {
-							Record record = (Record) iterator.next();
+						if (Boolean.parseBoolean(request.queryParams(ASYNC_REQUEST_PARAMETER_NAME))) {
+							// ingested in the background, so the request does not wait for it
+							return submitUploadJob(spool(filePart), sink, response);
+						}
 
-							try {
-								getStorage().save(record);
-								successfullyStored ++;
-							} catch (RecordStoreException exc) {
-								// duplicate found, ignore the record to be store, preserve the old one
-								logger.warn("[UPLOAD] Cannot store given record: " + record + " befause of: "+exc.getMessage());
+						long start = System.nanoTime();
+						long size = filePart.getSize();
+						if (size >= parallelUploadThreshold) {
+							logger.trace("[UPLOAD] parsing file content in parallel");
+							storeAllRecords(filePart, sink);
+						} else {
+							try (InputStream fileInputStream = filePart.getInputStream();) {
+								logger.trace("[UPLOAD] reading file content");
+								storeAllRecords(fileInputStream, sink);
 							}
 						}
-
-						logger.trace("[UPLOAD] saving the records to the storage - completed. Number of stored records="+successfullyStored );
-
-						logger.info("[UPLOAD] Uploaded successfully. Number of stored records="+successfullyStored);
-						ResponseBuilder.createtResponseOK(response, "Uploaded successfully");
+						ResponseBuilder.createtResponseOK(response, uploadStats(sink, size, start));
 					} catch (IOException exc) {
 						logger.error("[UPLOAD] Internal error while uploading the file.", exc);
 						throw new RecordsUploaderInternalException(
@@ -176,4 +590,51 @@ public class FrontController {
 		};
 	}
 
+	private String submitUploadJob(File file, StorageRecordSink sink, Response response) throws IOException {
+		UploadJob job = new UploadJob(UUID.randomUUID().toString(), file, sink);
+		try {
+			getUploadJobs().submit(job, this::ingest);
+		} catch (RejectedExecutionException exc) {
+			logger.warn("[UPLOAD] Too many upload jobs, upload rejected");
+			ResponseBuilder.createtResponseServiceUnavailable(response, "Too many upload jobs, try again later");
+			return response.body();
+		}
+
+		logger.info("[UPLOAD] Upload job {} submitted", job.getId());
+		response.status(202);
+		response.type("application/json");
+		return toJson(job);
+	}
+
+	public Route uploadJob() {
+		return (request, response) -> {
+			logger.trace("[UPLOAD JOB] Method called ...");
+
+			String id = request.params(JOB_ID_REQUEST_PARAMETER_NAME);
+			UploadJob job = getUploadJobs().get(id);
+			if (job == null) {
+				ResponseBuilder.createtResponseBadRequest(response, "No upload job of id=" + id);
+				return response.body();
+			}
+
+			response.status(200);
+			response.type("application/json");
+			return toJson(job);
+		};
+	}
+
+	private static String toJson(UploadJob job) throws IOException {
+		StringWriter result = new StringWriter();
+		JsonWriter writer = JsonOutput.newWriter(result);
+		job.write(writer);
+		writer.flush();
+		return result.toString();
+	}
+
+	/**
+	 * Waits for the upload jobs, to be called before the storage is closed.
+	 */
+	public void shutdown() {
+		getUploadJobs().shutdown(uploadJobsShutdownTimeout, TimeUnit.SECONDS);
+	}
 }
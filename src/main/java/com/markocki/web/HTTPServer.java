@@ -4,26 +4,40 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.markocki.storage.NoRecordFoundException;
 import com.markocki.storage.Storage;
 import com.markocki.storage.StorageFactory;
 import com.markocki.converter.RecordsUploaderFileParseException;
 import com.markocki.converter.RecordsUploaderInternalException;
-import com.markocki.gson.ExceptionAdapter;
+import com.markocki.gson.JsonOutput;
 import com.markocki.gson.SimpleMessage;
 
 import spark.Route;
 import spark.Spark;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 public class HTTPServer {
 	private static final Logger logger = LoggerFactory.getLogger(HTTPServer.class);
 	private static final String tmpdir = System.getProperty("java.io.tmpdir");
 	private static final String storagedir = System.getProperty("app.storage.dir", tmpdir);
 	private static final int port = Integer.getInteger("port", 8080);
+	private static final String storageType = System.getProperty("app.storage.type", StorageFactory.SIMPLE_STORAGE_TYPE);
+	// the Jetty thread pool, Spark defaults if not set
+	private static final int maxThreads = Integer.getInteger("app.server.maxThreads", -1);
+	private static final int minThreads = Integer.getInteger("app.server.minThreads", -1);
+	private static final int idleTimeout = Integer.getInteger("app.server.idleTimeout", -1);
+	// requests handled on virtual threads (Java 21 or newer), instead of the thread pool
+	private static final boolean virtualThreads = Boolean.getBoolean("app.server.virtualThreads");
+	// the log written on a background thread, not the request one
+	private static final boolean asyncLog = Boolean.parseBoolean(System.getProperty("app.log.async", "true"));
+	private static final int asyncLogQueueSize = Integer.getInteger("app.log.async.queueSize", 8192);
 
 	public static void main(String[] args) {
-		Storage theStorage = StorageFactory.loadStorage(storagedir);
+		if (asyncLog) {
+			AsyncLogHandler.install(asyncLogQueueSize);
+		}
+		Storage theStorage = StorageFactory.loadStorage(storagedir, storageType);
 		FrontController fc = new FrontController(theStorage, tmpdir);
 
 		HTTPServer server = new HTTPServer(port, fc);
@@ -33,6 +47,7 @@ public class HTTPServer {
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			public void run() {
 				server.stop();
+				fc.shutdown();
 				StorageFactory.closeStorage(theStorage, storagedir);
 				logger.info("Server stopped");
 			}
@@ -43,15 +58,22 @@ public class HTTPServer {
 
 	public HTTPServer(int port, FrontController fc) {
 		Spark.port(port);
+		setupThreadPool();
     	
         Spark.staticFiles.location("/");
 
         setupExceptionHandlers();
         
-        createGetEndpoint("/echo", fc.echoRoute());
-        createGetEndpoint("/record/"+FrontController.PRIMARY_KEY_REQUEST_PARAMETER_NAME, fc.get());
-        createDeleteEndpoint("/record/"+FrontController.PRIMARY_KEY_REQUEST_PARAMETER_NAME, fc.delete());
-        createPostEndpoint("/upload", fc.upload());
+        // latencies recorded by route
+        createGetEndpoint("/echo", Metrics.timed("echo", fc.echoRoute()));
+        createGetEndpoint("/metrics", fc.metrics());
+        createGetEndpoint("/record/"+FrontController.PRIMARY_KEY_REQUEST_PARAMETER_NAME, Metrics.timed("get", fc.get()));
+        createDeleteEndpoint("/record/"+FrontController.PRIMARY_KEY_REQUEST_PARAMETER_NAME, Metrics.timed("delete", fc.delete()));
+        createPostEndpoint("/upload", Metrics.timed("upload", fc.upload()));
+        createGetEndpoint("/upload/jobs/"+FrontController.JOB_ID_REQUEST_PARAMETER_NAME, Metrics.timed("upload_job", fc.uploadJob()));
+        createPostEndpoint("/records/lookup", Metrics.timed("lookup", fc.lookup()));
+        createGetEndpoint("/records", Metrics.timed("records", fc.records()));
+        createGetEndpoint("/records/export", Metrics.timed("export", fc.export()));
                
         logger.info("Server configured");
 	}
@@ -66,9 +88,33 @@ public class HTTPServer {
 
 	}
 
-	
+	// to be set up before the first route, which starts the server
+	private void setupThreadPool() {
+		if (virtualThreads) {
+			VirtualThreadPool threadPool = VirtualThreadPool.create("http-");
+			if (threadPool != null) {
+				EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY,
+						new EmbeddedJettyFactory().withThreadPool(threadPool));
+				logger.info("Requests handled on virtual threads");
+				return;
+			}
+			logger.warn("Virtual threads are not supported by Java {}, the thread pool is used",
+					System.getProperty("java.version"));
+		}
+
+		if (maxThreads > 0) {
+			// the same defaults as of Spark
+			int min = minThreads > 0 ? minThreads : Math.min(8, maxThreads);
+			int idle = idleTimeout > 0 ? idleTimeout : 60000;
+			Spark.threadPool(maxThreads, min, idle);
+			logger.info("Thread pool of max threads={}, min threads={}, idle timeout={}ms", maxThreads, min, idle);
+		} else if (minThreads > 0 || idleTimeout > 0) {
+			logger.warn("app.server.minThreads and app.server.idleTimeout are used only with app.server.maxThreads");
+		}
+	}
+
 	private void setupExceptionHandlers() {
-		Gson gson = (new GsonBuilder()).setPrettyPrinting().registerTypeHierarchyAdapter(Exception.class, new ExceptionAdapter()).create();
+		Gson gson = JsonOutput.gson();
 
 		Spark.notFound(gson.toJson(new SimpleMessage("nothing here")));
         
@@ -84,6 +130,16 @@ public class HTTPServer {
            	response.status(400);
         });
         
+        Spark.exception(InvalidRequestException.class, (exception, request, response) -> {
+            response.body(gson.toJson(exception));
+           	response.status(400);
+        });
+        
+        Spark.exception(UnsupportedRequestException.class, (exception, request, response) -> {
+            response.body(gson.toJson(exception));
+           	response.status(501);
+        });
+        
         Spark.exception(RecordsUploaderInternalException.class, (exception, request, response) -> {
             response.body(gson.toJson(exception));
            	response.status(500);
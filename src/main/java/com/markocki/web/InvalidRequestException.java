@@ -0,0 +1,7 @@
+package com.markocki.web;
+
+public class InvalidRequestException extends Exception {
+	public InvalidRequestException(String message) {
+		super(message);
+	}
+}
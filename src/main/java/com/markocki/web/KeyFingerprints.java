@@ -0,0 +1,68 @@
+package com.markocki.web;
+
+/**
+ * Set of the primary keys seen in the uploaded file, kept as their 64-bit
+ * hashes in an open-addressing (linear probing) table. 16 to 32 bytes per
+ * key (a long at the load factor kept between 1/4 and 1/2), unlike the
+ * strings themselves, so even the files of millions of records can be checked
+ * for the duplicates. Two different keys of the same
+ * hash are taken for a duplicate, which for 64 bits is improbable.
+ */
+class KeyFingerprints {
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// 0 means empty slot
+	private long[] fingerprints = new long[1024];
+	private int size;
+
+	/**
+	 * @return false if the key was already added
+	 */
+	boolean add(String primaryKey) {
+		if (2 * (size + 1) > fingerprints.length) {
+			resize();
+		}
+		if (insert(fingerprints, fingerprint(primaryKey))) {
+			size++;
+			return true;
+		}
+		return false;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void resize() {
+		long[] resized = new long[2 * fingerprints.length];
+		for (long fingerprint : fingerprints) {
+			if (fingerprint != 0) {
+				insert(resized, fingerprint);
+			}
+		}
+		fingerprints = resized;
+	}
+
+	private static boolean insert(long[] table, long fingerprint) {
+		int mask = table.length - 1;
+		for (int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;; slot = (slot + 1) & mask) {
+			if (table[slot] == 0) {
+				table[slot] = fingerprint;
+				return true;
+			}
+			if (table[slot] == fingerprint) {
+				return false;
+			}
+		}
+	}
+
+	// FNV-1a of the characters, never 0
+	static long fingerprint(String primaryKey) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < primaryKey.length(); i++) {
+			hash = (hash ^ primaryKey.charAt(i)) * FNV_PRIME;
+		}
+		return hash != 0 ? hash : 1;
+	}
+}
@@ -0,0 +1,63 @@
+package com.markocki.web;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram of log-linear buckets (two per power of two, like the
+ * HDR histograms of low precision) from 4 microseconds to 33 seconds. Every
+ * bucket is a LongAdder, so the recording is lock-free and the concurrent
+ * requests do not contend on a single counter.
+ */
+class LatencyHistogram {
+	// upper bounds (in microseconds) of the buckets: 4, 6, 8, 12, 16, 24, ...
+	private static final long[] BOUNDS = bounds(2, 25);
+
+	// the last one is of the latencies above all the bounds
+	private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+	private final LongAdder sumMicros = new LongAdder();
+
+	LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	void record(long nanos) {
+		long micros = nanos / 1000;
+		int index = Arrays.binarySearch(BOUNDS, micros);
+		buckets[index >= 0 ? index : -index - 1].increment();
+		sumMicros.add(micros);
+	}
+
+	/**
+	 * Appends the Prometheus histogram, i.e. the cumulative buckets of the
+	 * upper bounds in seconds, the sum and the count.
+	 */
+	void render(StringBuilder result, String name, String labels) {
+		long cumulative = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			cumulative += buckets[i].sum();
+			String bound = i < BOUNDS.length ? seconds(BOUNDS[i]) : "+Inf";
+			Metrics.sample(result, name + "_bucket{" + labels + ",le=\"" + bound + "\"}", cumulative);
+		}
+		result.append(name).append("_sum{").append(labels).append("} ").append(seconds(sumMicros.sum())).append('\n');
+		Metrics.sample(result, name + "_count{" + labels + "}", cumulative);
+	}
+
+	static long[] bounds(int fromPower, int toPower) {
+		long[] result = new long[2 * (toPower - fromPower) + 1];
+		for (int power = fromPower, i = 0; power <= toPower; power++) {
+			result[i++] = 1L << power;
+			if (power < toPower) {
+				result[i++] = 3L << (power - 1);
+			}
+		}
+		return result;
+	}
+
+	private static String seconds(long micros) {
+		return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+	}
+}
@@ -0,0 +1,132 @@
+package com.markocki.web;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.markocki.storage.Storage;
+import com.markocki.storage.StorageFactory;
+
+import spark.Route;
+
+/**
+ * Counters and latency histograms of the application, exposed by GET /metrics
+ * in the Prometheus text format. All of them recorded without the locks.
+ */
+class Metrics {
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	// lookups of the primary keys, by route
+	static final LongAdder getLookups = new LongAdder();
+	static final LongAdder deleteLookups = new LongAdder();
+	static final LongAdder lookupLookups = new LongAdder();
+
+	// lookups of the primary keys of no record, by route
+	static final LongAdder getMisses = new LongAdder();
+	static final LongAdder deleteMisses = new LongAdder();
+	static final LongAdder lookupMisses = new LongAdder();
+
+	static final LongAdder uploads = new LongAdder();
+	static final LongAdder uploadedBytes = new LongAdder();
+	static final LongAdder uploadedRecords = new LongAdder();
+	// throughput of the last successful upload
+	static volatile long lastUploadBytesPerSecond;
+	static volatile long lastUploadRecordsPerSecond;
+
+	// by route, in the order of the names
+	private static final Map<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+	/**
+	 * @return the route recording its latency under the given name, the
+	 *         failed requests included, and logging it to the sampled access
+	 *         log
+	 */
+	static Route timed(String name, Route route) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		latencies.put(name, histogram);
+		return (request, response) -> {
+			long start = System.nanoTime();
+			try {
+				return route.handle(request, response);
+			} finally {
+				long nanos = System.nanoTime() - start;
+				histogram.record(nanos);
+				AccessLog.log(name, request, response, nanos);
+			}
+		};
+	}
+
+	static void uploaded(long bytes, long records, long nanos) {
+		uploads.increment();
+		uploadedBytes.add(bytes);
+		uploadedRecords.add(records);
+		if (nanos > 0) {
+			lastUploadBytesPerSecond = bytes * TimeUnit.SECONDS.toNanos(1) / nanos;
+			lastUploadRecordsPerSecond = records * TimeUnit.SECONDS.toNanos(1) / nanos;
+		}
+	}
+
+	static String render(Storage storage) {
+		StringBuilder result = new StringBuilder(16 * 1024);
+
+		header(result, "simplerest_request_duration_seconds", "histogram", "Time of handling the requests.");
+		for (Map.Entry<String, LatencyHistogram> latency : latencies.entrySet()) {
+			latency.getValue().render(result, "simplerest_request_duration_seconds",
+					"route=\"" + latency.getKey() + "\"");
+		}
+
+		header(result, "simplerest_records", "gauge", "Number of the stored records.");
+		sample(result, "simplerest_records", storage.size());
+
+		header(result, "simplerest_record_lookups_total", "counter", "Lookups of the primary keys.");
+		sample(result, "simplerest_record_lookups_total{route=\"get\"}", getLookups.sum());
+		sample(result, "simplerest_record_lookups_total{route=\"delete\"}", deleteLookups.sum());
+		sample(result, "simplerest_record_lookups_total{route=\"lookup\"}", lookupLookups.sum());
+
+		header(result, "simplerest_record_misses_total", "counter", "Lookups of the primary keys of no record.");
+		sample(result, "simplerest_record_misses_total{route=\"get\"}", getMisses.sum());
+		sample(result, "simplerest_record_misses_total{route=\"delete\"}", deleteMisses.sum());
+		sample(result, "simplerest_record_misses_total{route=\"lookup\"}", lookupMisses.sum());
+
+		header(result, "simplerest_record_miss_ratio", "gauge", "Share of the lookups of no record since the start.");
+		ratio(result, "simplerest_record_miss_ratio{route=\"get\"}", getMisses.sum(), getLookups.sum());
+		ratio(result, "simplerest_record_miss_ratio{route=\"delete\"}", deleteMisses.sum(), deleteLookups.sum());
+		ratio(result, "simplerest_record_miss_ratio{route=\"lookup\"}", lookupMisses.sum(), lookupLookups.sum());
+
+		header(result, "simplerest_uploads_total", "counter", "Successful uploads.");
+		sample(result, "simplerest_uploads_total", uploads.sum());
+		header(result, "simplerest_upload_bytes_total", "counter", "Size of the successfully uploaded files.");
+		sample(result, "simplerest_upload_bytes_total", uploadedBytes.sum());
+		header(result, "simplerest_upload_records_total", "counter", "Records of the successfully uploaded files.");
+		sample(result, "simplerest_upload_records_total", uploadedRecords.sum());
+		header(result, "simplerest_last_upload_bytes_per_second", "gauge", "Throughput of the last upload.");
+		sample(result, "simplerest_last_upload_bytes_per_second", lastUploadBytesPerSecond);
+		header(result, "simplerest_last_upload_records_per_second", "gauge", "Throughput of the last upload.");
+		sample(result, "simplerest_last_upload_records_per_second", lastUploadRecordsPerSecond);
+
+		header(result, "simplerest_last_snapshot_duration_seconds", "gauge",
+				"Time of writing the last snapshot of the storage, -1 if none was written yet.");
+		long snapshotMillis = StorageFactory.getLastSnapshotMillis();
+		result.append("simplerest_last_snapshot_duration_seconds ")
+				.append(snapshotMillis < 0 ? "-1" : Double.toString(snapshotMillis / 1000.0)).append('\n');
+		header(result, "simplerest_last_snapshot_segments", "gauge",
+				"Segments written by the last snapshot, i.e. modified since the one before, -1 if none was written yet.");
+		sample(result, "simplerest_last_snapshot_segments", StorageFactory.getLastSnapshotSegments());
+
+		return result.toString();
+	}
+
+	static void header(StringBuilder result, String name, String type, String help) {
+		result.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		result.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	static void sample(StringBuilder result, String name, long value) {
+		result.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void ratio(StringBuilder result, String name, long part, long total) {
+		result.append(name).append(' ').append(total > 0 ? Double.toString((double) part / total) : "0").append('\n');
+	}
+}
@@ -0,0 +1,117 @@
+package com.markocki.web;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JSON of the records (UTF-8 bytes) served by GET, least recently used evicted
+ * when the cached bytes exceed the limit. The records cannot be updated, only
+ * deleted and stored again, so an entry is valid until the record is deleted.
+ * Split into segments, each with its own lock, so the concurrent reads do not
+ * wait for each other.
+ */
+class RecordJsonCache {
+	private static final int SEGMENTS = 16;
+	// approximate size of the map entry, the key and the array headers
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	RecordJsonCache(long maxBytes) {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(maxBytes / SEGMENTS);
+		}
+	}
+
+	/**
+	 * To be taken before the record is read from the storage and given to
+	 * {@link #put(String, byte[], long)}, so the JSON of the record deleted in
+	 * the meantime is not cached.
+	 */
+	long stamp(String primaryKey) {
+		return segment(primaryKey).invalidations;
+	}
+
+	/**
+	 * @return null if the JSON of the record is not cached
+	 */
+	byte[] get(String primaryKey) {
+		return segment(primaryKey).getJson(primaryKey);
+	}
+
+	void put(String primaryKey, byte[] json, long stamp) {
+		segment(primaryKey).putJson(primaryKey, json, stamp);
+	}
+
+	void invalidate(String primaryKey) {
+		segment(primaryKey).invalidate(primaryKey);
+	}
+
+	long cachedBytes() {
+		long result = 0;
+		for (Segment segment : segments) {
+			result += segment.cachedBytes();
+		}
+		return result;
+	}
+
+	private Segment segment(String primaryKey) {
+		int hash = primaryKey.hashCode();
+		return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	private static long entrySize(String primaryKey, byte[] json) {
+		return ENTRY_OVERHEAD + 2L * primaryKey.length() + json.length;
+	}
+
+	@SuppressWarnings("serial")
+	private static class Segment extends LinkedHashMap<String, byte[]> {
+		private final long maxBytes;
+		private long bytes;
+		// changed by every invalidation, read without the lock
+		private volatile long invalidations;
+
+		Segment(long maxBytes) {
+			// access ordered, so the eldest entry is the least recently used one
+			super(16, 0.75f, true);
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized byte[] getJson(String primaryKey) {
+			return get(primaryKey);
+		}
+
+		synchronized void putJson(String primaryKey, byte[] json, long stamp) {
+			long size = entrySize(primaryKey, json);
+			if (stamp != invalidations || size > maxBytes) {
+				return;
+			}
+
+			byte[] previous = put(primaryKey, json);
+			bytes += size;
+			if (previous != null) {
+				bytes -= entrySize(primaryKey, previous);
+			}
+
+			Iterator<Map.Entry<String, byte[]>> eldest = entrySet().iterator();
+			while (bytes > maxBytes) {
+				Map.Entry<String, byte[]> entry = eldest.next();
+				bytes -= entrySize(entry.getKey(), entry.getValue());
+				eldest.remove();
+			}
+		}
+
+		synchronized void invalidate(String primaryKey) {
+			invalidations++;
+			byte[] removed = remove(primaryKey);
+			if (removed != null) {
+				bytes -= entrySize(primaryKey, removed);
+			}
+		}
+
+		synchronized long cachedBytes() {
+			return bytes;
+		}
+	}
+}
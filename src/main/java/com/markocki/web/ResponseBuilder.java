@@ -1,15 +1,16 @@
 package com.markocki.web;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.markocki.gson.JsonOutput;
 import com.markocki.gson.SimpleMessage;
+import com.markocki.gson.UploadStats;
 import com.markocki.model.Record;
 
 import spark.Response;
 
 public class ResponseBuilder {
 	// as Gson is thread safe we can have one and reuse it for all Records.
-	static Gson gson = (new GsonBuilder()).setPrettyPrinting().create();
+	static Gson gson = JsonOutput.gson();
 
 	private static void createtResponse(Response response, int statusCode, String message) {
 		response.status(statusCode);
@@ -22,8 +23,40 @@ public class ResponseBuilder {
 		response.body(record.toString());
 	}
 
+	/**
+	 * @return the body to be returned by the route, written as it is
+	 */
+	public static byte[] createtResponseOK(Response response, byte[] json) {
+		// correctly processed - status 200
+		response.status(200);
+		return json;
+	}
+
+	public static byte[] toJson(Record record) {
+		return JsonOutput.toJsonBytes(record);
+	}
+
+	public static void createtResponseNoRecord(Response response, String primaryKey) {
+		// the same as for NoRecordFoundException - status 400
+		createtResponse(response, 400, "No record for PRIMARY_KEY=" + primaryKey);
+	}
+
+	public static void createtResponseBadRequest(Response response, String message) {
+		createtResponse(response, 400, message);
+	}
+
+	public static void createtResponseServiceUnavailable(Response response, String message) {
+		createtResponse(response, 503, message);
+	}
+
 	public static void createtResponseOK(Response response, String message) {
 		// correctly processed - status 200
 		createtResponse(response, 200, message);
 	}
+
+	public static void createtResponseOK(Response response, UploadStats stats) {
+		// correctly processed - status 200
+		response.status(200);
+		response.body(gson.toJson(stats));
+	}
 }
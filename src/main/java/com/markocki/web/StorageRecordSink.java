@@ -0,0 +1,128 @@
+package com.markocki.web;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.markocki.converter.RecordSink;
+import com.markocki.model.Record;
+import com.markocki.storage.RecordStoreException;
+import com.markocki.storage.SaveAllResult;
+import com.markocki.storage.Storage;
+
+/**
+ * Saves the published records of the uploaded file to the storage. The
+ * duplicates are ignored, the old records preserved, and only counted: the
+ * ones of a key already seen in the file apart from the ones of the records
+ * already stored before, told apart by the positions of the records in the
+ * results of the storage.
+ */
+class StorageRecordSink implements RecordSink {
+	private final Storage storage;
+	private final SaveAllResult result;
+	private final KeyFingerprints keysOfFile = new KeyFingerprints();
+	private long duplicatesInFile;
+	private long duplicatesInStorage;
+	// written by the storing thread only, read for the progress of the upload
+	private volatile long published;
+	private long storeNanos;
+
+	StorageRecordSink(Storage storage) {
+		this(storage, 0);
+	}
+
+	/**
+	 * @param maxDuplicateKeys number of the keys of the duplicates to be
+	 *                         reported
+	 */
+	StorageRecordSink(Storage storage, int maxDuplicateKeys) {
+		this.storage = storage;
+		this.result = new SaveAllResult(maxDuplicateKeys);
+	}
+
+	@Override
+	public void accept(Record record) throws IOException {
+		acceptAll(Collections.singletonList(record));
+	}
+
+	@Override
+	public void acceptAll(Iterable<Record> records) throws IOException {
+		long start = System.nanoTime();
+		int first = result.getRecords();
+		// positions of the duplicates in file from the first record
+		BitSet inFile = new BitSet();
+		try {
+			storage.saveAll(() -> countDuplicatesInFile(records.iterator(), inFile), result);
+		} catch (RecordStoreException exc) {
+			// not a duplicate, these are regular results
+			throw new IOException(exc.getMessage(), exc);
+		} finally {
+			countDuplicatesInStorage(first, inFile);
+			storeNanos += System.nanoTime() - start;
+		}
+	}
+
+	private Iterator<Record> countDuplicatesInFile(Iterator<Record> records, BitSet inFile) {
+		return new Iterator<Record>() {
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return records.hasNext();
+			}
+
+			@Override
+			public Record next() {
+				Record record = records.next();
+				published++;
+				if (!keysOfFile.add(record.getPrimaryKey())) {
+					duplicatesInFile++;
+					inFile.set(index);
+				}
+				index++;
+				return record;
+			}
+		};
+	}
+
+	// the ones rejected by the storage which are not duplicates in file
+	private void countDuplicatesInStorage(int first, BitSet inFile) {
+		for (int index = first; index < result.getRecords(); index++) {
+			if (result.isDuplicate(index) && !inFile.get(index - first)) {
+				duplicatesInStorage++;
+			}
+		}
+	}
+
+	// records handed to the storage so far
+	long getPublished() {
+		return published;
+	}
+
+	long getReceived() {
+		return result.getRecords();
+	}
+
+	long getStored() {
+		return result.getAccepted();
+	}
+
+	long getDuplicatesInFile() {
+		return duplicatesInFile;
+	}
+
+	long getDuplicatesInStorage() {
+		return duplicatesInStorage;
+	}
+
+	List<String> getDuplicateKeys() {
+		return result.getDuplicateKeys();
+	}
+
+	// time spent in the storage, the reading of the staged records included
+	long getStoreNanos() {
+		return storeNanos;
+	}
+}
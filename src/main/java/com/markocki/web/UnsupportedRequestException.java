@@ -0,0 +1,11 @@
+package com.markocki.web;
+
+/**
+ * The request is valid, but not supported by the configuration of the
+ * storage, e.g. the query by the name of the records not indexed.
+ */
+public class UnsupportedRequestException extends Exception {
+	public UnsupportedRequestException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,116 @@
+package com.markocki.web;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.stream.JsonWriter;
+import com.markocki.converter.RecordsUploaderFileParseException;
+import com.markocki.converter.StagedRecordSink;
+import com.markocki.gson.UploadStats;
+import com.markocki.gson.UploadStatsAdapter;
+
+/**
+ * Upload ingested in the background, from the file spooled by the request.
+ * Its progress is polled by GET /upload/jobs/{id}: the records parsed (and
+ * staged) so far, then the ones handed to the storage and finally the
+ * statistics of the upload or the error.
+ */
+class UploadJob {
+	enum State {
+		QUEUED, RUNNING, DONE, FAILED
+	}
+
+	interface Ingest {
+		UploadStats ingest(UploadJob job) throws IOException, RecordsUploaderFileParseException;
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(UploadJob.class);
+	private static final UploadStatsAdapter statsAdapter = new UploadStatsAdapter();
+
+	private final String id;
+	private final File file;
+	private final StorageRecordSink sink;
+
+	private volatile State state = State.QUEUED;
+	private volatile StagedRecordSink staged;
+	private volatile UploadStats result;
+	private volatile String error;
+
+	UploadJob(String id, File file, StorageRecordSink sink) {
+		this.id = id;
+		this.file = file;
+		this.sink = sink;
+	}
+
+	String getId() {
+		return id;
+	}
+
+	State getState() {
+		return state;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	StorageRecordSink getSink() {
+		return sink;
+	}
+
+	// the sink the file is parsed to, so the parsed records can be reported
+	StagedRecordSink stage(StagedRecordSink staged) {
+		this.staged = staged;
+		return staged;
+	}
+
+	void run(Ingest ingest) {
+		state = State.RUNNING;
+		try {
+			result = ingest.ingest(this);
+			state = State.DONE;
+		} catch (RecordsUploaderFileParseException exc) {
+			error = exc.getMessage();
+			state = State.FAILED;
+		} catch (IOException | RuntimeException exc) {
+			logger.error("[UPLOAD] Internal error while uploading the file of job {}", id, exc);
+			error = "Internal error while uploading the file =" + exc.getMessage();
+			state = State.FAILED;
+		} finally {
+			file.delete();
+		}
+	}
+
+	void fail(String error) {
+		this.error = error;
+		state = State.FAILED;
+		file.delete();
+	}
+
+	void write(JsonWriter out) throws IOException {
+		// state read first, so the result is complete if done
+		State current = state;
+		StagedRecordSink currentStaged = staged;
+
+		out.beginObject();
+		out.name("id");
+		out.value(id);
+		out.name("state");
+		out.value(current.name());
+		out.name("parsed");
+		out.value(currentStaged != null ? currentStaged.getStaged() : 0);
+		out.name("published");
+		out.value(sink.getPublished());
+		if (current == State.DONE) {
+			out.name("result");
+			statsAdapter.write(out, result);
+		} else if (current == State.FAILED) {
+			out.name("error");
+			out.value(error);
+		}
+		out.endObject();
+	}
+}
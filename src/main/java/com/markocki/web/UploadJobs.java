@@ -0,0 +1,103 @@
+package com.markocki.web;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The asynchronous uploads. Ingested by a bounded number of threads, the
+ * rest waiting in a bounded queue, so the ingest does not take the CPU of the
+ * other requests. The finished jobs are kept for polling, the oldest of them
+ * dropped above the given number.
+ */
+class UploadJobs {
+	private static final Logger logger = LoggerFactory.getLogger(UploadJobs.class);
+
+	private final ThreadPoolExecutor executor;
+	private final int maxFinishedJobs;
+	// guarded by itself, in the order of submission
+	private final Map<String, UploadJob> jobs = new LinkedHashMap<String, UploadJob>();
+
+	UploadJobs(int threads, int queueSize, int maxFinishedJobs) {
+		AtomicInteger counter = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), runnable -> {
+					Thread thread = new Thread(runnable, "upload-job-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.maxFinishedJobs = maxFinishedJobs;
+	}
+
+	/**
+	 * @throws RejectedExecutionException if there are too many jobs waiting
+	 */
+	UploadJob submit(UploadJob job, UploadJob.Ingest ingest) {
+		synchronized (jobs) {
+			jobs.put(job.getId(), job);
+			dropFinishedJobs();
+		}
+		try {
+			executor.execute(() -> job.run(ingest));
+		} catch (RejectedExecutionException exc) {
+			synchronized (jobs) {
+				jobs.remove(job.getId());
+			}
+			job.fail("Rejected");
+			throw exc;
+		}
+		return job;
+	}
+
+	/**
+	 * @return null if there is no such job
+	 */
+	UploadJob get(String id) {
+		synchronized (jobs) {
+			return jobs.get(id);
+		}
+	}
+
+	/**
+	 * Waits for the running and queued jobs, so the storage is not closed
+	 * while they are ingested.
+	 */
+	void shutdown(long timeout, TimeUnit unit) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeout, unit)) {
+				logger.warn("[UPLOAD] Upload jobs not finished in {} {}", timeout, unit);
+			}
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void dropFinishedJobs() {
+		int finished = 0;
+		for (UploadJob job : jobs.values()) {
+			if (isFinished(job)) {
+				finished++;
+			}
+		}
+		Iterator<UploadJob> oldest = jobs.values().iterator();
+		while (finished > maxFinishedJobs && oldest.hasNext()) {
+			if (isFinished(oldest.next())) {
+				oldest.remove();
+				finished--;
+			}
+		}
+	}
+
+	private static boolean isFinished(UploadJob job) {
+		return job.getState() == UploadJob.State.DONE || job.getState() == UploadJob.State.FAILED;
+	}
+}
@@ -0,0 +1,87 @@
+package com.markocki.web;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Jetty thread pool running every task on a new virtual thread, so a slow
+ * upload client holds only a cheap virtual thread and cannot starve the other
+ * requests of the pooled ones. The virtual threads are created through the
+ * reflection, as the application is built for Java 8, so available only when
+ * run on Java 21 or newer.
+ */
+class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+	private final ThreadFactory threadFactory;
+	private final AtomicInteger threads = new AtomicInteger();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	private VirtualThreadPool(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * @return null if the virtual threads are not supported by the running
+	 *         Java
+	 */
+	static VirtualThreadPool create(String namePrefix) {
+		ThreadFactory threadFactory = virtualThreadFactory(namePrefix);
+		return threadFactory != null ? new VirtualThreadPool(threadFactory) : null;
+	}
+
+	// Thread.ofVirtual().name(namePrefix, 0).factory(), null before Java 21
+	static ThreadFactory virtualThreadFactory(String namePrefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, namePrefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException exc) {
+			// no such methods, or only a preview feature
+			return null;
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		threads.incrementAndGet();
+		threadFactory.newThread(() -> {
+			try {
+				task.run();
+			} finally {
+				threads.decrementAndGet();
+			}
+		}).start();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		stopped.countDown();
+	}
+
+	@Override
+	public void join() throws InterruptedException {
+		stopped.await();
+	}
+
+	@Override
+	public int getThreads() {
+		return threads.get();
+	}
+
+	// a new thread for every task, so none of them is idle
+	@Override
+	public int getIdleThreads() {
+		return 0;
+	}
+
+	@Override
+	public boolean isLowOnThreads() {
+		return false;
+	}
+}
@@ -2,17 +2,27 @@ package com.markocki.converter;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.jupiter.api.Test;
 
 import com.markocki.model.Record;
+import com.markocki.model.RecordFactory;
 
 public class ConverterTest {
 
@@ -183,4 +193,256 @@ public class ConverterTest {
 		}
 	}		
 	
+
+	// collects the published records, remembers how the upload ended
+	static class CollectingSink implements RecordSink {
+		List<Record> records = new ArrayList<Record>();
+		boolean committed;
+		boolean rolledBack;
+
+		@Override
+		public void accept(Record record) {
+			records.add(record);
+		}
+
+		@Override
+		public void commit() {
+			committed = true;
+		}
+
+		@Override
+		public void rollback() {
+			rolledBack = true;
+		}
+	}
+
+	File spoolDirectory() {
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+
+	int stagedFilesCount() {
+		return spoolDirectory().list((directory, name) -> name.endsWith(".staged")).length;
+	}
+
+	@Test
+	void testStreamingCorrectFileIsPublishedAfterValidation() {
+		CollectingSink target = new CollectingSink();
+		int stagedFiles = stagedFilesCount();
+
+		try (InputStream fileInputStream = ConverterTest.class.getResourceAsStream("withDuplicates.txt");
+				BufferedReader reader = new BufferedReader(new InputStreamReader(fileInputStream));) {
+
+			RecordsUploader.tryRetrieveRecords(reader, new StagedRecordSink(target, spoolDirectory()));
+
+			assertTrue(target.committed, "Target should be committed");
+			assertEquals(4, target.records.size());
+			assertEquals("ala", target.records.get(0).getPrimaryKey(), "Records should be published in file order");
+			assertEquals("ola", target.records.get(3).getPrimaryKey(), "Records should be published in file order");
+			assertEquals("d", target.records.get(3).getDescription(), "Description is different");
+			assertEquals(2, target.records.get(3).getUpdatedTimestamp(), "Timestamp is different");
+			assertEquals(stagedFiles, stagedFilesCount(), "Staged file should be removed");
+		} catch (IOException | RecordsUploaderFileParseException exc) {
+			fail(exc);
+		}
+	}
+
+	@Test
+	void testStreamingIncorrectFileIsNotPublished() {
+		CollectingSink target = new CollectingSink();
+		int stagedFiles = stagedFilesCount();
+
+		try (InputStream fileInputStream = ConverterTest.class.getResourceAsStream("noEmptyLine.txt");
+				BufferedReader reader = new BufferedReader(new InputStreamReader(fileInputStream));) {
+
+			RecordsUploader.tryRetrieveRecords(reader, new StagedRecordSink(target, spoolDirectory()));
+			fail("Should throw exception as there is no empty line at the end of file");
+
+		} catch (RecordsUploaderFileParseException exc) {
+			assertEquals("Last line in the file must be empty but was not.", exc.getMessage());
+			assertEquals(0, target.records.size(), "No record should be published");
+			assertTrue(target.rolledBack, "Target should be rolled back");
+			assertEquals(stagedFiles, stagedFilesCount(), "Staged file should be removed");
+		} catch (IOException exc) {
+			fail(exc);
+		}
+	}
+
+	static final ForkJoinPool parserPool = new ForkJoinPool(4);
+
+	// parsed records or the error message, so both parsers can be compared
+	static String parseSequentially(byte[] content) throws IOException {
+		CollectingSink target = new CollectingSink();
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));) {
+			RecordsUploader.tryRetrieveRecords(reader, target);
+		} catch (RecordsUploaderFileParseException exc) {
+			return exc.getMessage();
+		}
+		return describe(target);
+	}
+
+	static String parseInParallel(byte[] content, int chunkSize) throws IOException {
+		File file = File.createTempFile("upload", ".csv");
+		CollectingSink target = new CollectingSink();
+		try {
+			Files.write(file.toPath(), content);
+			new ParallelRecordsUploader(parserPool, chunkSize).tryRetrieveRecords(file, target);
+		} catch (RecordsUploaderFileParseException exc) {
+			assertTrue(target.rolledBack, "Target should be rolled back");
+			return exc.getMessage();
+		} finally {
+			file.delete();
+		}
+		assertTrue(target.committed, "Target should be committed");
+		return describe(target);
+	}
+
+	static String describe(CollectingSink target) {
+		StringBuilder result = new StringBuilder();
+		for (Record record : target.records) {
+			result.append(record.getPrimaryKey()).append('|').append(record.getName()).append('|')
+					.append(record.getDescription()).append('|').append(record.getUpdatedTimestamp()).append('\n');
+		}
+		return result.toString();
+	}
+
+	@Test
+	void testParallelParsingMatchesSequentialParsing() throws IOException {
+		String[] files = { "correct.txt", "incorrectHeaderFieldName.txt", "incorrectHeaderLength.txt",
+				"incorrectSecondRecord.txt", "minimalButCorrect.txt", "noEmptyLine.txt", "noHeader.txt",
+				"primaryKeyEmpty.txt", "withDuplicates.txt" };
+
+		for (String name : files) {
+			byte[] content = Files.readAllBytes(new File(ConverterTest.class.getResource(name).getFile()).toPath());
+			String expected = parseSequentially(content);
+			for (int chunkSize : new int[] { 1, 5, 16, 1024 }) {
+				assertEquals(expected, parseInParallel(content, chunkSize), name + " parsed in chunks of " + chunkSize);
+			}
+		}
+	}
+
+	@Test
+	void testParallelParsingReportsLineNumbersWithinFile() throws IOException {
+		String header = "PRIMARY_KEY,NAME,DESCRIPTION,UPDATED_TIMESTAMP";
+		String[] separators = { "\n", "\r\n", "\r" };
+
+		for (String separator : separators) {
+			StringBuilder records = new StringBuilder(header).append(separator);
+			for (int i = 0; i < 500; i++) {
+				records.append("key").append(i).append(",nazwa \u017c\u00f3\u0142w,opis,").append(i).append(separator);
+			}
+
+			String[] contents = { records + separator, // correct
+					records + " " + separator + "  " + separator, // blank lines at the end
+					records.toString(), // no empty line at the end
+					records + "broken,line" + separator + separator, // incorrect record
+					records + separator + "key,n,d,1" + separator + separator, // empty line inside
+					records.toString().replace("key321,", ",") + separator, // empty primary key
+					records.toString().replace(",321" + separator, ",x" + separator) + separator, // bad timestamp
+					"" }; // empty file
+
+			for (String content : contents) {
+				byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+				String expected = parseSequentially(bytes);
+				for (int chunkSize : new int[] { 1, 64, 1000, 100000 }) {
+					assertEquals(expected, parseInParallel(bytes, chunkSize),
+							"Parsed in chunks of " + chunkSize + " with separator " + separator.length());
+				}
+			}
+		}
+
+		assertEquals("Line number 323 PRIMARY_KEY is empty but cannot.",
+				parseInParallel((header + "\n" + describeLines(500).replace("key321,", ",") + "\n").getBytes(StandardCharsets.UTF_8), 64));
+	}
+
+	static String describeLines(int count) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			result.append("key").append(i).append(",n,d,").append(i).append('\n');
+		}
+		return result.toString();
+	}
+
+	static String parseBytes(byte[] content) throws IOException {
+		CollectingSink target = new CollectingSink();
+		try {
+			RecordsUploader.tryRetrieveRecords(new ByteArrayInputStream(content), target);
+		} catch (RecordsUploaderFileParseException exc) {
+			return exc.getMessage();
+		}
+		return describe(target);
+	}
+
+	@Test
+	void testByteTokenizerMatchesReaderParsing() throws IOException {
+		String header = "PRIMARY_KEY,NAME,DESCRIPTION,UPDATED_TIMESTAMP";
+		StringBuilder longLine = new StringBuilder("long,");
+		for (int i = 0; i < 100000; i++) {
+			longLine.append((char) ('a' + i % 26));
+		}
+		longLine.append(",d,1");
+
+		String[] lines = { "ala,ma,kota,1", " \t ala , ma\u0001, kota ,\t12 ", "\u017c\u00f3\u0142w,\u0144,\u20ac,7",
+				"a,,,", ",a,b,1", " ,a,b,1", "a,b,c", "a,b,c,d,e", ",,,,", "a,b,c,+5", "a,b,c,-42", "a,b,c,-",
+				"a,b,c,+", "a,b,c,1x", "a,b,c,9223372036854775807", "a,b,c,9223372036854775808",
+				"a,b,c,-9223372036854775808", "a,b,c,\u0661\u0662", "a,b,c,1 2", longLine.toString() };
+
+		for (String line : lines) {
+			for (String separator : new String[] { "\n", "\r\n", "\r" }) {
+				String[] contents = { header + separator + line + separator + separator,
+						header + separator + "x,y,z,1" + separator + line + separator + " " + separator,
+						header + separator + line, header + separator + line + separator + separator + line };
+				for (String content : contents) {
+					byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+					assertEquals(parseSequentially(bytes), parseBytes(bytes), "Parsing " + line);
+				}
+			}
+		}
+
+		String[] files = { "correct.txt", "incorrectHeaderFieldName.txt", "incorrectHeaderLength.txt",
+				"incorrectSecondRecord.txt", "minimalButCorrect.txt", "noEmptyLine.txt", "noHeader.txt",
+				"primaryKeyEmpty.txt", "withDuplicates.txt" };
+		for (String name : files) {
+			byte[] content = Files.readAllBytes(new File(ConverterTest.class.getResource(name).getFile()).toPath());
+			assertEquals(parseSequentially(content), parseBytes(content), name);
+		}
+		assertEquals("Header's line cannot be empty", parseBytes(new byte[0]));
+	}
+
+	@Test
+	void testExportedRecordsCanBeUploaded() throws Exception {
+		List<Record> records = new ArrayList<Record>();
+		records.add(RecordFactory.createRecord("ala", "ma", "kota", 1));
+		records.add(RecordFactory.createRecord("\u017c\u00f3\u0142w", null, null, -42));
+
+		StringWriter csv = new StringWriter();
+		RecordsExporter exporter = new RecordsExporter(csv, RecordsExporter.CSV_FORMAT);
+		exporter.writeHeader();
+		for (Record record : records) {
+			exporter.write(record);
+		}
+		exporter.writeEnd();
+		assertEquals("PRIMARY_KEY,NAME,DESCRIPTION,UPDATED_TIMESTAMP\nala,ma,kota,1\n\u017c\u00f3\u0142w,,,-42\n\n",
+				csv.toString());
+
+		List<Record> uploaded = RecordsUploader.tryRetrieveRecords(new BufferedReader(new StringReader(csv.toString())));
+		assertEquals(2, uploaded.size());
+		for (int i = 0; i < uploaded.size(); i++) {
+			assertEquals(records.get(i).getPrimaryKey(), uploaded.get(i).getPrimaryKey(), "Primary key is different");
+			assertEquals(records.get(i).getUpdatedTimestamp(), uploaded.get(i).getUpdatedTimestamp(),
+					"Timestamp is different");
+		}
+		assertEquals("ma", uploaded.get(0).getName(), "Name is different");
+		assertEquals("", uploaded.get(1).getName(), "Missing name should be uploaded empty");
+
+		StringWriter ndjson = new StringWriter();
+		exporter = new RecordsExporter(ndjson, RecordsExporter.NDJSON_FORMAT);
+		exporter.writeHeader();
+		for (Record record : records) {
+			exporter.write(record);
+		}
+		exporter.writeEnd();
+		assertEquals("{\"primaryKey\":\"ala\",\"name\":\"ma\",\"description\":\"kota\",\"updatedTimestamp\":1}\n"
+				+ "{\"primaryKey\":\"\u017c\u00f3\u0142w\",\"updatedTimestamp\":-42}\n", ndjson.toString());
+	}
 }
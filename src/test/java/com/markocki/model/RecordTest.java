@@ -2,18 +2,29 @@ package com.markocki.model;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 
 import org.junit.jupiter.api.Test;
 
+import com.google.gson.Gson;
+import com.markocki.gson.JsonOutput;
+
 class RecordTest {
 
 	@Test
@@ -42,6 +53,25 @@ class RecordTest {
 		}
 	}
 
+	@Test
+	void testRecordsShareRepeatedValues() throws RecordCreateException {
+		// new instances, like the values parsed from the uploaded file
+		Record first = RecordFactory.createRecord("key1", new String("ma"), new String("kota"), 1);
+		Record second = RecordFactory.createRecord("key2", new String("ma"), new String("kota"), 2);
+		assertSame(first.getName(), second.getName(), "Records should share the name");
+		assertSame(first.getDescription(), second.getDescription(), "Records should share the description");
+
+		FieldDictionary dictionary = new FieldDictionary(2, 4);
+		assertSame(dictionary.intern("ala"), dictionary.intern(new String("ala")), "Value should be shared");
+		String longValue = "a long value";
+		assertNotSame(longValue, dictionary.intern(new String(longValue)), "Long value should not be shared");
+		dictionary.intern("ma");
+		String overLimit = "kota";
+		assertSame(overLimit, dictionary.intern(overLimit), "Value over the limit should not be added");
+		assertNotSame(overLimit, dictionary.intern(new String(overLimit)), "Value over the limit should not be shared");
+		assertEquals(2, dictionary.size(), "Dictionary should be bounded");
+	}
+
 	@Test
 	void createRecordWithFullContent() {
 		try {
@@ -117,4 +147,84 @@ class RecordTest {
 		}
 	}	
 	
+
+	@Test
+	void testCompactRecord() throws IOException, ClassNotFoundException, RecordCreateException {
+		StringBuilder longValue = new StringBuilder();
+		for (int counter = 0; counter < 100; counter++) {
+			longValue.append("zażółć");
+		}
+		Record[] records = { new RecordFactory.RecordImpl("key", "name", "description", 123456789012L),
+				new RecordFactory.RecordImpl("a=b <c> & 'd'", "\u017c\u00f3\u0142w \"q\" \\ \n\t", "", -1),
+				new RecordFactory.RecordImpl("key", null, null, 0),
+				new RecordFactory.RecordImpl("key", longValue.toString(), null, Long.MIN_VALUE),
+				new RecordFactory.RecordImpl("key", "", longValue.toString(), Long.MAX_VALUE) };
+
+		for (Record record : records) {
+			Record compact = new RecordFactory.CompactRecord(record.getPrimaryKey(), record.getName(),
+					record.getDescription(), record.getUpdatedTimestamp());
+			assertEquals(record.getPrimaryKey(), compact.getPrimaryKey());
+			assertEquals(record.getName(), compact.getName());
+			assertEquals(record.getDescription(), compact.getDescription());
+			assertEquals(record.getUpdatedTimestamp(), compact.getUpdatedTimestamp());
+			assertEquals(record.toString(), compact.toString(), "JSON should not depend on the layout");
+			assertEquals(record.toString(), new RecordFactory.CompactRecord(record.getPrimaryKey(),
+					bytes(record.getName()), bytes(record.getDescription()), record.getUpdatedTimestamp()).toString(),
+					"Record of the bytes is different");
+			assertEquals(record.toString(), RecordFactory.createEncodedRecord(record.getPrimaryKey(),
+					bytes(record.getName()), bytes(record.getDescription()), record.getUpdatedTimestamp()).toString(),
+					"Record of the bytes is different");
+
+			ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(serialized);) {
+				oos.writeObject(compact);
+			}
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()));) {
+				assertEquals(record.toString(), ois.readObject().toString(), "Deserialized record is different");
+			}
+		}
+
+		assertEquals(false, RecordFactory.isCompactLayout(RecordFactory.STRINGS_LAYOUT));
+		assertEquals(true, RecordFactory.isCompactLayout(RecordFactory.COMPACT_LAYOUT));
+		assertThrows(IllegalArgumentException.class, () -> RecordFactory.isCompactLayout("other"));
+	}
+
+	@Test
+	void testCompactRecordOfInvalidDataIsNotDeserialized() throws Exception {
+		Field data = RecordFactory.CompactRecord.class.getDeclaredField("data");
+		data.setAccessible(true);
+		// too short, the name longer than the data, the description followed by more than the timestamp
+		byte[][] invalid = { new byte[3], { 100, 1, 0, 0, 0, 0, 0, 0, 0, 0 }, { 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0 },
+				{ (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x7F, 0, 0, 0, 0, 0, 0, 0, 0 } };
+
+		for (byte[] value : invalid) {
+			Record compact = new RecordFactory.CompactRecord("key", "name", "description", 1);
+			data.set(compact, value);
+
+			ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(serialized);) {
+				oos.writeObject(compact);
+			}
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()));) {
+				assertThrows(InvalidObjectException.class, () -> ois.readObject(), "Invalid data should be rejected");
+			}
+		}
+	}
+
+	private static byte[] bytes(String value) {
+		return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+	}
+
+	@Test
+	void testRecordJsonIsTheOneOfGson() throws RecordCreateException {
+		Gson reflective = new Gson();
+		Record[] records = { RecordFactory.createRecord("key", "name", "description", 123456789012L),
+				RecordFactory.createRecord("a=b <c> & 'd'", "\u017c\u00f3\u0142w \"q\" \\ \n\t", "", -1),
+				RecordFactory.createRecord("key", null, null, 0) };
+
+		for (Record record : records) {
+			assertEquals(reflective.toJson(record), record.toString());
+			assertEquals(reflective.toJson(record), new String(JsonOutput.toJsonBytes(record), StandardCharsets.UTF_8));
+		}
+	}
 }
@@ -1,13 +1,29 @@
 package com.markocki.storage;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
@@ -173,4 +189,886 @@ public class StorageTest {
 		}
 		removeStorageDictionary(dir);
 	}
+
+	@Test
+	void testReopenStorageWithoutClose() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		Storage storage = StorageFactory.loadStorage(dir.getPath());
+
+		try {
+			for (int counter = 1; counter <= 5; counter++) {
+				storage.save(createRecord("key" + counter, "name" + counter, "description", counter));
+			}
+			storage.delete(storage.findByPrimaryKey("key1"));
+
+			// no closeStorage nor sync, as after kill -9, the acknowledged modifications are already durable
+
+			Storage storageReopened = StorageFactory.loadStorage(dir.getPath());
+
+			assertThrows(NoRecordFoundException.class, () -> storageReopened.findByPrimaryKey("key1"));
+			for (int counter = 2; counter <= 5; counter++) {
+				Record record = storageReopened.findByPrimaryKey("key" + counter);
+				assertEquals("name" + counter, record.getName(), "Name of record is different");
+				assertEquals(counter, record.getUpdatedTimestamp(), "Timestamp of record is different");
+			}
+			StorageFactory.closeStorage(storageReopened, dir.getPath());
+		} catch (RecordStoreException exc) {
+			fail("Exception occured while storing record", exc);
+		} catch (NoRecordFoundException exc) {
+			fail("Exception occured while retrieving record", exc);
+		}
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testLogCompaction() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		Storage storage = StorageFactory.loadStorage(dir.getPath());
+
+		try {
+			storage.save(createRecord("key1", "name1", "description", 1));
+			storage.save(createRecord("key2", "name2", "description", 2));
+
+			((StorageFactory.SimpleStorage) storage).getLog().compact();
+
+			assertTrue(new File(dir, "storage-0-of-16.db").exists(), "Snapshot should be written by compaction");
+			assertEquals(16, dir.list((directory, name) -> name.endsWith(".db")).length,
+					"Snapshot should be written to all the segment files");
+			assertEquals(1, dir.list((directory, name) -> name.endsWith(".wal")).length,
+					"Only the current log generation should be left");
+
+			storage.delete(storage.findByPrimaryKey("key1"));
+			storage.save(createRecord("key3", "name3", "description", 3));
+			StorageFactory.closeStorage(storage, dir.getPath());
+
+			Storage storageReopened = StorageFactory.loadStorage(dir.getPath());
+
+			assertThrows(NoRecordFoundException.class, () -> storageReopened.findByPrimaryKey("key1"));
+			storageReopened.findByPrimaryKey("key2");
+			storageReopened.findByPrimaryKey("key3");
+			StorageFactory.closeStorage(storageReopened, dir.getPath());
+		} catch (RecordStoreException exc) {
+			fail("Exception occured while storing record", exc);
+		} catch (NoRecordFoundException exc) {
+			fail("Exception occured while retrieving record", exc);
+		}
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testTornLogTailIsIgnored() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		Storage storage = StorageFactory.loadStorage(dir.getPath());
+
+		try {
+			storage.save(createRecord("key1", "name1", "description", 1));
+			StorageFactory.closeStorage(storage, dir.getPath());
+
+			// an entry only partially written when the process was killed
+			File[] logs = dir.listFiles((directory, name) -> name.endsWith(".wal"));
+			try (FileOutputStream fos = new FileOutputStream(logs[0], true);) {
+				fos.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+			}
+
+			Storage storageReopened = StorageFactory.loadStorage(dir.getPath());
+
+			assertEquals("name1", storageReopened.findByPrimaryKey("key1").getName(), "Name of record is different");
+			StorageFactory.closeStorage(storageReopened, dir.getPath());
+		} catch (RecordStoreException exc) {
+			fail("Exception occured while storing record", exc);
+		} catch (NoRecordFoundException exc) {
+			fail("Exception occured while retrieving record", exc);
+		}
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testSnapshotWritesModifiedSegmentsOnly() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		for (String storageType : Arrays.asList(StorageFactory.SIMPLE_STORAGE_TYPE,
+				StorageFactory.OFFHEAP_STORAGE_TYPE, StorageFactory.ORDERED_STORAGE_TYPE)) {
+			LoggedStorage storage = (LoggedStorage) StorageFactory.loadStorage(dir.getPath(), storageType, 4);
+
+			try {
+				for (int counter = 0; counter < 100; counter++) {
+					storage.save(createRecord(storageType + counter, "name" + counter, "description", counter));
+				}
+				storage.getLog().compact();
+				assertEquals(4, StorageFactory.getLastSnapshotSegments(), "All segments should be written");
+
+				storage.save(createRecord(storageType + "new", "name", "description", 0));
+				storage.getLog().compact();
+				assertEquals(1, StorageFactory.getLastSnapshotSegments(), "Only the modified segment should be written");
+
+				storage.getLog().compact();
+				assertEquals(0, StorageFactory.getLastSnapshotSegments(), "No segment should be written");
+
+				// not logged, so written during shutdown, the modified segment only
+				storage.closeLog();
+				storage.deleteByPrimaryKey(storageType + "1");
+				StorageFactory.closeStorage(storage, dir.getPath());
+				assertEquals(1, StorageFactory.getLastSnapshotSegments(), "Only the modified segment should be written");
+
+				LoggedStorage reopened = (LoggedStorage) StorageFactory.loadStorage(dir.getPath(), storageType, 4);
+				assertEquals(100, reopened.size(), "Number of records is different");
+				assertFalse(reopened.find(storageType + "1").isPresent(), "Deleted record should not be found");
+				assertEquals("name", reopened.findByPrimaryKey(storageType + "new").getName(),
+						"Name of record is different");
+				reopened.getLog().compact();
+				assertEquals(0, StorageFactory.getLastSnapshotSegments(), "Loaded segments should not be written");
+				StorageFactory.closeStorage(reopened, dir.getPath());
+			} catch (RecordStoreException exc) {
+				fail("Exception occured while storing record", exc);
+			} catch (NoRecordFoundException exc) {
+				fail("Exception occured while retrieving record", exc);
+			}
+			removeStorageDictionary(dir);
+			dir.mkdir();
+		}
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testSnapshotRecordsAreSplitIntoSegments() throws RecordCreateException, RecordStoreException {
+		for (LoggedStorage storage : Arrays.asList(new StorageFactory.SimpleStorage(4), new OffHeapStorage(1024, 4),
+				new OrderedStorage(4))) {
+			for (int counter = 0; counter < 1000; counter++) {
+				storage.save(createRecord("key" + counter, "name" + counter, "description", counter));
+			}
+			storage.deleteByPrimaryKey("key0");
+
+			int count = 0;
+			boolean[] written = new boolean[4];
+			Arrays.fill(written, true);
+			try (LoggedStorage.SnapshotRecords records = storage.snapshotRecords(written)) {
+				long[] sizes = new long[4];
+				for (int segment = 0; segment < 4; segment++) {
+					sizes[segment] = records.size(segment);
+				}
+				// stored while the snapshot is written, so left for the next one
+				for (int counter = 1000; counter < 2000; counter++) {
+					storage.save(createRecord("key" + counter, "name" + counter, "description", counter));
+				}
+
+				for (int segment = 0; segment < 4; segment++) {
+					int segmentCount = 0;
+					for (Record record : records.getRecords(segment)) {
+						assertEquals(segment, storage.segmentOf(record.getPrimaryKey()), "Record of other segment");
+						segmentCount++;
+					}
+					assertTrue(segmentCount <= sizes[segment], "Size of segment is exceeded");
+					count += segmentCount;
+				}
+			}
+			assertEquals(999, count, "Number of records of the segments is different");
+		}
+	}
+
+	@Test
+	void testSnapshotRecordsTakeOnlyWrittenSegments() throws RecordCreateException, RecordStoreException {
+		for (LoggedStorage storage : Arrays.asList(new OffHeapStorage(1024, 4), new OrderedStorage(4))) {
+			for (int counter = 0; counter < 1000; counter++) {
+				storage.save(createRecord("key" + counter, "name" + counter, "description", counter));
+			}
+
+			try (LoggedStorage.SnapshotRecords records = storage
+					.snapshotRecords(new boolean[] { false, true, false, false })) {
+				int count = 0;
+				for (Record record : records.getRecords(1)) {
+					assertEquals(1, storage.segmentOf(record.getPrimaryKey()), "Record of other segment");
+					count++;
+				}
+				assertEquals(records.size(1), count, "Number of records of the segment is different");
+				assertTrue(count > 0, "Records of the written segment should be taken");
+				assertEquals(0, records.size(0), "Records of the segment not written should not be taken");
+			}
+		}
+	}
+
+	@Test
+	void testCompactionWaitsForModificationsInProgress() throws Exception {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		for (String storageType : Arrays.asList(StorageFactory.SIMPLE_STORAGE_TYPE,
+				StorageFactory.OFFHEAP_STORAGE_TYPE, StorageFactory.ORDERED_STORAGE_TYPE)) {
+			LoggedStorage storage = (LoggedStorage) StorageFactory.loadStorage(dir.getPath(), storageType, 4);
+			storage.save(createRecord("key1", "name", "description", 1));
+
+			CountDownLatch deleting = new CountDownLatch(1);
+			CountDownLatch released = new CountDownLatch(1);
+			// the condition is checked within the modification, before it is logged
+			Future<DeleteResult> deleted = executor.submit(() -> storage.deleteIf("key1", record -> {
+				deleting.countDown();
+				try {
+					released.await();
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+			}));
+			deleting.await();
+
+			Future<?> compacted = executor.submit(() -> {
+				storage.getLog().compact();
+				return null;
+			});
+			Thread.sleep(200);
+			assertFalse(compacted.isDone(), storageType + ": Compaction should wait for the modification");
+
+			released.countDown();
+			assertEquals(DeleteResult.REMOVED, deleted.get(), storageType + ": Record should be removed");
+			compacted.get();
+			StorageFactory.closeStorage(storage, dir.getPath());
+
+			LoggedStorage reopened = (LoggedStorage) StorageFactory.loadStorage(dir.getPath(), storageType, 4);
+			assertFalse(reopened.find("key1").isPresent(), storageType + ": Deleted record should not be found");
+			StorageFactory.closeStorage(reopened, dir.getPath());
+
+			removeStorageDictionary(dir);
+			dir.mkdir();
+		}
+		executor.shutdown();
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testSecondaryIndexes() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		for (String storageType : Arrays.asList(StorageFactory.SIMPLE_STORAGE_TYPE,
+				StorageFactory.OFFHEAP_STORAGE_TYPE, StorageFactory.ORDERED_STORAGE_TYPE)) {
+			LoggedStorage storage = (LoggedStorage) StorageFactory.loadStorage(dir.getPath(), storageType, 4);
+			assertFalse(storage.isIndexed(), "Records should not be indexed by default");
+			storage.buildIndexes();
+
+			try {
+				for (int counter = 0; counter < 10; counter++) {
+					storage.save(createRecord("key" + counter, counter % 2 == 0 ? "even" : "odd", "description",
+							counter / 2));
+				}
+
+				assertEquals(Arrays.asList("key6", "key7", "key8", "key9"), keys(storage.findUpdatedSince(3, null)),
+						"Records updated since are different");
+				// the next page, after the last record updated at 3
+				assertEquals(Arrays.asList("key8", "key9"), keys(storage.findUpdatedSince(3, "key7")),
+						"Records of the next page are different");
+				assertEquals(Arrays.asList("key1", "key3", "key5", "key7", "key9"), keys(storage.findByName("odd", null)),
+						"Records of the name are different");
+				assertEquals(Arrays.asList("key7", "key9"), keys(storage.findByName("odd", "key5")),
+						"Records of the next page are different");
+				assertEquals(Arrays.asList(), keys(storage.findByName("none", null)), "No record should be found");
+
+				storage.deleteByPrimaryKey("key7");
+				storage.delete(createRecord("key8", null, null, 0));
+				storage.save(createRecord("key8", "odd", "description", 0));
+				assertEquals(Arrays.asList("key6", "key9"), keys(storage.findUpdatedSince(3, null)),
+						"Deleted records should not be found");
+				assertEquals(Arrays.asList("key1", "key3", "key5", "key8", "key9"), keys(storage.findByName("odd", null)),
+						"Records of the name are different");
+
+				// rebuilt from the loaded records
+				StorageFactory.closeStorage(storage, dir.getPath());
+				LoggedStorage reopened = (LoggedStorage) StorageFactory.loadStorage(dir.getPath(), storageType, 4);
+				reopened.buildIndexes();
+				assertEquals(Arrays.asList("key0", "key1", "key8"), keys(reopened.findUpdatedSince(0, null)).subList(0, 3),
+						"Records updated since are different");
+				assertEquals(Arrays.asList("key0", "key2", "key4", "key6"), keys(reopened.findByName("even", null)),
+						"Records of the name are different");
+				StorageFactory.closeStorage(reopened, dir.getPath());
+			} catch (RecordStoreException exc) {
+				fail("Exception occured while storing record", exc);
+			} catch (NoRecordFoundException exc) {
+				fail("Exception occured while deleting record", exc);
+			}
+			removeStorageDictionary(dir);
+			dir.mkdir();
+		}
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testOrderedStorageRangeScans() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		Storage storage = StorageFactory.loadStorage(dir.getPath(), StorageFactory.ORDERED_STORAGE_TYPE, 4);
+		try {
+			for (String key : Arrays.asList("tenant2/order/2", "tenant1/user/1", "tenant1/order/2", "tenant1/order/1",
+					"tenant10/order/1")) {
+				storage.save(createRecord(key, "name", "description", 1));
+			}
+
+			assertEquals(Arrays.asList("tenant1/order/1", "tenant1/order/2", "tenant1/user/1"),
+					keys(storage.findByPrimaryKeyRange("tenant1/", true, "tenant10")), "Keys of the range are different");
+			assertEquals(Arrays.asList("tenant1/order/2", "tenant1/user/1"),
+					keys(storage.findByPrimaryKeyRange("tenant1/order/1", false, "tenant10")),
+					"Keys after the given one are different");
+			assertEquals(Arrays.asList("tenant10/order/1", "tenant2/order/2"),
+					keys(storage.findByPrimaryKeyRange("tenant10", true, null)), "Keys to the end are different");
+			// the lower bound past the end of the range, e.g. after its last page
+			assertEquals(Arrays.asList(), keys(storage.findByPrimaryKeyRange("tenant2", false, "tenant10")),
+					"Range of no keys should be empty");
+			assertEquals(Arrays.asList(), keys(storage.findByPrimaryKeyRange("tenant10", false, "tenant10")),
+					"Range of no keys should be empty");
+
+			storage.deleteByPrimaryKey("tenant1/order/2");
+			assertEquals(Arrays.asList("tenant1/order/1", "tenant1/user/1"),
+					keys(storage.findByPrimaryKeyRange("tenant1/", true, "tenant10")), "Deleted key should not be found");
+			assertEquals(4, storage.size(), "Number of records is different");
+
+			StorageFactory.closeStorage(storage, dir.getPath());
+			Storage reopened = StorageFactory.loadStorage(dir.getPath(), StorageFactory.ORDERED_STORAGE_TYPE, 4);
+			assertEquals(Arrays.asList("tenant1/order/1", "tenant1/user/1", "tenant10/order/1", "tenant2/order/2"),
+					keys(reopened.findByPrimaryKeyRange(null, true, null)), "Keys of the reopened storage are different");
+			StorageFactory.closeStorage(reopened, dir.getPath());
+		} catch (RecordStoreException exc) {
+			fail("Exception occured while storing record", exc);
+		}
+
+		// the other storages are not ordered
+		Storage simple = new StorageFactory.SimpleStorage(1);
+		assertTrue(new OrderedStorage(1).isOrdered(), "Ordered storage should be ordered");
+		assertFalse(simple.isOrdered(), "Simple storage should not be ordered");
+		assertThrows(UnsupportedOperationException.class, () -> simple.findByPrimaryKeyRange(null, true, null));
+
+		removeStorageDictionary(dir);
+	}
+
+	private static List<String> keys(Iterable<Record> records) {
+		List<String> result = new ArrayList<String>();
+		for (Record record : records) {
+			result.add(record.getPrimaryKey());
+		}
+		return result;
+	}
+
+	@Test
+	void testStorageFilesOfFormerLayoutAreConverted() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		List<Record> records = new ArrayList<Record>();
+		for (int counter = 0; counter < 100; counter++) {
+			records.add(createRecord("key" + counter, "name" + counter, "description", counter));
+		}
+		MappedStorageFile.write(records.iterator(), records.size(), new File(dir, "storage.db"),
+				MappedStorageFile.DEFAULT_CHUNK_SHIFT);
+
+		try {
+			LoggedStorage storage = (LoggedStorage) StorageFactory.loadStorage(dir.getPath(),
+					StorageFactory.SIMPLE_STORAGE_TYPE, 4);
+			assertEquals(100, storage.size(), "Number of records is different");
+			storage.getLog().compact();
+			assertFalse(new File(dir, "storage.db").exists(), "Former storage file should be removed");
+			StorageFactory.closeStorage(storage, dir.getPath());
+
+			// and again, to another number of segments
+			LoggedStorage resegmented = (LoggedStorage) StorageFactory.loadStorage(dir.getPath(),
+					StorageFactory.SIMPLE_STORAGE_TYPE, 2);
+			assertEquals(100, resegmented.size(), "Number of records is different");
+			resegmented.getLog().compact();
+			assertEquals(2, dir.list((directory, name) -> name.endsWith(".db")).length,
+					"Only the files of the current segments should be left");
+			StorageFactory.closeStorage(resegmented, dir.getPath());
+
+			Storage reopened = StorageFactory.loadStorage(dir.getPath(), StorageFactory.SIMPLE_STORAGE_TYPE, 2);
+			for (Record record : records) {
+				assertEquals(record.getName(), reopened.findByPrimaryKey(record.getPrimaryKey()).getName(),
+						"Name of record is different");
+			}
+			StorageFactory.closeStorage(reopened, dir.getPath());
+		} catch (NoRecordFoundException exc) {
+			fail("Exception occured while retrieving record", exc);
+		}
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testRunInParallel() throws IOException {
+		AtomicInteger finished = new AtomicInteger();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int counter = 0; counter < 16; counter++) {
+			int task = counter;
+			tasks.add(() -> {
+				if (task == 3) {
+					throw new IOException("Failed task " + task);
+				}
+				finished.incrementAndGet();
+				return null;
+			});
+		}
+
+		IOException exc = assertThrows(IOException.class, () -> StorageFactory.runInParallel(tasks, 4));
+		assertEquals("Failed task 3", exc.getMessage());
+		assertEquals(15, finished.get(), "All other tasks should be finished");
+	}
+
+	@Test
+	void testIoThrottle() throws IOException {
+		IoThrottle throttle = new IoThrottle(100 * 1024);
+
+		long start = System.nanoTime();
+		for (int counter = 0; counter < 6; counter++) {
+			throttle.acquire(4 * 1024);
+		}
+		// the first 20KB at 100KB/s, the last one not waited for
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		assertTrue(elapsedMillis >= 190, "Writes should be throttled, took " + elapsedMillis + "ms");
+	}
+
+	@Test
+	void testMappedStorageFileWriteAndRead() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+		File file = new File(dir, "mapped.db");
+
+		List<Record> records = new ArrayList<Record>();
+		for (int counter = 0; counter < 1000; counter++) {
+			records.add(createRecord("key" + counter, counter % 2 == 0 ? "name" + counter : null, "zażółć", counter));
+		}
+		// small chunks, so the records must be padded not to cross the chunk boundary
+		MappedStorageFile.write(records.iterator(), records.size(), file, 8);
+
+		assertTrue(MappedStorageFile.isMappedStorageFile(file), "File should be recognized as the storage file");
+		MappedStorageFile mapped = MappedStorageFile.open(file);
+
+		assertEquals(records.size(), mapped.size(), "Number of records is different");
+		for (Record record : records) {
+			Record found = mapped.find(record.getPrimaryKey());
+			assertNotNull(found, "Record not found for " + record.getPrimaryKey());
+			assertEquals(record.getName(), found.getName(), "Name of record is different");
+			assertEquals(record.getDescription(), found.getDescription(), "Description of record is different");
+			assertEquals(record.getUpdatedTimestamp(), found.getUpdatedTimestamp(), "Timestamp of record is different");
+		}
+		assertEquals(null, mapped.find("key1000"), "Record should not be found");
+
+		int iterated = 0;
+		for (Record record : mapped) {
+			assertEquals("key" + iterated, record.getPrimaryKey(), "Records should be iterated in the written order");
+			iterated++;
+		}
+		assertEquals(records.size(), iterated, "Number of iterated records is different");
+
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testMappedStorageFileWritesRepeatedValuesOnce() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+		File file = new File(dir, "mapped.db");
+
+		String[] values = { "a name repeated by one third of the records ....",
+				"a name repeated by the other third of the records",
+				"a description repeated by all the records ......." };
+		List<Record> records = new ArrayList<Record>();
+		for (int counter = 0; counter < 999; counter++) {
+			// the last third of the records has the description as the name
+			records.add(createRecord("key" + counter, values[counter % 3], values[2], counter));
+		}
+		MappedStorageFile.write(records.iterator(), records.size(), file, 8);
+
+		// the name and the description of every record written inline would take about 100KB alone
+		assertTrue(file.length() < records.size() * 2 * values[0].length(),
+				"Repeated values should be written once, the file takes " + file.length());
+
+		MappedStorageFile mapped = MappedStorageFile.open(file);
+		int iterated = 0;
+		for (Record record : mapped) {
+			assertEquals(records.get(iterated).getName(), record.getName(), "Name of record is different");
+			assertEquals(values[2], record.getDescription(), "Description of record is different");
+			iterated++;
+		}
+		assertEquals(records.size(), iterated, "Number of iterated records is different");
+		assertEquals(values[1], mapped.find("key997").getName(), "Name of record is different");
+
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testModificationsOnTopOfMappedStorageFile() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		Storage storage = StorageFactory.loadStorage(dir.getPath());
+
+		try {
+			for (int counter = 1; counter <= 3; counter++) {
+				storage.save(createRecord("key" + counter, "name" + counter, "description", counter));
+			}
+			((StorageFactory.SimpleStorage) storage).getLog().compact();
+			StorageFactory.closeStorage(storage, dir.getPath());
+
+			Storage mapped = StorageFactory.loadStorage(dir.getPath());
+			assertEquals("name2", mapped.findByPrimaryKey("key2").getName(), "Name of record is different");
+
+			// records of the storage file can be neither duplicated nor found once deleted
+			assertThrows(RecordStoreException.class, () -> mapped.save(createRecord("key1", "other", "", 0)));
+			mapped.delete(mapped.findByPrimaryKey("key1"));
+			assertThrows(NoRecordFoundException.class, () -> mapped.findByPrimaryKey("key1"));
+			assertThrows(NoRecordFoundException.class, () -> mapped.delete(createRecord("key1", "", "", 0)));
+
+			// but can be stored again after the delete
+			mapped.save(createRecord("key1", "other", "", 0));
+			((StorageFactory.SimpleStorage) mapped).getLog().compact();
+			StorageFactory.closeStorage(mapped, dir.getPath());
+
+			Storage reopened = StorageFactory.loadStorage(dir.getPath());
+			assertEquals("other", reopened.findByPrimaryKey("key1").getName(), "Name of record is different");
+			assertEquals("name3", reopened.findByPrimaryKey("key3").getName(), "Name of record is different");
+			StorageFactory.closeStorage(reopened, dir.getPath());
+		} catch (RecordStoreException exc) {
+			fail("Exception occured while storing record", exc);
+		} catch (NoRecordFoundException exc) {
+			fail("Exception occured while retrieving record", exc);
+		}
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testFormerStorageFileFormatIsLoaded() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(new File(dir, "storage.db")));) {
+			oos.writeObject(createRecord("key1", "name1", "description", 1));
+			oos.writeObject(createRecord("key2", "name2", "description", 2));
+		}
+
+		Storage storage = StorageFactory.loadStorage(dir.getPath());
+
+		try {
+			assertEquals("name1", storage.findByPrimaryKey("key1").getName(), "Name of record is different");
+			assertEquals("name2", storage.findByPrimaryKey("key2").getName(), "Name of record is different");
+			StorageFactory.closeStorage(storage, dir.getPath());
+		} catch (NoRecordFoundException exc) {
+			fail("Exception occured while retrieving record", exc);
+		}
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testOffHeapStorageSaveFindAndDelete() throws RecordCreateException {
+		// small slabs, so the records span many of them and the deleted ones get compacted
+		OffHeapStorage storage = new OffHeapStorage(1024);
+
+		try {
+			for (int counter = 0; counter < 5000; counter++) {
+				storage.save(createRecord("key" + counter, "name" + counter, counter % 3 == 0 ? null : "ćma", counter));
+			}
+			assertThrows(RecordStoreException.class, () -> storage.save(createRecord("key1", "other", "", 0)));
+
+			// abandoned iterations and a closed snapshot do not keep the slabs from being compacted
+			storage.getAllRecords().iterator().next();
+			try (LoggedStorage.SnapshotRecords records = storage.snapshotRecords(new boolean[] { true })) {
+				records.getRecords(0).iterator().next();
+			}
+
+			for (int counter = 0; counter < 5000; counter++) {
+				if (counter % 4 == 3) {
+					continue;
+				}
+				Record deleted = storage.delete(createRecord("key" + counter, "", "", 0));
+				assertEquals("name" + counter, deleted.getName(), "Name of deleted record is different");
+			}
+			assertEquals(1250, storage.estimatedSize(), "Number of records is different");
+
+			for (int counter = 0; counter < 5000; counter++) {
+				String key = "key" + counter;
+				if (counter % 4 != 3) {
+					assertThrows(NoRecordFoundException.class, () -> storage.findByPrimaryKey(key));
+				} else {
+					Record record = storage.findByPrimaryKey(key);
+					assertEquals("name" + counter, record.getName(), "Name of record is different");
+					assertEquals(counter % 3 == 0 ? null : "ćma", record.getDescription(),
+							"Description of record is different");
+					assertEquals(counter, record.getUpdatedTimestamp(), "Timestamp of record is different");
+				}
+			}
+
+			int iterated = 0;
+			for (Record record : storage.getAllRecords()) {
+				assertNotNull(storage.findByPrimaryKey(record.getPrimaryKey()));
+				iterated++;
+			}
+			assertEquals(1250, iterated, "Number of iterated records is different");
+			assertTrue(storage.offHeapSize() < 2500 * 48, "Slabs of deleted records should be released");
+		} catch (RecordStoreException exc) {
+			fail("Exception occured while storing record", exc);
+		} catch (NoRecordFoundException exc) {
+			fail("Exception occured while retrieving record", exc);
+		}
+	}
+
+	@Test
+	void testCloseAndReopenOffHeapStorage() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		Storage storage = StorageFactory.loadStorage(dir.getPath(), StorageFactory.OFFHEAP_STORAGE_TYPE);
+
+		try {
+			for (int counter = 1; counter <= 5; counter++) {
+				storage.save(createRecord("key" + counter, "name" + counter, "description", counter));
+			}
+			((LoggedStorage) storage).getLog().compact();
+			storage.delete(storage.findByPrimaryKey("key1"));
+			StorageFactory.closeStorage(storage, dir.getPath());
+
+			// the storage file and the log are shared by both storage types
+			Storage storageReopened = StorageFactory.loadStorage(dir.getPath(), StorageFactory.SIMPLE_STORAGE_TYPE);
+			assertThrows(NoRecordFoundException.class, () -> storageReopened.findByPrimaryKey("key1"));
+			for (int counter = 2; counter <= 5; counter++) {
+				assertEquals("name" + counter, storageReopened.findByPrimaryKey("key" + counter).getName(),
+						"Name of record is different");
+			}
+			StorageFactory.closeStorage(storageReopened, dir.getPath());
+
+			Storage offHeapReopened = StorageFactory.loadStorage(dir.getPath(), StorageFactory.OFFHEAP_STORAGE_TYPE);
+			assertThrows(NoRecordFoundException.class, () -> offHeapReopened.findByPrimaryKey("key1"));
+			assertEquals("name5", offHeapReopened.findByPrimaryKey("key5").getName(), "Name of record is different");
+			StorageFactory.closeStorage(offHeapReopened, dir.getPath());
+		} catch (RecordStoreException exc) {
+			fail("Exception occured while storing record", exc);
+		} catch (NoRecordFoundException exc) {
+			fail("Exception occured while retrieving record", exc);
+		}
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testTooLongRecordIsNotLogged() throws Exception {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		// small slabs, so the record is too long for them
+		OffHeapStorage storage = new OffHeapStorage(1024);
+		storage.attachLog(WriteAheadLog.open(dir, 0, Long.MAX_VALUE, 0, rotation -> rotation.rotate()));
+		storage.save(createRecord("key1", "name", "description", 1));
+		char[] description = new char[2048];
+		Arrays.fill(description, 'x');
+		assertThrows(RecordStoreException.class,
+				() -> storage.save(createRecord("key2", "name", new String(description), 2)));
+		assertFalse(storage.find("key2").isPresent(), "Too long record should not be stored");
+		storage.closeLog();
+
+		// the log replayed, so the storage can be reopened
+		OffHeapStorage reopened = new OffHeapStorage(1024);
+		assertEquals(1, WriteAheadLog.replay(dir, reopened), "Only the stored record should be logged");
+		assertEquals("name", reopened.findByPrimaryKey("key1").getName(), "Name of record is different");
+		assertFalse(reopened.find("key2").isPresent(), "Too long record should not be replayed");
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testLongRecordIsLogged() throws Exception {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		File dir = createNewStorageDictionary(tmpdir);
+
+		// more than the 65535 bytes of a modified UTF-8 string
+		char[] description = new char[70000];
+		Arrays.fill(description, '\u00e9');
+		OrderedStorage storage = new OrderedStorage(1);
+		storage.attachLog(WriteAheadLog.open(dir, 0, Long.MAX_VALUE, 0, rotation -> rotation.rotate()));
+		storage.save(createRecord("key1", null, new String(description), 1));
+		storage.save(createRecord("key2", "name", "description", 2));
+		storage.deleteByPrimaryKey("key2");
+		storage.closeLog();
+
+		OrderedStorage reopened = new OrderedStorage(1);
+		assertEquals(3, WriteAheadLog.replay(dir, reopened), "All modifications should be replayed");
+		assertNull(reopened.findByPrimaryKey("key1").getName(), "Name of record should be null");
+		assertEquals(new String(description), reopened.findByPrimaryKey("key1").getDescription(),
+				"Description of record is different");
+		assertFalse(reopened.find("key2").isPresent(), "Deleted record should not be replayed");
+		removeStorageDictionary(dir);
+	}
+
+	@Test
+	void testFindByPrimaryKeys() throws IOException, RecordCreateException {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+
+		for (String storageType : new String[] { StorageFactory.SIMPLE_STORAGE_TYPE,
+				StorageFactory.OFFHEAP_STORAGE_TYPE }) {
+			File dir = createNewStorageDictionary(tmpdir);
+
+			Storage storage = StorageFactory.loadStorage(dir.getPath(), storageType);
+			try {
+				for (int counter = 1; counter <= 5; counter++) {
+					storage.save(createRecord("key" + counter, "name" + counter, "description", counter));
+				}
+				((LoggedStorage) storage).getLog().compact();
+				StorageFactory.closeStorage(storage, dir.getPath());
+
+				// records of both the storage file and the modifications made on top of it
+				storage = StorageFactory.loadStorage(dir.getPath(), storageType);
+				storage.delete(storage.findByPrimaryKey("key1"));
+				storage.save(createRecord("key6", "name6", "description", 6));
+
+				List<Record> found = storage
+						.findByPrimaryKeys(Arrays.asList("key1", "key2", "key6", "key7", "key2"));
+				assertEquals(5, found.size(), storageType + ": Number of results is different");
+				assertNull(found.get(0), storageType + ": Deleted record should not be found");
+				assertEquals("name2", found.get(1).getName(), storageType + ": Name of record is different");
+				assertEquals("name6", found.get(2).getName(), storageType + ": Name of record is different");
+				assertNull(found.get(3), storageType + ": Not existing record should not be found");
+				assertEquals("name2", found.get(4).getName(), storageType + ": Name of record is different");
+
+				assertEquals(5, storage.size(), storageType + ": Number of records is different");
+				assertFalse(storage.find("key1").isPresent(), storageType + ": Deleted record should not be found");
+				assertFalse(storage.find("key7").isPresent(), storageType + ": Not existing record should not be found");
+				assertEquals("name2", storage.find("key2").get().getName(), storageType + ": Name of record is different");
+				assertEquals("name6", storage.find("key6").get().getName(), storageType + ": Name of record is different");
+				StorageFactory.closeStorage(storage, dir.getPath());
+			} catch (RecordStoreException exc) {
+				fail("Exception occured while storing record", exc);
+			} catch (NoRecordFoundException exc) {
+				fail("Exception occured while retrieving record", exc);
+			}
+			removeStorageDictionary(dir);
+		}
+	}
+
+	@Test
+	void testConcurrentDeletesOfSameKeys() throws Exception {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+		final int RECORDS = 2000;
+		final int THREADS = 4;
+
+		for (String storageType : new String[] { StorageFactory.SIMPLE_STORAGE_TYPE,
+				StorageFactory.OFFHEAP_STORAGE_TYPE }) {
+			File dir = createNewStorageDictionary(tmpdir);
+
+			Storage storage = StorageFactory.loadStorage(dir.getPath(), storageType);
+			for (int counter = 0; counter < RECORDS; counter++) {
+				storage.save(createRecord("key" + counter, "name", "description", counter));
+			}
+			// half of the records in the storage file, half on top of it
+			((LoggedStorage) storage).getLog().compact();
+			StorageFactory.closeStorage(storage, dir.getPath());
+			Storage reopened = StorageFactory.loadStorage(dir.getPath(), storageType);
+			for (int counter = RECORDS; counter < 2 * RECORDS; counter++) {
+				reopened.save(createRecord("key" + counter, "name", "description", counter));
+			}
+
+			// every thread deletes all the keys, each of them is removed exactly once
+			AtomicInteger removed = new AtomicInteger();
+			AtomicInteger notPresent = new AtomicInteger();
+			CyclicBarrier start = new CyclicBarrier(THREADS);
+			ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int thread = 0; thread < THREADS; thread++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int counter = 0; counter < 2 * RECORDS; counter++) {
+						// every other key through the conditional delete, always met
+						DeleteResult result = counter % 2 == 0 ? reopened.deleteByPrimaryKey("key" + counter)
+								: reopened.deleteIf("key" + counter, record -> record.getUpdatedTimestamp() >= 0);
+						(result == DeleteResult.REMOVED ? removed : notPresent).incrementAndGet();
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			executor.shutdown();
+
+			assertEquals(2 * RECORDS, removed.get(), storageType + ": Every record should be removed once");
+			assertEquals((THREADS - 1) * 2 * RECORDS, notPresent.get(), storageType + ": Other deletes should miss");
+			assertEquals(DeleteResult.NOT_PRESENT, reopened.deleteByPrimaryKey("key0"));
+			assertEquals(0, reopened.size(), storageType + ": All records should be deleted");
+
+			// the removals are logged once, so they survive the reopening
+			StorageFactory.closeStorage(reopened, dir.getPath());
+			Storage afterDeletes = StorageFactory.loadStorage(dir.getPath(), storageType);
+			assertTrue(afterDeletes.findByPrimaryKeys(Arrays.asList("key0", "key" + RECORDS, "key" + (2 * RECORDS - 1)))
+					.stream().allMatch(record -> record == null), storageType + ": Deleted records should not be found");
+
+			afterDeletes.save(createRecord("key1", "name", "description", 1));
+			assertEquals(DeleteResult.CONDITION_NOT_MET,
+					afterDeletes.deleteIf("key1", record -> record.getUpdatedTimestamp() == 2));
+			assertEquals(DeleteResult.REMOVED,
+					afterDeletes.deleteIf("key1", record -> record.getUpdatedTimestamp() == 1));
+			StorageFactory.closeStorage(afterDeletes, dir.getPath());
+			removeStorageDictionary(dir);
+		}
+	}
+
+	@Test
+	void testConcurrentSaveAllOfSameKeys() throws Exception {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+		final int RECORDS = 3000;
+		final int THREADS = 4;
+
+		for (String storageType : new String[] { StorageFactory.SIMPLE_STORAGE_TYPE,
+				StorageFactory.OFFHEAP_STORAGE_TYPE }) {
+			File dir = createNewStorageDictionary(tmpdir);
+
+			Storage storage = StorageFactory.loadStorage(dir.getPath(), storageType);
+			storage.save(createRecord("key0", "original", "description", 0));
+
+			// every thread uploads the same keys, each one with its own name
+			CyclicBarrier start = new CyclicBarrier(THREADS);
+			ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+			List<Future<SaveAllResult>> futures = new ArrayList<>();
+			for (int thread = 0; thread < THREADS; thread++) {
+				String name = "thread" + thread;
+				List<Record> records = new ArrayList<>();
+				for (int counter = 0; counter < RECORDS; counter++) {
+					records.add(createRecord("key" + counter, name, "description", counter));
+				}
+				// duplicate within the same upload
+				records.add(createRecord("key1", name, "description", 1));
+				futures.add(executor.submit(() -> {
+					start.await();
+					return storage.saveAll(records);
+				}));
+			}
+			int accepted = 0;
+			for (Future<SaveAllResult> future : futures) {
+				SaveAllResult result = future.get();
+				assertEquals(RECORDS + 1, result.getRecords(), storageType + ": All records should have result");
+				assertTrue(result.isDuplicate(0), storageType + ": Record of the storage should be preserved");
+				assertTrue(result.isDuplicate(RECORDS), storageType + ": Duplicate of the upload should be ignored");
+				assertEquals(RECORDS + 1, result.getAccepted() + result.getDuplicates());
+				accepted += result.getAccepted();
+			}
+			executor.shutdown();
+
+			assertEquals(RECORDS - 1, accepted, storageType + ": Every key should be stored once");
+			assertEquals(RECORDS, storage.size(), storageType + ": Number of records is different");
+			assertEquals("original", storage.findByPrimaryKey("key0").getName(), storageType + ": Name is different");
+			assertThrows(RecordStoreException.class, () -> storage.save(createRecord("key1", "other", "", 0)));
+
+			StorageFactory.closeStorage(storage, dir.getPath());
+			removeStorageDictionary(dir);
+		}
+	}
 }
@@ -1,34 +1,102 @@
 package com.markocki.web;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonObject;
+import com.markocki.converter.RecordSink;
+import com.markocki.gson.JsonOutput;
 import com.markocki.model.Record;
-import com.markocki.storage.NoRecordFoundException;
+import com.markocki.model.RecordFactory;
+import com.markocki.storage.DeleteResult;
 import com.markocki.storage.RecordStoreException;
+import com.markocki.storage.SaveAllResult;
 import com.markocki.storage.Storage;
+import com.markocki.storage.StorageFactory;
 
 import spark.Request;
 import spark.Response;
+import spark.Route;
 
 public class FrontControllerTest {
+	// saveAll of the mocked storage, so the saves of the records can be verified
+	static Answer<SaveAllResult> savingOneByOne(Storage storage) {
+		return invocation -> {
+			Iterable<Record> records = invocation.getArgument(0);
+			SaveAllResult result = invocation.getArgument(1);
+			for (Record record : records) {
+				try {
+					storage.save(record);
+					result.accepted();
+				} catch (RecordStoreException exc) {
+					result.duplicate(record.getPrimaryKey());
+				}
+			}
+			return result;
+		};
+	}
+
+	// response of the streamed body, the body captured by the given stream
+	private static Response writingTo(ByteArrayOutputStream written) throws IOException {
+		HttpServletResponse raw = Mockito.mock(HttpServletResponse.class);
+		Mockito.when(raw.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				written.write(b);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+			}
+		});
+		Response response = Mockito.mock(Response.class);
+		Mockito.when(response.raw()).thenReturn(raw);
+		return response;
+	}
+
 	@Test
 	public void testEchoRequest() throws Exception {
 		final String MESSAGE = "It works";
@@ -64,34 +132,39 @@ public class FrontControllerTest {
 
 		Response response = Mockito.mock(Response.class);
 
-		Record record = Mockito.mock(Record.class);
-
 		Storage storage = Mockito.mock(Storage.class);
-		Mockito.when(storage.findByPrimaryKey(Mockito.contains(PRIMARY_KEY))).thenReturn(record);
-		Mockito.when(storage.delete(record)).thenReturn(record);
+		Mockito.when(storage.deleteByPrimaryKey(PRIMARY_KEY)).thenReturn(DeleteResult.REMOVED);
 
 		FrontController fc = Mockito.mock(FrontController.class);
 		Mockito.when(fc.getStorage()).thenReturn(storage);
+		RecordJsonCache jsonCache = new RecordJsonCache(1024 * 1024);
+		jsonCache.put(PRIMARY_KEY, new byte[] { '{', '}' }, jsonCache.stamp(PRIMARY_KEY));
+		Mockito.when(fc.getJsonCache()).thenReturn(jsonCache);
 
 		Mockito.when(fc.delete()).thenCallRealMethod();
 
 		fc.delete().handle(request, response);
 
 		Mockito.verify(request, Mockito.times(1)).params(Mockito.anyString());
+		Mockito.verify(request, Mockito.times(1)).queryParams(FrontController.UPDATED_TIMESTAMP_REQUEST_PARAMETER_NAME);
 		Mockito.verifyNoMoreInteractions(request);
 
 		Mockito.verify(response, Mockito.times(1)).status(200);
 		Mockito.verify(response, Mockito.times(1)).body(Mockito.contains(PRIMARY_KEY));
-		Mockito.verifyNoMoreInteractions(request);
+		Mockito.verify(response, Mockito.times(1)).body();
+		Mockito.verifyNoMoreInteractions(response);
 
-		Mockito.verify(fc, Mockito.times(2)).getStorage();
+		Mockito.verify(fc, Mockito.times(1)).getStorage();
 		Mockito.verify(fc, Mockito.times(1)).delete();
+		Mockito.verify(fc, Mockito.times(1)).getJsonCache();
 
 		Mockito.verifyNoMoreInteractions(fc);
 
-		Mockito.verify(storage, Mockito.times(1)).findByPrimaryKey(Mockito.contains(PRIMARY_KEY));
-		Mockito.verify(storage, Mockito.times(1)).delete(record);
+		// a single storage operation
+		Mockito.verify(storage, Mockito.times(1)).deleteByPrimaryKey(PRIMARY_KEY);
 		Mockito.verifyNoMoreInteractions(storage);
+
+		assertNull(jsonCache.get(PRIMARY_KEY), "Deleted record should not be cached");
 	}
 
 	@Test
@@ -104,39 +177,74 @@ public class FrontControllerTest {
 		Response response = Mockito.mock(Response.class);
 
 		Storage storage = Mockito.mock(Storage.class);
-		Mockito.when(storage.findByPrimaryKey(Mockito.contains(PRIMARY_KEY)))
-				.thenThrow(new NoRecordFoundException(PRIMARY_KEY));
+		Mockito.when(storage.deleteByPrimaryKey(PRIMARY_KEY)).thenReturn(DeleteResult.NOT_PRESENT);
 
 		FrontController fc = Mockito.mock(FrontController.class);
 		Mockito.when(fc.getStorage()).thenReturn(storage);
 
 		Mockito.when(fc.delete()).thenCallRealMethod();
 
-		try {
-			fc.delete().handle(request, response);
-			fail("Should fail as the record should NOT be found");
-		} catch (NoRecordFoundException exc) {
-			assertTrue(exc.getMessage().contains(PRIMARY_KEY));
-		}
+		long misses = Metrics.deleteMisses.sum();
+		// no exception, the miss is the regular response
+		fc.delete().handle(request, response);
 
 		Mockito.verify(request, Mockito.times(1)).params(Mockito.anyString());
+		Mockito.verify(request, Mockito.times(1)).queryParams(FrontController.UPDATED_TIMESTAMP_REQUEST_PARAMETER_NAME);
 		Mockito.verifyNoMoreInteractions(request);
 
-		Mockito.verify(response, Mockito.times(0)).status(Mockito.anyInt());
-		Mockito.verify(response, Mockito.times(0)).body(Mockito.anyString());
-		Mockito.verifyNoMoreInteractions(request);
+		Mockito.verify(response, Mockito.times(1)).status(400);
+		Mockito.verify(response, Mockito.times(1)).body("{\"message\":\"No record for PRIMARY_KEY\\u003d" + PRIMARY_KEY + "\"}");
+		Mockito.verify(response, Mockito.times(1)).body();
+		Mockito.verifyNoMoreInteractions(response);
+		assertEquals(misses + 1, Metrics.deleteMisses.sum(), "Miss should be counted");
 
 		Mockito.verify(fc, Mockito.times(1)).getStorage();
 		Mockito.verify(fc, Mockito.times(1)).delete();
 
 		Mockito.verifyNoMoreInteractions(fc);
 
-		Mockito.verify(storage, Mockito.times(1)).findByPrimaryKey(Mockito.contains(PRIMARY_KEY));
-		Mockito.verify(storage, Mockito.times(0)).delete(Mockito.any());
+		Mockito.verify(storage, Mockito.times(1)).deleteByPrimaryKey(PRIMARY_KEY);
 
 		Mockito.verifyNoMoreInteractions(storage);
 	}
 
+	@Test
+	public void testConditionalDelete() throws Exception {
+		final String PRIMARY_KEY = "key";
+
+		Request request = Mockito.mock(Request.class);
+		Mockito.when(request.params(Mockito.anyString())).thenReturn(PRIMARY_KEY);
+		Mockito.when(request.queryParams(FrontController.UPDATED_TIMESTAMP_REQUEST_PARAMETER_NAME)).thenReturn("100");
+
+		Response response = Mockito.mock(Response.class);
+
+		Record record = RecordFactory.createRecord(PRIMARY_KEY, "name", "description", 200L);
+		Storage storage = Mockito.mock(Storage.class);
+		Mockito.when(storage.deleteIf(Mockito.eq(PRIMARY_KEY), Mockito.any())).thenAnswer(invocation -> {
+			Predicate<Record> condition = invocation.getArgument(1);
+			return condition.test(record) ? DeleteResult.REMOVED : DeleteResult.CONDITION_NOT_MET;
+		});
+
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.getJsonCache()).thenReturn(new RecordJsonCache(1024 * 1024));
+		Mockito.when(fc.delete()).thenCallRealMethod();
+
+		// updated at other time, so not deleted
+		fc.delete().handle(request, response);
+		Mockito.verify(response, Mockito.times(1)).status(400);
+		Mockito.verify(response, Mockito.times(1)).body(Mockito.contains("UPDATED_TIMESTAMP"));
+
+		Mockito.when(request.queryParams(FrontController.UPDATED_TIMESTAMP_REQUEST_PARAMETER_NAME)).thenReturn("200");
+		fc.delete().handle(request, response);
+		Mockito.verify(response, Mockito.times(1)).status(200);
+		Mockito.verify(storage, Mockito.times(2)).deleteIf(Mockito.eq(PRIMARY_KEY), Mockito.any());
+		Mockito.verifyNoMoreInteractions(storage);
+
+		Mockito.when(request.queryParams(FrontController.UPDATED_TIMESTAMP_REQUEST_PARAMETER_NAME)).thenReturn("soon");
+		assertThrows(InvalidRequestException.class, () -> fc.delete().handle(request, response));
+	}
+
 	@Test
 	public void testSuccessfulGet() throws Exception {
 		final String PRIMARY_KEY = "key";
@@ -147,31 +255,35 @@ public class FrontControllerTest {
 		Response response = Mockito.mock(Response.class);
 
 		Record record = Mockito.mock(Record.class);
-		Mockito.when(record.toString()).thenReturn(PRIMARY_KEY);
+		Mockito.when(record.getPrimaryKey()).thenReturn(PRIMARY_KEY);
+		Mockito.when(record.getName()).thenReturn("name");
 
 		Storage storage = Mockito.mock(Storage.class);
-		Mockito.when(storage.findByPrimaryKey(Mockito.contains(PRIMARY_KEY))).thenReturn(record);
+		Mockito.when(storage.find(Mockito.contains(PRIMARY_KEY))).thenReturn(Optional.of(record));
 
 		FrontController fc = Mockito.mock(FrontController.class);
 		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.getJsonCache()).thenReturn(new RecordJsonCache(1024 * 1024));
 
 		Mockito.when(fc.get()).thenCallRealMethod();
 
-		fc.get().handle(request, response);
+		Object body = fc.get().handle(request, response);
+		assertEquals("{\"primaryKey\":\"key\",\"name\":\"name\",\"updatedTimestamp\":0}",
+				new String((byte[]) body, StandardCharsets.UTF_8));
 
 		Mockito.verify(request, Mockito.times(1)).params(Mockito.anyString());
 		Mockito.verifyNoMoreInteractions(request);
 
 		Mockito.verify(response, Mockito.times(1)).status(200);
-		Mockito.verify(response, Mockito.times(1)).body(Mockito.contains(PRIMARY_KEY));
-		Mockito.verifyNoMoreInteractions(request);
+		Mockito.verifyNoMoreInteractions(response);
 
 		Mockito.verify(fc, Mockito.times(1)).getStorage();
 		Mockito.verify(fc, Mockito.times(1)).get();
+		Mockito.verify(fc, Mockito.times(1)).getJsonCache();
 
 		Mockito.verifyNoMoreInteractions(fc);
 
-		Mockito.verify(storage, Mockito.times(1)).findByPrimaryKey(Mockito.contains(PRIMARY_KEY));
+		Mockito.verify(storage, Mockito.times(1)).find(Mockito.contains(PRIMARY_KEY));
 		Mockito.verifyNoMoreInteractions(storage);
 	}
 
@@ -185,37 +297,573 @@ public class FrontControllerTest {
 		Response response = Mockito.mock(Response.class);
 
 		Storage storage = Mockito.mock(Storage.class);
-		Mockito.when(storage.findByPrimaryKey(Mockito.contains(PRIMARY_KEY)))
-				.thenThrow(new NoRecordFoundException(PRIMARY_KEY));
+		Mockito.when(storage.find(Mockito.contains(PRIMARY_KEY))).thenReturn(Optional.empty());
 
 		FrontController fc = Mockito.mock(FrontController.class);
 		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.getJsonCache()).thenReturn(new RecordJsonCache(1024 * 1024));
 
 		Mockito.when(fc.get()).thenCallRealMethod();
 
-		try {
-			fc.get().handle(request, response);
-			fail("Should fail as the record should NOT be found");
-		} catch (NoRecordFoundException exc) {
-			assertTrue(exc.getMessage().contains(PRIMARY_KEY));
-		}
+		long misses = Metrics.getMisses.sum();
+		// no exception, the miss is the regular response
+		fc.get().handle(request, response);
 
 		Mockito.verify(request, Mockito.times(1)).params(Mockito.anyString());
 		Mockito.verifyNoMoreInteractions(request);
 
-		Mockito.verify(response, Mockito.times(0)).status(Mockito.anyInt());
-		Mockito.verify(response, Mockito.times(0)).body(Mockito.anyString());
-		Mockito.verifyNoMoreInteractions(request);
+		Mockito.verify(response, Mockito.times(1)).status(400);
+		Mockito.verify(response, Mockito.times(1)).body("{\"message\":\"No record for PRIMARY_KEY\\u003d" + PRIMARY_KEY + "\"}");
+		Mockito.verify(response, Mockito.times(1)).body();
+		Mockito.verifyNoMoreInteractions(response);
+		assertEquals(misses + 1, Metrics.getMisses.sum(), "Miss should be counted");
 
 		Mockito.verify(fc, Mockito.times(1)).getStorage();
 		Mockito.verify(fc, Mockito.times(1)).get();
+		Mockito.verify(fc, Mockito.times(1)).getJsonCache();
 
 		Mockito.verifyNoMoreInteractions(fc);
 
-		Mockito.verify(storage, Mockito.times(1)).findByPrimaryKey(Mockito.contains(PRIMARY_KEY));
+		Mockito.verify(storage, Mockito.times(1)).find(Mockito.contains(PRIMARY_KEY));
+		Mockito.verifyNoMoreInteractions(storage);
+	}
+
+	@Test
+	public void testCachedGet() throws Exception {
+		final String PRIMARY_KEY = "key";
+
+		Request request = Mockito.mock(Request.class);
+		Mockito.when(request.params(Mockito.anyString())).thenReturn(PRIMARY_KEY);
+
+		Response response = Mockito.mock(Response.class);
+
+		Record record = Mockito.mock(Record.class);
+		Mockito.when(record.getName()).thenReturn("first");
+		Mockito.when(record.getPrimaryKey()).thenReturn(PRIMARY_KEY);
+
+		Storage storage = Mockito.mock(Storage.class);
+		Mockito.when(storage.find(PRIMARY_KEY)).thenReturn(Optional.of(record));
+
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.getJsonCache()).thenReturn(new RecordJsonCache(1024 * 1024));
+		Mockito.when(fc.get()).thenCallRealMethod();
+		Mockito.when(fc.delete()).thenCallRealMethod();
+		Mockito.when(storage.deleteByPrimaryKey(PRIMARY_KEY)).thenReturn(DeleteResult.REMOVED);
+
+		byte[] first = (byte[]) fc.get().handle(request, response);
+		assertTrue(new String(first, StandardCharsets.UTF_8).contains("first"));
+		assertArrayEquals(first, (byte[]) fc.get().handle(request, response));
+		Mockito.verify(storage, Mockito.times(1)).find(PRIMARY_KEY);
+
+		// deleted and uploaded again, so the new content is served
+		fc.delete().handle(request, response);
+		Mockito.when(record.getName()).thenReturn("second");
+		assertTrue(new String((byte[]) fc.get().handle(request, response), StandardCharsets.UTF_8).contains("second"));
+		Mockito.verify(storage, Mockito.times(2)).find(PRIMARY_KEY);
+	}
+
+	@Test
+	public void testAsyncUpload() throws Exception {
+		File file = File.createTempFile("upload", ".csv");
+		Files.write(file.toPath(), "PRIMARY_KEY,NAME,DESCRIPTION,UPDATED_TIMESTAMP\na,name,description,1\nb,name,description,2\n\n"
+				.getBytes(StandardCharsets.UTF_8));
+		File incorrectFile = File.createTempFile("upload", ".csv");
+		Files.write(incorrectFile.toPath(), "PRIMARY_KEY,NAME,DESCRIPTION,UPDATED_TIMESTAMP\na,name\n\n"
+				.getBytes(StandardCharsets.UTF_8));
+
+		Part part = Mockito.mock(Part.class);
+		Part incorrectPart = Mockito.mock(Part.class);
+
+		Storage storage = Mockito.mock(Storage.class);
+		Mockito.when(storage.saveAll(Mockito.any(), Mockito.any())).thenAnswer(savingOneByOne(storage));
+
+		UploadJobs uploadJobs = new UploadJobs(1, 4, 10);
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.getUploadJobs()).thenReturn(uploadJobs);
+		Mockito.when(fc.spool(part)).thenReturn(file);
+		Mockito.when(fc.spool(incorrectPart)).thenReturn(incorrectFile);
+		Mockito.when(fc.ingest(Mockito.any())).thenCallRealMethod();
+		Mockito.when(fc.upload()).thenCallRealMethod();
+		Mockito.when(fc.uploadJob()).thenCallRealMethod();
+
+		try {
+			String done = uploadAndWait(fc, part);
+			assertTrue(done.contains("\"state\":\"DONE\",\"parsed\":2,\"published\":2"), done);
+			assertTrue(done.contains("\"result\":{\"message\":\"Uploaded successfully\",\"parsed\":2,\"stored\":2"), done);
+			Mockito.verify(storage, Mockito.times(2)).save(Mockito.any(Record.class));
+			assertFalse(file.exists(), "Spooled file should be removed");
+
+			String failed = uploadAndWait(fc, incorrectPart);
+			assertTrue(failed.contains("\"state\":\"FAILED\""), failed);
+			assertTrue(failed.contains("\"error\":\"Line number 2 does not contains enough fields"), failed);
+			Mockito.verify(storage, Mockito.times(2)).save(Mockito.any(Record.class));
+			assertFalse(incorrectFile.exists(), "Spooled file should be removed");
+
+			Request request = Mockito.mock(Request.class);
+			Mockito.when(request.params(FrontController.JOB_ID_REQUEST_PARAMETER_NAME)).thenReturn("unknown");
+			Response response = Mockito.mock(Response.class);
+			fc.uploadJob().handle(request, response);
+			Mockito.verify(response, Mockito.times(1)).status(400);
+		} finally {
+			uploadJobs.shutdown(10, TimeUnit.SECONDS);
+		}
+	}
+
+	// the JSON of the finished job
+	static String uploadAndWait(FrontController fc, Part part) throws Exception {
+		Request request = Mockito.mock(Request.class);
+		HttpServletRequest raw = Mockito.mock(HttpServletRequest.class);
+		Mockito.when(request.raw()).thenReturn(raw);
+		Mockito.when(raw.getPart(FrontController.FILE_PART_NAME)).thenReturn(part);
+		Mockito.when(request.queryParams(FrontController.ASYNC_REQUEST_PARAMETER_NAME)).thenReturn("true");
+		Response response = Mockito.mock(Response.class);
+
+		String submitted = (String) fc.upload().handle(request, response);
+		Mockito.verify(response, Mockito.times(1)).status(202);
+		String id = JsonOutput.gson().fromJson(submitted, JsonObject.class).get("id").getAsString();
+
+		Request poll = Mockito.mock(Request.class);
+		Mockito.when(poll.params(FrontController.JOB_ID_REQUEST_PARAMETER_NAME)).thenReturn(id);
+		for (int attempt = 0; attempt < 500; attempt++) {
+			String status = (String) fc.uploadJob().handle(poll, Mockito.mock(Response.class));
+			if (status.contains("DONE") || status.contains("FAILED")) {
+				return status;
+			}
+			Thread.sleep(10);
+		}
+		fail("Upload job not finished");
+		return null;
+	}
+
+	@Test
+	public void testUploadStatistics() throws Exception {
+		File dir = Files.createTempDirectory("storage").toFile();
+		Storage storage = StorageFactory.loadStorage(dir.getPath());
+		try {
+			storage.save(RecordFactory.createRecord("stored", "name", "description", 1));
+
+			StorageRecordSink sink = new StorageRecordSink(storage, 2);
+			sink.acceptAll(Arrays.asList(RecordFactory.createRecord("a", "name", "description", 1),
+					RecordFactory.createRecord("b", "name", "description", 1),
+					RecordFactory.createRecord("a", "other", "description", 2),
+					RecordFactory.createRecord("stored", "other", "description", 2),
+					RecordFactory.createRecord("b", "other", "description", 2)));
+
+			assertEquals(5, sink.getReceived(), "Number of parsed records is different");
+			assertEquals(2, sink.getStored(), "Number of stored records is different");
+			assertEquals(2, sink.getDuplicatesInFile(), "Number of duplicates in file is different");
+			assertEquals(1, sink.getDuplicatesInStorage(), "Number of duplicates in storage is different");
+			assertEquals(Arrays.asList("a", "stored"), sink.getDuplicateKeys(), "Duplicate keys should be capped");
+			assertEquals("name", storage.findByPrimaryKey("a").getName(), "First record should be preserved");
+
+			// deleted meanwhile, so the keys seen in the file are stored again
+			storage.deleteByPrimaryKey("a");
+			storage.deleteByPrimaryKey("b");
+			sink.acceptAll(Arrays.asList(RecordFactory.createRecord("a", "again", "description", 3),
+					RecordFactory.createRecord("b", "again", "description", 3)));
+			assertEquals(4, sink.getStored(), "Number of stored records is different");
+			assertEquals(4, sink.getDuplicatesInFile(), "Number of duplicates in file is different");
+			assertEquals(1, sink.getDuplicatesInStorage(), "Number of duplicates in storage is different");
+		} finally {
+			StorageFactory.closeStorage(storage, dir.getPath());
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testVirtualThreadPool() throws Exception {
+		VirtualThreadPool threadPool = VirtualThreadPool.create("test-");
+		boolean supported = Arrays.stream(Thread.class.getMethods()).anyMatch(method -> method.getName().equals("ofVirtual"));
+		if (threadPool == null) {
+			assertFalse(supported, "Virtual threads should be used when supported");
+			return;
+		}
+
+		CountDownLatch done = new CountDownLatch(100);
+		List<String> names = Collections.synchronizedList(new ArrayList<String>());
+		for (int task = 0; task < 100; task++) {
+			threadPool.execute(() -> {
+				names.add(Thread.currentThread().getName());
+				done.countDown();
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS), "All tasks should run");
+		assertTrue(names.stream().allMatch(name -> name.startsWith("test-")), "Tasks should run on the pool threads");
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		Route timed = Metrics.timed("test", (request, response) -> "done");
+		assertEquals("done", timed.handle(Mockito.mock(Request.class), Mockito.mock(Response.class)));
+
+		Storage storage = Mockito.mock(Storage.class);
+		Mockito.when(storage.size()).thenReturn(42L);
+
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.metrics()).thenCallRealMethod();
+
+		Response response = Mockito.mock(Response.class);
+		String metrics = (String) fc.metrics().handle(Mockito.mock(Request.class), response);
+		Mockito.verify(response, Mockito.times(1)).type(Metrics.CONTENT_TYPE);
+
+		assertTrue(metrics.contains("# TYPE simplerest_request_duration_seconds histogram\n"), metrics);
+		assertTrue(metrics.contains("simplerest_request_duration_seconds_bucket{route=\"test\",le=\"+Inf\"} 1\n"), metrics);
+		assertTrue(metrics.contains("simplerest_request_duration_seconds_count{route=\"test\"} 1\n"), metrics);
+		assertTrue(metrics.contains("simplerest_records 42\n"), metrics);
+		assertTrue(metrics.contains("simplerest_record_miss_ratio{route=\"get\"}"), metrics);
+		assertTrue(metrics.contains("simplerest_upload_records_total"), metrics);
+		assertTrue(metrics.contains("simplerest_last_snapshot_duration_seconds"), metrics);
+	}
+
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		histogram.record(5000);
+		histogram.record(6000);
+		histogram.record(7000);
+		histogram.record(TimeUnit.SECONDS.toNanos(60));
+
+		StringBuilder result = new StringBuilder();
+		histogram.render(result, "latency", "route=\"test\"");
+		String rendered = result.toString();
+
+		// cumulative buckets of the upper bounds in seconds
+		assertTrue(rendered.startsWith("latency_bucket{route=\"test\",le=\"0.000004\"} 1\n"
+				+ "latency_bucket{route=\"test\",le=\"0.000006\"} 3\n"
+				+ "latency_bucket{route=\"test\",le=\"0.000008\"} 4\n"), rendered);
+		assertTrue(rendered.contains("latency_bucket{route=\"test\",le=\"33.554432\"} 4\n"
+				+ "latency_bucket{route=\"test\",le=\"+Inf\"} 5\n"), rendered);
+		assertTrue(rendered.contains("latency_sum{route=\"test\"} 60.000019\n"), rendered);
+		assertTrue(rendered.endsWith("latency_count{route=\"test\"} 5\n"), rendered);
+	}
+
+	@Test
+	public void testAccessLogSampling() {
+		long slow = TimeUnit.SECONDS.toNanos(1);
+		assertFalse(AccessLog.isLogged(1000, 0, slow), "Access log should be off");
+		assertTrue(AccessLog.isLogged(slow, 0, slow), "Slow request should be logged");
+		assertTrue(AccessLog.isLogged(1000, 1, 0), "All requests should be logged");
+		assertFalse(AccessLog.isLogged(slow, 0, 0), "Slow requests should not be logged");
+
+		int logged = 0;
+		for (int counter = 0; counter < 100000; counter++) {
+			if (AccessLog.isLogged(1000, 0.01, slow)) {
+				logged++;
+			}
+		}
+		assertTrue(logged > 500 && logged < 1500, "About 1% of requests should be logged, was " + logged);
+	}
+
+	@Test
+	public void testAsyncLogHandler() throws Exception {
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch taken = new CountDownLatch(1);
+		List<LogRecord> published = Collections.synchronizedList(new ArrayList<LogRecord>());
+		Handler delegate = new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				taken.countDown();
+				try {
+					blocked.await();
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+				}
+				published.add(record);
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+
+		AsyncLogHandler handler = new AsyncLogHandler(2, delegate);
+		// published on the logging thread while the delegate is blocked
+		handler.publish(new LogRecord(Level.INFO, "first"));
+		assertTrue(taken.await(5, TimeUnit.SECONDS), "Record should be taken by the logging thread");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (handler.getDropped() == 0 && System.nanoTime() < deadline) {
+			handler.publish(new LogRecord(Level.INFO, "next"));
+		}
+		assertTrue(handler.getDropped() > 0, "Records should be dropped when the queue is full");
+		assertTrue(published.isEmpty(), "Records should not be published by the logging thread");
+
+		blocked.countDown();
+		handler.flush();
+		assertEquals("first", published.get(0).getMessage());
+		// the blocked one and the full queue
+		assertEquals(3, published.size());
+		handler.close();
+	}
+
+	@Test
+	public void testKeyFingerprints() {
+		KeyFingerprints keys = new KeyFingerprints();
+		for (int counter = 0; counter < 100000; counter++) {
+			assertTrue(keys.add("key" + counter), "Key should not be seen yet");
+		}
+		for (int counter = 0; counter < 100000; counter += 7) {
+			assertFalse(keys.add("key" + counter), "Key should be seen");
+		}
+		assertEquals(100000, keys.size());
+	}
+
+	@Test
+	public void testJsonCacheEviction() {
+		// 16 segments of 1000 bytes, so at most 4 entries of 200 bytes per segment
+		RecordJsonCache jsonCache = new RecordJsonCache(16 * 1000);
+		byte[] json = new byte[100];
+
+		for (int i = 0; i < 1000; i++) {
+			String key = "key" + i;
+			jsonCache.put(key, json, jsonCache.stamp(key));
+			// the most recently used one stays
+			assertNotNull(jsonCache.get("key0"), "Recently used entry should not be evicted");
+		}
+		assertTrue(jsonCache.cachedBytes() <= 16 * 1000, "Cache should not exceed its size");
+		assertNull(jsonCache.get("key1"), "Least recently used entry should be evicted");
+
+		// deleted while its JSON was created
+		long stamp = jsonCache.stamp("deleted");
+		jsonCache.invalidate("deleted");
+		jsonCache.put("deleted", json, stamp);
+		assertNull(jsonCache.get("deleted"), "JSON of deleted record should not be cached");
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		Request request = Mockito.mock(Request.class);
+		Mockito.when(request.body()).thenReturn("[\"key1\", \"key2\", \"key3\"]");
+
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		Response response = writingTo(written);
+
+		Record record = Mockito.mock(Record.class);
+		Mockito.when(record.getPrimaryKey()).thenReturn("key2");
+
+		Storage storage = Mockito.mock(Storage.class);
+		Mockito.when(storage.findByPrimaryKeys(Arrays.asList("key1", "key2", "key3")))
+				.thenReturn(Arrays.asList(null, record, null));
+
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.lookup()).thenCallRealMethod();
+
+		fc.lookup().handle(request, response);
+
+		assertEquals("{\"records\":[{\"primaryKey\":\"key2\",\"updatedTimestamp\":0}],\"missing\":[\"key1\",\"key3\"]}",
+				new String(written.toByteArray(), StandardCharsets.UTF_8));
+		Mockito.verify(response, Mockito.times(1)).status(200);
+
+		Mockito.verify(storage, Mockito.times(1)).findByPrimaryKeys(Mockito.anyList());
 		Mockito.verifyNoMoreInteractions(storage);
 	}
 
+	@Test
+	public void testLookupOfIncorrectRequest() throws Exception {
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.lookup()).thenCallRealMethod();
+
+		for (String body : new String[] { "", "{\"key\": 1}", "[\"key1\", null]", "not a json" }) {
+			Request request = Mockito.mock(Request.class);
+			Mockito.when(request.body()).thenReturn(body);
+
+			try {
+				fc.lookup().handle(request, Mockito.mock(Response.class));
+				fail("Should fail as the request is not an array of primary keys: " + body);
+			} catch (InvalidRequestException exc) {
+				assertEquals("Request must be a JSON array of primary keys", exc.getMessage());
+			}
+		}
+		Mockito.verify(fc, Mockito.never()).getStorage();
+	}
+
+	@Test
+	public void testRecordsQuery() throws Exception {
+		Request request = Mockito.mock(Request.class);
+		Mockito.when(request.queryParams(FrontController.UPDATED_SINCE_REQUEST_PARAMETER_NAME)).thenReturn("5");
+		Mockito.when(request.queryParams(FrontController.LIMIT_REQUEST_PARAMETER_NAME)).thenReturn("2");
+
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		Response response = writingTo(written);
+
+		List<Record> records = new ArrayList<Record>();
+		for (int i = 1; i <= 3; i++) {
+			Record record = Mockito.mock(Record.class);
+			Mockito.when(record.getPrimaryKey()).thenReturn("key" + i);
+			Mockito.when(record.getUpdatedTimestamp()).thenReturn(5L + i);
+			records.add(record);
+		}
+
+		Storage storage = Mockito.mock(Storage.class);
+		Mockito.when(storage.isIndexed()).thenReturn(true);
+		Mockito.when(storage.findUpdatedSince(5, null)).thenReturn(records);
+
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.records()).thenCallRealMethod();
+
+		fc.records().handle(request, response);
+
+		assertEquals("{\"records\":[{\"primaryKey\":\"key1\",\"updatedTimestamp\":6},{\"primaryKey\":\"key2\",\"updatedTimestamp\":7}],"
+				+ "\"next\":{\"updatedSince\":7,\"after\":\"key2\"}}", new String(written.toByteArray(), StandardCharsets.UTF_8));
+		Mockito.verify(response, Mockito.times(1)).status(200);
+
+		// the last page
+		written.reset();
+		Mockito.when(request.queryParams(FrontController.LIMIT_REQUEST_PARAMETER_NAME)).thenReturn("3");
+		fc.records().handle(request, response);
+		assertFalse(new String(written.toByteArray(), StandardCharsets.UTF_8).contains("next"),
+				"Last page should have no next one");
+	}
+
+	@Test
+	public void testRecordsQueryByPrefix() throws Exception {
+		Request request = Mockito.mock(Request.class);
+		Mockito.when(request.queryParams(FrontController.PREFIX_REQUEST_PARAMETER_NAME)).thenReturn("tenant1/");
+		Mockito.when(request.queryParams(FrontController.AFTER_REQUEST_PARAMETER_NAME)).thenReturn("tenant1/a");
+		HttpServletResponse raw = Mockito.mock(HttpServletResponse.class);
+		Mockito.when(raw.getOutputStream()).thenReturn(Mockito.mock(ServletOutputStream.class));
+		Response response = Mockito.mock(Response.class);
+		Mockito.when(response.raw()).thenReturn(raw);
+
+		Storage storage = Mockito.mock(Storage.class);
+		Mockito.when(storage.findByPrimaryKeyRange("tenant1/a", false, "tenant10")).thenReturn(Arrays.asList());
+
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.records()).thenCallRealMethod();
+
+		// not supported by the storage, rather than incorrect
+		assertThrows(UnsupportedRequestException.class, () -> fc.records().handle(request, response),
+				"Should fail as the storage is not ordered");
+
+		Mockito.when(storage.isOrdered()).thenReturn(true);
+		fc.records().handle(request, response);
+		Mockito.verify(storage, Mockito.times(1)).findByPrimaryKeyRange("tenant1/a", false, "tenant10");
+
+		assertEquals("tenant10", FrontController.prefixEnd("tenant1/"));
+		assertEquals("b", FrontController.prefixEnd("a\uffff"));
+		assertNull(FrontController.prefixEnd("\uffff"));
+		assertNull(FrontController.prefixEnd(""));
+	}
+
+	@Test
+	public void testRecordsQueryAfterTheEndOfRange() throws Exception {
+		File dir = Files.createTempDirectory("storage").toFile();
+		Storage storage = StorageFactory.loadStorage(dir.getPath(), StorageFactory.ORDERED_STORAGE_TYPE);
+		try {
+			storage.save(RecordFactory.createRecord("b", "name", "description", 1));
+
+			FrontController fc = Mockito.mock(FrontController.class);
+			Mockito.when(fc.getStorage()).thenReturn(storage);
+			Mockito.when(fc.records()).thenCallRealMethod();
+
+			// the page after the last one of the range, so after its end
+			Request request = Mockito.mock(Request.class);
+			Mockito.when(request.queryParams(FrontController.FROM_REQUEST_PARAMETER_NAME)).thenReturn("a");
+			Mockito.when(request.queryParams(FrontController.TO_REQUEST_PARAMETER_NAME)).thenReturn("c");
+			Mockito.when(request.queryParams(FrontController.AFTER_REQUEST_PARAMETER_NAME)).thenReturn("d");
+			ByteArrayOutputStream written = new ByteArrayOutputStream();
+			Response response = writingTo(written);
+			fc.records().handle(request, response);
+			assertEquals("{\"records\":[]}", new String(written.toByteArray(), StandardCharsets.UTF_8));
+			Mockito.verify(response, Mockito.times(1)).status(200);
+
+			// the same of the prefix
+			Request byPrefix = Mockito.mock(Request.class);
+			Mockito.when(byPrefix.queryParams(FrontController.PREFIX_REQUEST_PARAMETER_NAME)).thenReturn("a");
+			Mockito.when(byPrefix.queryParams(FrontController.AFTER_REQUEST_PARAMETER_NAME)).thenReturn("c");
+			written.reset();
+			fc.records().handle(byPrefix, response);
+			assertEquals("{\"records\":[]}", new String(written.toByteArray(), StandardCharsets.UTF_8));
+		} finally {
+			StorageFactory.closeStorage(storage, dir.getPath());
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testRecordsQueryOfIncorrectRequest() throws Exception {
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.records()).thenCallRealMethod();
+
+		String[][] parameters = { {}, { "updatedSince", "1", "name", "x" }, { "updatedSince", "yesterday" },
+				{ "name", "x", "limit", "0" }, { "prefix", "a", "name", "x" }, { "to", "b" }, { "from", "b", "to", "a" }, { "name", "x", "limit", "" + (FrontController.recordsMaxLimit + 1) } };
+		for (String[] parameter : parameters) {
+			Request request = Mockito.mock(Request.class);
+			for (int i = 0; i < parameter.length; i += 2) {
+				Mockito.when(request.queryParams(parameter[i])).thenReturn(parameter[i + 1]);
+			}
+
+			assertThrows(InvalidRequestException.class, () -> fc.records().handle(request, Mockito.mock(Response.class)),
+					"Should fail for " + Arrays.toString(parameter));
+		}
+		Mockito.verify(fc, Mockito.never()).getStorage();
+	}
+
+	@Test
+	public void testExport() throws Exception {
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		Response response = writingTo(written);
+
+		Record record = Mockito.mock(Record.class);
+		Mockito.when(record.getPrimaryKey()).thenReturn("key");
+		Mockito.when(record.getName()).thenReturn("name");
+		Mockito.when(record.getUpdatedTimestamp()).thenReturn(7L);
+
+		Storage storage = Mockito.mock(Storage.class);
+		Mockito.when(storage.isIndexed()).thenReturn(true);
+		Mockito.when(storage.findUpdatedSince(Long.MIN_VALUE, null)).thenReturn(Arrays.asList(record));
+		Mockito.when(storage.findUpdatedSince(7, "key")).thenReturn(Arrays.asList());
+
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.export()).thenCallRealMethod();
+
+		fc.export().handle(Mockito.mock(Request.class), response);
+		assertEquals("PRIMARY_KEY,NAME,DESCRIPTION,UPDATED_TIMESTAMP\nkey,name,,7\n\n",
+				new String(written.toByteArray(), StandardCharsets.UTF_8));
+		Mockito.verify(response, Mockito.times(1)).type("text/csv; charset=utf-8");
+
+		// resumed after the last received record
+		written.reset();
+		Request request = Mockito.mock(Request.class);
+		Mockito.when(request.queryParams(FrontController.FORMAT_REQUEST_PARAMETER_NAME)).thenReturn("ndjson");
+		Mockito.when(request.queryParams(FrontController.UPDATED_SINCE_REQUEST_PARAMETER_NAME)).thenReturn("7");
+		Mockito.when(request.queryParams(FrontController.AFTER_REQUEST_PARAMETER_NAME)).thenReturn("key");
+		fc.export().handle(request, response);
+		assertEquals("", new String(written.toByteArray(), StandardCharsets.UTF_8));
+
+		// not indexed, so all the records in no order and it cannot be resumed
+		Mockito.when(storage.isIndexed()).thenReturn(false);
+		Mockito.when(storage.findAll()).thenReturn(Arrays.asList(record));
+		written.reset();
+		fc.export().handle(Mockito.mock(Request.class), response);
+		assertEquals("PRIMARY_KEY,NAME,DESCRIPTION,UPDATED_TIMESTAMP\nkey,name,,7\n\n",
+				new String(written.toByteArray(), StandardCharsets.UTF_8));
+		assertThrows(UnsupportedRequestException.class, () -> fc.export().handle(request, response),
+				"Should fail as the export cannot be resumed");
+
+		Request incorrect = Mockito.mock(Request.class);
+		Mockito.when(incorrect.queryParams(FrontController.FORMAT_REQUEST_PARAMETER_NAME)).thenReturn("xml");
+		assertThrows(InvalidRequestException.class, () -> fc.export().handle(incorrect, response),
+				"Should fail as the format is unknown");
+	}
+
 	@Test
 	public void testSuccessfulUpload() throws Exception {
 		final String FILE_PART_NAME = "file";
@@ -232,14 +880,22 @@ public class FrontControllerTest {
 		Mockito.when(request.raw().getPart(FILE_PART_NAME)).thenReturn(part);
 
 		Record record = Mockito.mock(Record.class);
+		Mockito.when(record.getPrimaryKey()).thenReturn("key");
 		List<Record> toBeReturned = new ArrayList<Record>();
 		toBeReturned.add(record);
 		
 		Storage storage = Mockito.mock(Storage.class);
 		Mockito.doNothing().when(storage).save(Mockito.any(Record.class));
+		Mockito.when(storage.saveAll(Mockito.any(), Mockito.any())).thenAnswer(savingOneByOne(storage));
 		
 		FrontController fc = Mockito.mock(FrontController.class);
-		Mockito.when(fc.getAllRecords(Mockito.any(BufferedReader.class))).thenReturn(toBeReturned);
+		Mockito.doAnswer(invocation -> {
+			RecordSink sink = invocation.getArgument(1);
+			// published at once, like by StagedRecordSink
+			sink.acceptAll(toBeReturned);
+			sink.commit();
+			return null;
+		}).when(fc).storeAllRecords(Mockito.any(InputStream.class), Mockito.any(RecordSink.class));
 		Mockito.when(fc.getStorage()).thenReturn(storage);
 		Mockito.when(fc.upload()).thenCallRealMethod();
 
@@ -247,25 +903,81 @@ public class FrontControllerTest {
 		
 		fc.upload().handle(request, response);		
 		
+		Mockito.verify(part, Mockito.times(1)).getSize();
 		Mockito.verify(part, Mockito.times(1)).getInputStream();
 		Mockito.verifyNoMoreInteractions(part);
 		Mockito.verify(request, Mockito.times(3)).raw();
+		Mockito.verify(request, Mockito.times(1)).queryParams(FrontController.ASYNC_REQUEST_PARAMETER_NAME);
 		Mockito.verifyNoMoreInteractions(request);
 
+		// the whole file saved in one call
+		Mockito.verify(storage,Mockito.times(1)).saveAll(Mockito.any(), Mockito.any());
 		Mockito.verify(storage,Mockito.times(1)).save(Mockito.any(Record.class));
 		Mockito.verifyNoMoreInteractions(storage);
 		
 		Mockito.verify(fc, Mockito.times(1)).getStorage();
 		Mockito.verify(fc, Mockito.times(1)).upload();
-		Mockito.verify(fc, Mockito.times(1)).getAllRecords(Mockito.any(BufferedReader.class));
+		Mockito.verify(fc, Mockito.times(1)).storeAllRecords(Mockito.any(InputStream.class),
+				Mockito.any(RecordSink.class));
 		Mockito.verifyNoMoreInteractions(fc);
 		
 		Mockito.verify(response, Mockito.times(1)).status(200);
 		Mockito.verify(response, Mockito.times(1)).body(Mockito.contains("Uploaded successfully"));
+		Mockito.verify(response, Mockito.times(1)).body(Mockito.contains("\"parsed\":1,\"stored\":1,\"duplicatesInFile\":0,\"duplicatesInStorage\":0"));
 		Mockito.verify(response, Mockito.times(1)).body();
 		Mockito.verifyNoMoreInteractions(response);
 	}	
 
+	@Test
+	public void testSuccessfulParallelUpload() throws Exception {
+		final String FILE_PART_NAME = "file";
+
+		Part part = Mockito.mock(Part.class);
+		Mockito.when(part.getSize()).thenReturn(FrontController.parallelUploadThreshold);
+		
+		Request request = Mockito.mock(Request.class);
+		
+		HttpServletRequest raw = Mockito.mock(HttpServletRequest.class);
+		Mockito.when(request.raw()).thenReturn(raw);
+		Mockito.when(request.raw().getPart(FILE_PART_NAME)).thenReturn(part);
+
+		Record record = Mockito.mock(Record.class);
+		Mockito.when(record.getPrimaryKey()).thenReturn("key");
+		
+		Storage storage = Mockito.mock(Storage.class);
+		Mockito.doNothing().when(storage).save(Mockito.any(Record.class));
+		Mockito.when(storage.saveAll(Mockito.any(), Mockito.any())).thenAnswer(savingOneByOne(storage));
+		
+		FrontController fc = Mockito.mock(FrontController.class);
+		Mockito.doAnswer(invocation -> {
+			RecordSink sink = invocation.getArgument(1);
+			sink.acceptAll(Arrays.asList(record));
+			sink.commit();
+			return null;
+		}).when(fc).storeAllRecords(Mockito.any(Part.class), Mockito.any(RecordSink.class));
+		Mockito.when(fc.getStorage()).thenReturn(storage);
+		Mockito.when(fc.upload()).thenCallRealMethod();
+
+		Response response = Mockito.mock(Response.class);
+		
+		fc.upload().handle(request, response);		
+		
+		Mockito.verify(part, Mockito.times(1)).getSize();
+		Mockito.verifyNoMoreInteractions(part);
+
+		Mockito.verify(storage,Mockito.times(1)).saveAll(Mockito.any(), Mockito.any());
+		Mockito.verify(storage,Mockito.times(1)).save(record);
+		Mockito.verifyNoMoreInteractions(storage);
+		
+		Mockito.verify(fc, Mockito.times(1)).getStorage();
+		Mockito.verify(fc, Mockito.times(1)).upload();
+		Mockito.verify(fc, Mockito.times(1)).storeAllRecords(Mockito.eq(part), Mockito.any(RecordSink.class));
+		Mockito.verifyNoMoreInteractions(fc);
+		
+		Mockito.verify(response, Mockito.times(1)).status(200);
+		Mockito.verify(response, Mockito.times(1)).body(Mockito.contains("Uploaded successfully"));
+	}	
+
 	@Test
 	public void testDuplicateUpload() throws Exception {
 		final String FILE_PART_NAME = "file";
@@ -282,14 +994,22 @@ public class FrontControllerTest {
 		Mockito.when(request.raw().getPart(FILE_PART_NAME)).thenReturn(part);
 
 		Record record = Mockito.mock(Record.class);
+		Mockito.when(record.getPrimaryKey()).thenReturn("key");
 		List<Record> toBeReturned = new ArrayList<Record>();
 		toBeReturned.add(record);
 		
 		Storage storage = Mockito.mock(Storage.class);
 		Mockito.doThrow(new RecordStoreException("Cannot store duplicate")).when(storage).save(Mockito.any(Record.class));
+		Mockito.when(storage.saveAll(Mockito.any(), Mockito.any())).thenAnswer(savingOneByOne(storage));
 		
 		FrontController fc = Mockito.mock(FrontController.class);
-		Mockito.when(fc.getAllRecords(Mockito.any(BufferedReader.class))).thenReturn(toBeReturned);
+		Mockito.doAnswer(invocation -> {
+			RecordSink sink = invocation.getArgument(1);
+			// published at once, like by StagedRecordSink
+			sink.acceptAll(toBeReturned);
+			sink.commit();
+			return null;
+		}).when(fc).storeAllRecords(Mockito.any(InputStream.class), Mockito.any(RecordSink.class));
 		Mockito.when(fc.getStorage()).thenReturn(storage);
 		Mockito.when(fc.upload()).thenCallRealMethod();
 
@@ -297,21 +1017,28 @@ public class FrontControllerTest {
 		
 		fc.upload().handle(request, response);		
 		
+		Mockito.verify(part, Mockito.times(1)).getSize();
 		Mockito.verify(part, Mockito.times(1)).getInputStream();
 		Mockito.verifyNoMoreInteractions(part);
 		Mockito.verify(request, Mockito.times(3)).raw();
+		Mockito.verify(request, Mockito.times(1)).queryParams(FrontController.ASYNC_REQUEST_PARAMETER_NAME);
 		Mockito.verifyNoMoreInteractions(request);
 
+		// the whole file saved in one call
+		Mockito.verify(storage,Mockito.times(1)).saveAll(Mockito.any(), Mockito.any());
 		Mockito.verify(storage,Mockito.times(1)).save(Mockito.any(Record.class));
 		Mockito.verifyNoMoreInteractions(storage);
 		
 		Mockito.verify(fc, Mockito.times(1)).getStorage();
 		Mockito.verify(fc, Mockito.times(1)).upload();
-		Mockito.verify(fc, Mockito.times(1)).getAllRecords(Mockito.any(BufferedReader.class));
+		Mockito.verify(fc, Mockito.times(1)).storeAllRecords(Mockito.any(InputStream.class),
+				Mockito.any(RecordSink.class));
 		Mockito.verifyNoMoreInteractions(fc);
 		
 		Mockito.verify(response, Mockito.times(1)).status(200);
 		Mockito.verify(response, Mockito.times(1)).body(Mockito.contains("Uploaded successfully"));
+		Mockito.verify(response, Mockito.times(1)).body(Mockito.contains("\"parsed\":1,\"stored\":0,\"duplicatesInFile\":0,\"duplicatesInStorage\":1"));
+		Mockito.verify(response, Mockito.times(1)).body(Mockito.contains("\"duplicateKeys\":[\"key\"]"));
 		Mockito.verify(response, Mockito.times(1)).body();
 		Mockito.verifyNoMoreInteractions(response);
 	}	